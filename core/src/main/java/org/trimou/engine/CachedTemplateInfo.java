@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Information about a template held in the template cache.
+ *
+ * @author Martin Kouba
+ * @see MustacheEngine#getTemplateCacheInfo()
+ */
+public final class CachedTemplateInfo {
+
+    private final String templateId;
+
+    private final boolean compiled;
+
+    private final int segmentsSize;
+
+    private final long retainedSizeEstimate;
+
+    private final int sourceLength;
+
+    private final long lastAccessTime;
+
+    private final long offHeapSize;
+
+    private final int outputSizeEstimate;
+
+    /**
+     *
+     * @param templateId
+     * @param compiled
+     * @param segmentsSize
+     * @param retainedSizeEstimate
+     * @param sourceLength
+     * @param lastAccessTime
+     */
+    public CachedTemplateInfo(String templateId, boolean compiled,
+            int segmentsSize, long retainedSizeEstimate, int sourceLength,
+            long lastAccessTime) {
+        this(templateId, compiled, segmentsSize, retainedSizeEstimate,
+                sourceLength, lastAccessTime, 0, 0);
+    }
+
+    /**
+     *
+     * @param templateId
+     * @param compiled
+     * @param segmentsSize
+     * @param retainedSizeEstimate
+     * @param sourceLength
+     * @param lastAccessTime
+     * @param offHeapSize
+     */
+    public CachedTemplateInfo(String templateId, boolean compiled,
+            int segmentsSize, long retainedSizeEstimate, int sourceLength,
+            long lastAccessTime, long offHeapSize) {
+        this(templateId, compiled, segmentsSize, retainedSizeEstimate,
+                sourceLength, lastAccessTime, offHeapSize, 0);
+    }
+
+    /**
+     *
+     * @param templateId
+     * @param compiled
+     * @param segmentsSize
+     * @param retainedSizeEstimate
+     * @param sourceLength
+     * @param lastAccessTime
+     * @param offHeapSize
+     * @param outputSizeEstimate
+     */
+    @ConstructorProperties({ "templateId", "compiled", "segmentsSize",
+            "retainedSizeEstimate", "sourceLength", "lastAccessTime",
+            "offHeapSize", "outputSizeEstimate" })
+    public CachedTemplateInfo(String templateId, boolean compiled,
+            int segmentsSize, long retainedSizeEstimate, int sourceLength,
+            long lastAccessTime, long offHeapSize, int outputSizeEstimate) {
+        this.templateId = templateId;
+        this.compiled = compiled;
+        this.segmentsSize = segmentsSize;
+        this.retainedSizeEstimate = retainedSizeEstimate;
+        this.sourceLength = sourceLength;
+        this.lastAccessTime = lastAccessTime;
+        this.offHeapSize = offHeapSize;
+        this.outputSizeEstimate = outputSizeEstimate;
+    }
+
+    public String getTemplateId() {
+        return templateId;
+    }
+
+    /**
+     *
+     * @return <code>true</code> if the compiled template is cached,
+     *         <code>false</code> if only the source is cached
+     */
+    public boolean isCompiled() {
+        return compiled;
+    }
+
+    /**
+     *
+     * @return the number of segments of the compiled template
+     * @see org.trimou.engine.segment.ContainerSegment#getSegmentsSize(boolean)
+     */
+    public int getSegmentsSize() {
+        return segmentsSize;
+    }
+
+    /**
+     *
+     * @return the estimated number of bytes retained by the cached template,
+     *         including the cached source unless held off-heap
+     */
+    public long getRetainedSizeEstimate() {
+        return retainedSizeEstimate;
+    }
+
+    /**
+     *
+     * @return the number of characters of the template source or
+     *         <code>-1</code> if not known
+     */
+    public int getSourceLength() {
+        return sourceLength;
+    }
+
+    /**
+     *
+     * @return the time the template was last obtained from the cache (in
+     *         milliseconds), or <code>0</code> if not known
+     */
+    public long getLastAccessTime() {
+        return lastAccessTime;
+    }
+
+    /**
+     *
+     * @return the number of bytes held off-heap by the cached source
+     * @see org.trimou.engine.config.EngineConfigurationKey#OFF_HEAP_SOURCE_CACHE
+     */
+    public long getOffHeapSize() {
+        return offHeapSize;
+    }
+
+    /**
+     *
+     * @return the estimated number of characters of the rendered output or
+     *         <code>0</code> if not known
+     * @see org.trimou.Mustache#render(Object)
+     */
+    public int getOutputSizeEstimate() {
+        return outputSizeEstimate;
+    }
+
+    @Override
+    public String toString() {
+        return String
+                .format("CachedTemplateInfo [templateId: %s, compiled: %s, segments: %s, retainedSize: %s, sourceLength: %s, lastAccessTime: %s, offHeapSize: %s, outputSize: %s]",
+                        templateId, compiled, segmentsSize,
+                        retainedSizeEstimate, sourceLength, lastAccessTime,
+                        offHeapSize, outputSizeEstimate);
+    }
+
+}
@@ -17,11 +17,30 @@ package org.trimou.engine;
 
 import static org.trimou.util.Checker.checkArgumentNotEmpty;
 
+import java.io.FilterReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,18 +49,32 @@ import org.trimou.engine.cache.ComputingCache;
 import org.trimou.engine.config.Configuration;
 import org.trimou.engine.config.ConfigurationFactory;
 import org.trimou.engine.config.EngineConfigurationKey;
+import org.trimou.engine.listener.EngineMetricsListener;
+import org.trimou.engine.listener.EngineMetricsListeners;
 import org.trimou.engine.listener.MustacheCompilationEvent;
 import org.trimou.engine.listener.MustacheListener;
 import org.trimou.engine.listener.MustacheParsingEvent;
+import org.trimou.engine.locator.ObservableTemplateLocator;
+import org.trimou.engine.locator.TemplateChangeListener;
 import org.trimou.engine.locator.TemplateLocator;
 import org.trimou.engine.parser.ParserFactory;
 import org.trimou.engine.parser.ParsingHandler;
 import org.trimou.engine.parser.ParsingHandlerFactory;
+import org.trimou.engine.parser.Template;
+import org.trimou.engine.parser.TemplateSnapshot;
+import org.trimou.engine.segment.RootSegment;
 import org.trimou.exception.MustacheException;
 import org.trimou.exception.MustacheProblem;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * The default Mustache engine implementation.
@@ -53,9 +86,13 @@ class DefaultMustacheEngine implements MustacheEngine {
     private static final Logger logger = LoggerFactory
             .getLogger(DefaultMustacheEngine.class);
 
+    private static final long LOCATOR_MISS_CACHE_MAX_SIZE = 10000l;
+
+    private static final long REFRESH_THREAD_KEEP_ALIVE_TIME = 60l;
+
     private final ComputingCache<String, Optional<Mustache>> templateCache;
 
-    private final ComputingCache<String, Optional<String>> sourceCache;
+    private final ComputingCache<String, Optional<CharSequence>> sourceCache;
 
     private final Configuration configuration;
 
@@ -63,6 +100,48 @@ class DefaultMustacheEngine implements MustacheEngine {
 
     private final ParsingHandlerFactory parsingHandlerFactory;
 
+    private final TemplateSnapshot templateSnapshot;
+
+    /**
+     * Observable locators only hold a weak reference to the listener
+     */
+    private final TemplateChangeListener templateChangeListener;
+
+    /**
+     * Source hash to compiled segment tree, only set if identical templates
+     * should be shared. The source itself is not retained.
+     */
+    private final ConcurrentMap<HashCode, RootSegment> sharedTemplates;
+
+    /**
+     * Only set if the background refresh is enabled
+     */
+    private final ExecutorService refreshExecutor;
+
+    private final ConcurrentMap<String, RefreshState> refreshStates;
+
+    /**
+     * Templates recompiled in the background, waiting to replace the stale
+     * ones
+     */
+    private final ConcurrentMap<String, RefreshState> refreshedTemplates;
+
+    private final List<LocatorStats> locators;
+
+    /**
+     * Template id to the set of locators which were not able to locate the
+     * template, only set if the misses should be cached
+     */
+    private final ComputingCache<String, Set<TemplateLocator>> locatorMisses;
+
+    /**
+     * Template id to the cached templates which refer to the template (keyed
+     * by their ids), i.e. the reverse dependencies; guarded by itself
+     */
+    private final Map<String, Map<String, Template>> dependents;
+
+    private final EngineMetricsListener[] metricsListeners;
+
     /**
      * Workaround for CDI (JSR 299, JSR 346) - make this type proxyable so that
      * it's possible to produce an application-scoped CDI bean.
@@ -71,6 +150,16 @@ class DefaultMustacheEngine implements MustacheEngine {
         configuration = null;
         parserFactory = null;
         parsingHandlerFactory = null;
+        templateSnapshot = null;
+        templateChangeListener = null;
+        sharedTemplates = null;
+        refreshExecutor = null;
+        refreshStates = null;
+        refreshedTemplates = null;
+        locators = null;
+        locatorMisses = null;
+        dependents = null;
+        metricsListeners = null;
         templateCache = null;
         sourceCache = null;
     }
@@ -84,6 +173,25 @@ class DefaultMustacheEngine implements MustacheEngine {
         configuration = new ConfigurationFactory().createConfiguration(builder);
         parserFactory = new ParserFactory();
         parsingHandlerFactory = new ParsingHandlerFactory();
+        templateSnapshot = builder.getTemplateSnapshot();
+        metricsListeners = EngineMetricsListeners.from(configuration);
+        locators = initLocators();
+        // The timeout bounds the staleness of the cached misses
+        locatorMisses = buildLocatorMissCache();
+        dependents = new HashMap<String, Map<String, Template>>();
+
+        // The tree is held as long as some template refers to it
+        sharedTemplates = configuration
+                .getBooleanPropertyValue(EngineConfigurationKey.SHARE_IDENTICAL_TEMPLATES) ? new MapMaker()
+                .weakValues().<HashCode, RootSegment> makeMap() : null;
+        refreshExecutor = initRefreshExecutor();
+        if (refreshExecutor != null) {
+            refreshStates = new ConcurrentHashMap<String, RefreshState>();
+            refreshedTemplates = new ConcurrentHashMap<String, RefreshState>();
+        } else {
+            refreshStates = null;
+            refreshedTemplates = null;
+        }
 
         if (configuration
                 .getBooleanPropertyValue(EngineConfigurationKey.DEBUG_MODE)) {
@@ -105,6 +213,8 @@ class DefaultMustacheEngine implements MustacheEngine {
                 logger.info("Template cache explicitly disabled!");
             }
         }
+        templateChangeListener = templateCache != null ? registerTemplateChangeListener()
+                : null;
     }
 
     public Mustache getMustache(String templateId) {
@@ -122,7 +232,7 @@ class DefaultMustacheEngine implements MustacheEngine {
     public Mustache compileMustache(String templateId, String templateContent) {
         checkArgumentNotEmpty(templateId);
         checkArgumentNotEmpty(templateContent);
-        return parse(templateId, new StringReader(templateContent));
+        return parse(templateId, new StringReader(templateContent), false);
     }
 
     public Configuration getConfiguration() {
@@ -130,41 +240,373 @@ class DefaultMustacheEngine implements MustacheEngine {
     }
 
     public void invalidateTemplateCache() {
+        if (locatorMisses != null) {
+            locatorMisses.clear();
+        }
         if (templateCache == null) {
-            logger.warn("Unable to invalidate the template cache - it's disabled!");
+            if (locatorMisses == null) {
+                logger.warn("Unable to invalidate the template cache - it's disabled!");
+            }
             return;
         }
+        invalidateTemplates(templateCache.getAllPresent().values());
         templateCache.clear();
         sourceCache.clear();
+        synchronized (dependents) {
+            dependents.clear();
+        }
+        if (refreshStates != null) {
+            refreshStates.clear();
+            refreshedTemplates.clear();
+        }
+    }
+
+    public void invalidateTemplate(final String templateId) {
+        checkArgumentNotEmpty(templateId);
+        if (templateCache == null) {
+            if (locatorMisses != null) {
+                // E.g. a new template was created
+                locatorMisses
+                        .invalidate(new ComputingCache.KeyPredicate<String>() {
+                            @Override
+                            public boolean apply(String key) {
+                                return templateId.equals(key);
+                            }
+                        });
+                return;
+            }
+            logger.warn(
+                    "Unable to invalidate the template {} - the template cache is disabled!",
+                    templateId);
+            return;
+        }
+        logger.debug("Invalidated templates: {}",
+                invalidateTemplateAndDependents(templateId));
+    }
+
+    public List<CachedTemplateInfo> getTemplateCacheInfo() {
+        if (templateCache == null) {
+            return Collections.emptyList();
+        }
+        Map<String, Optional<Mustache>> templates = templateCache
+                .getAllPresent();
+        Map<String, Optional<CharSequence>> sources = sourceCache
+                .getAllPresent();
+        List<CachedTemplateInfo> info = new ArrayList<CachedTemplateInfo>();
+        // Shared segment trees are only counted once
+        Set<Template> counted = Sets.newIdentityHashSet();
+
+        for (String templateId : Sets.union(templates.keySet(),
+                sources.keySet())) {
+            Optional<Mustache> mustache = templates.get(templateId);
+            Optional<CharSequence> source = sources.get(templateId);
+            boolean compiled = false;
+            int segmentsSize = 0;
+            long retainedSize = 0;
+            int sourceLength = -1;
+            long lastAccessTime = 0;
+            long offHeapSize = 0;
+            int outputSize = 0;
+            if (mustache != null && mustache.isPresent()
+                    && mustache.get() instanceof Template) {
+                Template template = (Template) mustache.get();
+                compiled = true;
+                segmentsSize = template.getRootSegment().getSegmentsSize(true);
+                if (counted.add(template.getOriginTemplate())) {
+                    retainedSize = template.getRootSegment()
+                            .getRetainedSizeEstimate();
+                }
+                sourceLength = template.getSourceLength();
+                lastAccessTime = template.getLastAccessTime();
+                outputSize = template.getOutputSizeEstimate();
+            }
+            if (source != null && source.isPresent()) {
+                sourceLength = source.get().length();
+                if (source.get() instanceof OffHeapSource) {
+                    offHeapSize = ((OffHeapSource) source.get()).getBytes();
+                } else {
+                    // Object overhead + UTF-16 chars
+                    retainedSize += 40 + 2l * sourceLength;
+                }
+            }
+            info.add(new CachedTemplateInfo(templateId, compiled,
+                    segmentsSize, retainedSize, sourceLength, lastAccessTime,
+                    offHeapSize, outputSize));
+        }
+        Collections.sort(info, new Comparator<CachedTemplateInfo>() {
+            @Override
+            public int compare(CachedTemplateInfo o1, CachedTemplateInfo o2) {
+                return Long.compare(o2.getRetainedSizeEstimate(),
+                        o1.getRetainedSizeEstimate());
+            }
+        });
+        return ImmutableList.copyOf(info);
+    }
+
+    public List<TemplateLocatorInfo> getTemplateLocatorInfo() {
+        ImmutableList.Builder<TemplateLocatorInfo> builder = ImmutableList
+                .builder();
+        for (LocatorStats stats : locators) {
+            builder.add(stats.toInfo());
+        }
+        return builder.build();
+    }
+
+    private TemplateChangeListener registerTemplateChangeListener() {
+        TemplateChangeListener listener = null;
+        if (configuration.getTemplateLocators() == null) {
+            return listener;
+        }
+        for (TemplateLocator locator : configuration.getTemplateLocators()) {
+            if (locator instanceof ObservableTemplateLocator) {
+                if (listener == null) {
+                    listener = new TemplateChangeListener() {
+                        @Override
+                        public void templateChanged(String templateId) {
+                            logger.info(
+                                    "Template changed - invalidated templates: {}",
+                                    invalidateTemplateAndDependents(templateId));
+                        }
+                    };
+                }
+                ((ObservableTemplateLocator) locator)
+                        .addChangeListener(listener);
+            }
+        }
+        return listener;
+    }
+
+    /**
+     * Invalidate the given template and all the cached templates which refer
+     * to it, either directly or transitively. Dependent templates are
+     * invalidated too so that no compiled template refers to a stale one.
+     *
+     * @param templateId
+     * @return the set of invalidated template ids
+     */
+    private Set<String> invalidateTemplateAndDependents(String templateId) {
+
+        final Set<String> invalidated = new HashSet<String>();
+        Deque<String> queue = new ArrayDeque<String>();
+        queue.add(templateId);
+        synchronized (dependents) {
+            while (!queue.isEmpty()) {
+                String id = queue.poll();
+                if (invalidated.add(id)) {
+                    Map<String, Template> templates = dependents.get(id);
+                    if (templates != null) {
+                        queue.addAll(templates.keySet());
+                    }
+                }
+            }
+        }
+
+        ComputingCache.KeyPredicate<String> predicate = new ComputingCache.KeyPredicate<String>() {
+            @Override
+            public boolean apply(String key) {
+                return invalidated.contains(key);
+            }
+        };
+        List<Optional<Mustache>> templates = new ArrayList<Optional<Mustache>>();
+        for (String id : invalidated) {
+            Optional<Mustache> mustache = templateCache.getIfPresent(id);
+            templates.add(mustache);
+            if (mustache != null && mustache.isPresent()
+                    && mustache.get() instanceof Template) {
+                removeDependents(id, (Template) mustache.get());
+            }
+        }
+        invalidateTemplates(templates);
+        templateCache.invalidate(predicate);
+        sourceCache.invalidate(predicate);
+        if (locatorMisses != null) {
+            // E.g. a new template was created
+            locatorMisses.invalidate(predicate);
+        }
+        if (refreshStates != null) {
+            refreshStates.keySet().removeAll(invalidated);
+            refreshedTemplates.keySet().removeAll(invalidated);
+        }
+        return invalidated;
+    }
+
+    /**
+     * Segments may hold a reference to a cached template until it's
+     * invalidated.
+     *
+     * @param templates
+     */
+    private void invalidateTemplates(
+            Iterable<Optional<Mustache>> templates) {
+        for (Optional<Mustache> mustache : templates) {
+            if (mustache != null && mustache.isPresent()
+                    && mustache.get() instanceof Template) {
+                ((Template) mustache.get()).invalidate();
+            }
+        }
     }
 
     private ComputingCache<String, Optional<Mustache>> buildTemplateCache() {
+        // Stale templates are refreshed in the background instead
+        final long expirationTimeout = refreshExecutor != null ? 0
+                : getExpirationTimeout();
         return buildCache("Template",
+                MustacheEngine.COMPUTING_CACHE_CONSUMER_ID,
                 new ComputingCache.Function<String, Optional<Mustache>>() {
                     @Override
                     public Optional<Mustache> compute(String key) {
-                        return Optional.fromNullable(locateAndParse(key));
+                        Mustache mustache;
+                        if (refreshExecutor != null) {
+                            mustache = locateAndParseRefreshable(key);
+                        } else {
+                            mustache = locateAndParse(key);
+                            if (expirationTimeout > 0
+                                    && mustache instanceof Template) {
+                                // The cache entry expires a bit later
+                                ((Template) mustache).setExpirationTime(System
+                                        .currentTimeMillis()
+                                        + expirationTimeout);
+                            }
+                        }
+                        if (mustache instanceof Template) {
+                            addDependents(key, (Template) mustache);
+                        }
+                        return Optional.fromNullable(mustache);
                     }
-                }, new ComputingCache.Listener<String>() {
+                }, new ComputingCache.RemovalListener<String, Optional<Mustache>>() {
+                    @Override
+                    public void entryRemoved(String key,
+                            Optional<Mustache> value, String cause) {
+                        logger.debug(
+                                "Removed template from cache [templateId: {}, cause: {}]",
+                                key, cause);
+                        EngineMetricsListeners.cacheEntryRemoved(
+                                metricsListeners,
+                                MustacheEngine.COMPUTING_CACHE_CONSUMER_ID,
+                                key, cause);
+                        if (value != null && value.isPresent()
+                                && value.get() instanceof Template) {
+                            templateRemoved(key, (Template) value.get());
+                        }
+                    }
+
                     @Override
                     public void entryInvalidated(String key, String cause) {
+                        // The cache does not provide the removed value
                         logger.debug(
                                 "Removed template from cache [templateId: {}, cause: {}]",
                                 key, cause);
+                        EngineMetricsListeners.cacheEntryRemoved(
+                                metricsListeners,
+                                MustacheEngine.COMPUTING_CACHE_CONSUMER_ID,
+                                key, cause);
+                        templateRemoved(key, null);
                     }
-                });
+                }, expirationTimeout);
+    }
+
+    /**
+     * Invalidate a template which is no longer cached, e.g. evicted because
+     * of the cache size limit, and drop the state held for the template.
+     *
+     * @param templateId
+     * @param template
+     *            The removed template, <code>null</code> if not known
+     */
+    private void templateRemoved(String templateId, Template template) {
+        if (template != null) {
+            // Segments must not keep using an evicted template
+            template.invalidate();
+        }
+        removeDependents(templateId, template);
+        if (refreshStates != null) {
+            RefreshState state = refreshStates.get(templateId);
+            // The state might already belong to a recompiled template
+            if (state != null
+                    && (template == null || state.template == template)) {
+                refreshStates.remove(templateId, state);
+            }
+        }
+    }
+
+    /**
+     * Record the reverse dependencies of a template which is being cached.
+     *
+     * @param templateId
+     * @param template
+     */
+    private void addDependents(String templateId, Template template) {
+        synchronized (dependents) {
+            for (String dependency : template.getDependencies()) {
+                Map<String, Template> templates = dependents.get(dependency);
+                if (templates == null) {
+                    templates = new HashMap<String, Template>();
+                    dependents.put(dependency, templates);
+                }
+                templates.put(templateId, template);
+            }
+        }
+    }
+
+    /**
+     * Drop the reverse dependencies of a template which is no longer cached.
+     *
+     * @param templateId
+     * @param template
+     *            The removed template, <code>null</code> if not known
+     */
+    private void removeDependents(String templateId, Template template) {
+        synchronized (dependents) {
+            if (template != null) {
+                for (String dependency : template.getDependencies()) {
+                    Map<String, Template> templates = dependents
+                            .get(dependency);
+                    // The entry might already belong to a recompiled template
+                    if (templates != null
+                            && templates.get(templateId) == template) {
+                        templates.remove(templateId);
+                        if (templates.isEmpty()) {
+                            dependents.remove(dependency);
+                        }
+                    }
+                }
+            } else {
+                // All the edges must be checked
+                for (Iterator<Map<String, Template>> iterator = dependents
+                        .values().iterator(); iterator.hasNext();) {
+                    Map<String, Template> templates = iterator.next();
+                    templates.remove(templateId);
+                    if (templates.isEmpty()) {
+                        iterator.remove();
+                    }
+                }
+            }
+        }
     }
 
     /**
      * Properties of the source cache are dependent on that of the template
      * cache.
      */
-    private ComputingCache<String, Optional<String>> buildSourceCache() {
-        return buildCache("Source",
-                new ComputingCache.Function<String, Optional<String>>() {
+    private ComputingCache<String, Optional<CharSequence>> buildSourceCache() {
+        final boolean offHeap = configuration
+                .getBooleanPropertyValue(EngineConfigurationKey.OFF_HEAP_SOURCE_CACHE);
+        if (offHeap) {
+            logger.info("Template sources are cached off-heap");
+        }
+        final OffHeapSource.Arena arena = offHeap ? new OffHeapSource.Arena()
+                : null;
+        return buildCache("Source", MustacheEngine.SOURCE_CACHE_CONSUMER_ID,
+                new ComputingCache.Function<String, Optional<CharSequence>>() {
                     @Override
-                    public Optional<String> compute(String key) {
-                        return Optional.fromNullable(locateAndRead(key));
+                    public Optional<CharSequence> compute(String key) {
+                        String source = locateAndRead(key);
+                        if (source == null) {
+                            return Optional.absent();
+                        }
+                        return Optional
+                                .<CharSequence> of(offHeap ? new OffHeapSource(
+                                        source, arena) : source);
                     }
                 }, new ComputingCache.Listener<String>() {
                     @Override
@@ -172,35 +614,231 @@ class DefaultMustacheEngine implements MustacheEngine {
                         logger.debug(
                                 "Removed template source from cache [templateId: {}, cause: {}]",
                                 key, cause);
+                        EngineMetricsListeners.cacheEntryRemoved(
+                                metricsListeners,
+                                MustacheEngine.SOURCE_CACHE_CONSUMER_ID, key,
+                                cause);
                     }
-                });
+                }, getExpirationTimeout());
     }
 
-    private <K, V> ComputingCache<K, V> buildCache(String name,
-            ComputingCache.Function<K, V> loader,
-            ComputingCache.Listener<K> listener) {
+    private List<LocatorStats> initLocators() {
+        if (configuration.getTemplateLocators() == null) {
+            return Collections.emptyList();
+        }
+        ImmutableList.Builder<LocatorStats> builder = ImmutableList.builder();
+        for (TemplateLocator locator : configuration.getTemplateLocators()) {
+            builder.add(new LocatorStats(locator));
+        }
+        return builder.build();
+    }
 
-        Long expirationTimeout = configuration
-                .getLongPropertyValue(EngineConfigurationKey.TEMPLATE_CACHE_EXPIRATION_TIMEOUT);
+    private ComputingCache<String, Set<TemplateLocator>> buildLocatorMissCache() {
+        long timeout = configuration
+                .getLongPropertyValue(EngineConfigurationKey.TEMPLATE_LOCATOR_MISS_CACHE_TIMEOUT);
+        if (timeout <= 0 || locators.isEmpty()) {
+            return null;
+        }
+        logger.info("Template locator misses cached for {} seconds", timeout);
+        return configuration.getComputingCacheFactory().create(
+                MustacheEngine.LOCATOR_MISS_CACHE_CONSUMER_ID,
+                new ComputingCache.Function<String, Set<TemplateLocator>>() {
+                    @Override
+                    public Set<TemplateLocator> compute(String key) {
+                        return Collections
+                                .newSetFromMap(new ConcurrentHashMap<TemplateLocator, Boolean>());
+                    }
+                }, timeout * 1000l, LOCATOR_MISS_CACHE_MAX_SIZE, null);
+    }
 
+    private <K, V> ComputingCache<K, V> buildCache(String name,
+            String consumerId, ComputingCache.Function<K, V> loader,
+            ComputingCache.Listener<K> listener, long expirationTimeout) {
         if (expirationTimeout > 0) {
             logger.info("{} cache expiration timeout set: {} seconds", name,
-                    expirationTimeout);
-            expirationTimeout = expirationTimeout * 1000l;
-        } else {
-            expirationTimeout = null;
+                    expirationTimeout / 1000l);
         }
-        return configuration.getComputingCacheFactory().create(
-                MustacheEngine.COMPUTING_CACHE_CONSUMER_ID, loader,
-                expirationTimeout, null, listener);
+        return configuration.getComputingCacheFactory().create(consumerId,
+                loader, expirationTimeout > 0 ? expirationTimeout : null,
+                null, listener);
+    }
+
+    /**
+     *
+     * @return the expiration timeout in milliseconds
+     */
+    private long getExpirationTimeout() {
+        return configuration
+                .getLongPropertyValue(EngineConfigurationKey.TEMPLATE_CACHE_EXPIRATION_TIMEOUT) * 1000l;
+    }
+
+    private ExecutorService initRefreshExecutor() {
+        if (!configuration
+                .getBooleanPropertyValue(EngineConfigurationKey.TEMPLATE_CACHE_BACKGROUND_REFRESH)
+                || configuration
+                        .getBooleanPropertyValue(EngineConfigurationKey.DEBUG_MODE)
+                || !configuration
+                        .getBooleanPropertyValue(EngineConfigurationKey.TEMPLATE_CACHE_ENABLED)) {
+            return null;
+        }
+        if (getExpirationTimeout() <= 0) {
+            logger.warn("Template cache background refresh ignored - no expiration timeout set");
+            return null;
+        }
+        ExecutorService executor = configuration.geExecutorService();
+        if (executor == null) {
+            // At most one thread which terminates when idle, i.e. an unused
+            // engine does not hold a thread
+            executor = new ThreadPoolExecutor(0, 1,
+                    REFRESH_THREAD_KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setDaemon(true)
+                            .setNameFormat("trimou-template-refresh-%d")
+                            .build());
+        }
+        logger.info("Template cache background refresh enabled");
+        return executor;
+    }
+
+    /**
+     * Submit a refresh task if the template is expired and not being
+     * refreshed already.
+     *
+     * @param templateId
+     * @param template
+     */
+    private void refreshIfNeeded(final String templateId, Template template) {
+        final RefreshState state = refreshStates.get(templateId);
+        if (state == null || state.template != template
+                || System.currentTimeMillis() < state.refreshTime
+                || !state.running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refreshExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    refresh(templateId, state);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            state.running.set(false);
+            logger.warn("Unable to submit the refresh task for " + templateId,
+                    e);
+        }
+    }
+
+    /**
+     * Locate the template and compare the source with the source of the stale
+     * template. Recompile and replace the stale template if needed.
+     *
+     * @param templateId
+     * @param state
+     */
+    private void refresh(String templateId, RefreshState state) {
+        try {
+            String source = null;
+            Reader reader = null;
+            try {
+                reader = locate(templateId);
+                if (reader != null) {
+                    source = readSource(reader);
+                }
+            } finally {
+                closeReader(reader, templateId);
+            }
+            if (source == null) {
+                // The template no longer exists
+                refreshStates.remove(templateId, state);
+            } else {
+                HashCode sourceHash = hashSource(source);
+                if (sourceHash.equals(state.sourceHash)) {
+                    logger.debug("Template not changed: {}", templateId);
+                    state.scheduleNextRefresh();
+                    return;
+                }
+                Mustache mustache = parse(templateId,
+                        new StringReader(source), true);
+                if (mustache instanceof Template) {
+                    refreshedTemplates.put(templateId, new RefreshState(
+                            (Template) mustache, sourceHash));
+                }
+            }
+            // Replace the stale template
+            final String id = templateId;
+            ComputingCache.KeyPredicate<String> predicate = new ComputingCache.KeyPredicate<String>() {
+                @Override
+                public boolean apply(String key) {
+                    return id.equals(key);
+                }
+            };
+            state.template.invalidate();
+            templateCache.invalidate(predicate);
+            sourceCache.invalidate(predicate);
+            if (source != null) {
+                templateCache.get(templateId);
+            }
+            logger.info("Template refreshed: {}", templateId);
+        } catch (Exception e) {
+            logger.warn("Unable to refresh the template " + templateId
+                    + " - the stale template is used", e);
+            state.scheduleNextRefresh();
+        } finally {
+            state.running.set(false);
+        }
+    }
+
+    /**
+     * Use the template recompiled in the background if available.
+     *
+     * @param templateId
+     * @return the template
+     */
+    private Mustache locateAndParseRefreshable(String templateId) {
+        RefreshState refreshed = refreshedTemplates.remove(templateId);
+        if (refreshed != null) {
+            refreshStates.put(templateId, refreshed);
+            return refreshed.template;
+        }
+        String source;
+        Reader reader = null;
+        try {
+            reader = locate(templateId);
+            if (reader == null) {
+                return null;
+            }
+            source = readSource(reader);
+        } finally {
+            closeReader(reader, templateId);
+        }
+        Mustache mustache = parse(templateId, new StringReader(source), true);
+        if (mustache instanceof Template) {
+            refreshStates.put(templateId, new RefreshState(
+                    (Template) mustache, hashSource(source)));
+        }
+        return mustache;
+    }
+
+    private HashCode hashSource(String source) {
+        return Hashing.murmur3_128().hashString(source, Charsets.UTF_8);
+    }
+
+    private long getNextRefreshTime() {
+        return System.currentTimeMillis() + getExpirationTimeout();
     }
 
     private void precompileTemplates() {
 
         Set<String> templateNames = new HashSet<String>();
 
-        for (TemplateLocator locator : configuration.getTemplateLocators()) {
-            templateNames.addAll(locator.getAllIdentifiers());
+        if (templateSnapshot != null && !templateSnapshot.isEmpty()) {
+            // Do not scan the locators
+            templateNames.addAll(templateSnapshot.getTemplateIds());
+        } else {
+            for (TemplateLocator locator : configuration
+                    .getTemplateLocators()) {
+                templateNames.addAll(locator.getAllIdentifiers());
+            }
         }
 
         for (String templateName : templateNames) {
@@ -208,29 +846,126 @@ class DefaultMustacheEngine implements MustacheEngine {
         }
     }
 
-    private Mustache parse(String templateId, Reader reader) {
+    private Mustache parse(String templateId, Reader reader,
+            boolean useSnapshot) {
         ParsingHandler handler = parsingHandlerFactory.createParsingHandler();
         reader = notifyListenersBeforeParsing(templateId, reader);
-        parserFactory.createParser(this).parse(templateId, reader, handler);
-        Mustache mustache = handler.getCompiledTemplate();
+        Mustache mustache;
+        int sourceLength;
+        try {
+            if (sharedTemplates != null) {
+                String source = readSource(reader);
+                sourceLength = source.length();
+                mustache = parseShared(templateId, source, useSnapshot,
+                        handler);
+            } else if (useSnapshot && templateSnapshot != null) {
+                String source = readSource(reader);
+                sourceLength = source.length();
+                mustache = compileSnapshot(templateId, source, handler);
+            } else {
+                CountingReader counting = new CountingReader(reader);
+                parserFactory.createParser(this).parse(templateId, counting,
+                        handler);
+                sourceLength = counting.getCount();
+                mustache = handler.getCompiledTemplate();
+            }
+        } catch (RuntimeException e) {
+            EngineMetricsListeners.parsingFailed(metricsListeners, templateId);
+            throw e;
+        }
+        if (mustache instanceof Template) {
+            ((Template) mustache).setSourceLength(sourceLength);
+        }
         notifyListenersAfterCompilation(mustache);
         return mustache;
     }
 
+    /**
+     * Reuse the compiled segment tree of a template with identical source if
+     * possible.
+     */
+    private Mustache parseShared(String templateId, String source,
+            boolean useSnapshot, ParsingHandler handler) {
+        HashCode sourceHash = hashSource(source);
+        RootSegment shared = sharedTemplates.get(sourceHash);
+        // The length of the source must match as well
+        if (shared != null
+                && shared.getTemplate().getSourceLength() == source.length()) {
+            logger.debug("Compiled template shared [templateId: {}, with: {}]",
+                    templateId, shared.getTemplate().getName());
+            return shared.getTemplate().share(
+                    configuration.getIdentifierGenerator().generate(
+                            Mustache.class), templateId);
+        }
+        Mustache mustache;
+        if (useSnapshot && templateSnapshot != null) {
+            mustache = compileSnapshot(templateId, source, handler);
+        } else {
+            parserFactory.createParser(this).parse(templateId,
+                    new StringReader(source), handler);
+            mustache = handler.getCompiledTemplate();
+        }
+        if (mustache instanceof Template) {
+            sharedTemplates.putIfAbsent(sourceHash,
+                    ((Template) mustache).getRootSegment());
+        }
+        return mustache;
+    }
+
+    private Mustache compileSnapshot(String templateId, String source,
+            ParsingHandler handler) {
+        try {
+            return templateSnapshot.compile(templateId, source, this,
+                    parserFactory, handler);
+        } catch (MustacheException e) {
+            if (!MustacheProblem.COMPILE_IO_ERROR.equals(e.getCode())) {
+                throw e;
+            }
+            // The corrupt entry is removed and the template is parsed again
+            logger.warn("Unable to compile template {} from snapshot: {}",
+                    templateId, e.getMessage());
+            return templateSnapshot.compile(templateId, source, this,
+                    parserFactory, parsingHandlerFactory.createParsingHandler());
+        }
+    }
+
+    private String readSource(Reader reader) {
+        try {
+            return CharStreams.toString(reader);
+        } catch (IOException e) {
+            throw new MustacheException(MustacheProblem.COMPILE_IO_ERROR, e);
+        }
+    }
+
     private Reader locate(String templateId) {
 
-        if (configuration.getTemplateLocators() == null
-                || configuration.getTemplateLocators().isEmpty()) {
+        if (locators.isEmpty()) {
             return null;
         }
 
         Reader reader = null;
+        Set<TemplateLocator> misses = locatorMisses != null ? locatorMisses
+                .getIfPresent(templateId) : null;
 
-        for (TemplateLocator locator : configuration.getTemplateLocators()) {
-            reader = locator.locate(templateId);
+        for (LocatorStats stats : locators) {
+            if (misses != null && misses.contains(stats.locator)) {
+                stats.cachedMisses.incrementAndGet();
+                continue;
+            }
+            long start = System.nanoTime();
+            reader = stats.locator.locate(templateId);
+            stats.locateTime.addAndGet(System.nanoTime() - start);
             if (reader != null) {
+                stats.hits.incrementAndGet();
                 break;
             }
+            stats.misses.incrementAndGet();
+            if (locatorMisses != null) {
+                if (misses == null) {
+                    misses = locatorMisses.get(templateId);
+                }
+                misses.add(stats.locator);
+            }
         }
         return reader;
     }
@@ -242,7 +977,7 @@ class DefaultMustacheEngine implements MustacheEngine {
             if (reader == null) {
                 return null;
             }
-            return parse(templateId, reader);
+            return parse(templateId, reader, true);
         } finally {
             closeReader(reader, templateId);
         }
@@ -301,7 +1036,22 @@ class DefaultMustacheEngine implements MustacheEngine {
 
     private Mustache getTemplateFromCache(String templateName) {
         try {
-            return templateCache.get(templateName).orNull();
+            Optional<Mustache> value = null;
+            if (metricsListeners != null) {
+                value = templateCache.getIfPresent(templateName);
+                EngineMetricsListeners.cacheAccessed(metricsListeners,
+                        MustacheEngine.COMPUTING_CACHE_CONSUMER_ID,
+                        templateName, value != null);
+            }
+            Mustache mustache = (value != null ? value : templateCache
+                    .get(templateName)).orNull();
+            if (mustache instanceof Template) {
+                ((Template) mustache).updateLastAccessTime();
+                if (refreshExecutor != null) {
+                    refreshIfNeeded(templateName, (Template) mustache);
+                }
+            }
+            return mustache;
         } catch (Exception e) {
             throw unwrapUncheckedExecutionException(e);
         }
@@ -309,7 +1059,16 @@ class DefaultMustacheEngine implements MustacheEngine {
 
     private String getSourceFromCache(String templateName) {
         try {
-            return sourceCache.get(templateName).orNull();
+            Optional<CharSequence> value = null;
+            if (metricsListeners != null) {
+                value = sourceCache.getIfPresent(templateName);
+                EngineMetricsListeners.cacheAccessed(metricsListeners,
+                        MustacheEngine.SOURCE_CACHE_CONSUMER_ID, templateName,
+                        value != null);
+            }
+            CharSequence source = (value != null ? value : sourceCache
+                    .get(templateName)).orNull();
+            return source != null ? source.toString() : null;
         } catch (Exception e) {
             throw unwrapUncheckedExecutionException(e);
         }
@@ -323,6 +1082,105 @@ class DefaultMustacheEngine implements MustacheEngine {
                 e.getCause());
     }
 
+    private static class LocatorStats {
+
+        private final TemplateLocator locator;
+
+        private final AtomicLong hits;
+
+        private final AtomicLong misses;
+
+        private final AtomicLong cachedMisses;
+
+        private final AtomicLong locateTime;
+
+        LocatorStats(TemplateLocator locator) {
+            this.locator = locator;
+            this.hits = new AtomicLong();
+            this.misses = new AtomicLong();
+            this.cachedMisses = new AtomicLong();
+            this.locateTime = new AtomicLong();
+        }
+
+        TemplateLocatorInfo toInfo() {
+            return new TemplateLocatorInfo(locator.toString(),
+                    locator.getPriority(), hits.get(), misses.get(),
+                    cachedMisses.get(), locateTime.get());
+        }
+
+    }
+
+    private class RefreshState {
+
+        private final Template template;
+
+        private final HashCode sourceHash;
+
+        private final AtomicBoolean running;
+
+        private volatile long refreshTime;
+
+        RefreshState(Template template, HashCode sourceHash) {
+            this.template = template;
+            this.sourceHash = sourceHash;
+            this.running = new AtomicBoolean(false);
+            scheduleNextRefresh();
+        }
+
+        /**
+         * Segments holding a reference to the template need to obtain the
+         * template from the cache after the refresh time so that the refresh
+         * is triggered.
+         */
+        void scheduleNextRefresh() {
+            refreshTime = getNextRefreshTime();
+            template.setExpirationTime(refreshTime);
+        }
+
+    }
+
+    /**
+     * Counts the characters read.
+     */
+    private static class CountingReader extends FilterReader {
+
+        private int count;
+
+        CountingReader(Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value != -1) {
+                count++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int value = super.read(cbuf, off, len);
+            if (value > 0) {
+                count += value;
+            }
+            return value;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long value = super.skip(n);
+            count += value;
+            return value;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+    }
+
     /**
      *
      * @author Martin Kouba
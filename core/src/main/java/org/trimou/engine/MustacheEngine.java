@@ -15,6 +15,8 @@
  */
 package org.trimou.engine;
 
+import java.util.List;
+
 import org.trimou.Mustache;
 import org.trimou.engine.cache.ComputingCache;
 import org.trimou.engine.config.Configuration;
@@ -31,11 +33,30 @@ import org.trimou.engine.locator.TemplateLocator;
 public interface MustacheEngine {
 
     /**
+     * The consumer id of the template cache.
+     *
      * @see ComputingCache
      */
     public static final String COMPUTING_CACHE_CONSUMER_ID = MustacheEngine.class
             .getName();
 
+    /**
+     * The consumer id of the template source cache.
+     *
+     * @see ComputingCache
+     */
+    public static final String SOURCE_CACHE_CONSUMER_ID = COMPUTING_CACHE_CONSUMER_ID
+            + ".source";
+
+    /**
+     * The consumer id of the template locator miss cache.
+     *
+     * @see ComputingCache
+     * @see org.trimou.engine.config.EngineConfigurationKey#TEMPLATE_LOCATOR_MISS_CACHE_TIMEOUT
+     */
+    public static final String LOCATOR_MISS_CACHE_CONSUMER_ID = COMPUTING_CACHE_CONSUMER_ID
+            + ".locatorMiss";
+
     /**
      * Get the compiled template with the given id.
      *
@@ -83,4 +104,40 @@ public interface MustacheEngine {
      */
     public void invalidateTemplateCache();
 
+    /**
+     * Invalidate the cache for the given template and all the templates which
+     * depend on it, either directly or transitively, i.e. include the template
+     * via partial, extend it, or include/embed it via
+     * {@link org.trimou.handlebars.IncludeHelper} or
+     * {@link org.trimou.handlebars.EmbedHelper} and a string literal. Other
+     * templates remain cached.
+     *
+     * @param templateId
+     *            The template identifier
+     * @see org.trimou.engine.parser.Template#getDependencies()
+     */
+    public void invalidateTemplate(String templateId);
+
+    /**
+     * The info is useful e.g. to set the cache limits or to find templates
+     * whose compiled form is unreasonably large. Note that the compilation is
+     * not triggered.
+     *
+     * @return the immutable list of info about all the templates currently held
+     *         in the template and source cache, sorted by the retained size
+     *         estimate in descending order; an empty list if the cache is
+     *         disabled
+     */
+    public List<CachedTemplateInfo> getTemplateCacheInfo();
+
+    /**
+     * The info is useful e.g. to reorder the template locators by the hit
+     * rate.
+     *
+     * @return the immutable list of lookup statistics of all the template
+     *         locators, in the order the locators are asked
+     * @see org.trimou.engine.config.EngineConfigurationKey#TEMPLATE_LOCATOR_MISS_CACHE_TIMEOUT
+     */
+    public List<TemplateLocatorInfo> getTemplateLocatorInfo();
+
 }
@@ -43,6 +43,7 @@ import org.trimou.engine.interpolation.MissingValueHandler;
 import org.trimou.engine.listener.MustacheListener;
 import org.trimou.engine.locale.LocaleSupport;
 import org.trimou.engine.locator.TemplateLocator;
+import org.trimou.engine.parser.TemplateSnapshot;
 import org.trimou.engine.resolver.Resolver;
 import org.trimou.engine.text.TextSupport;
 import org.trimou.handlebars.Helper;
@@ -108,6 +109,8 @@ public final class MustacheEngineBuilder implements
 
     private LiteralSupport literalSupport;
 
+    private TemplateSnapshot templateSnapshot;
+
     /**
      * Don't create a new instance.
      *
@@ -475,6 +478,27 @@ public final class MustacheEngineBuilder implements
         return this;
     }
 
+    /**
+     * Set the template snapshot. If set, the engine attempts to compile the
+     * located templates from the snapshot instead of parsing the template
+     * source. Stale entries are replaced automatically. If
+     * {@link org.trimou.engine.config.EngineConfigurationKey#PRECOMPILE_ALL_TEMPLATES}
+     * is set to <code>true</code> and the snapshot is not empty, only the
+     * templates contained in the snapshot are precompiled, i.e. the template
+     * locators are not asked for all available identifiers.
+     *
+     * @param templateSnapshot
+     * @return self
+     * @see TemplateSnapshot
+     */
+    public MustacheEngineBuilder setTemplateSnapshot(
+            TemplateSnapshot templateSnapshot) {
+        Checker.checkArgumentNotNull(templateSnapshot);
+        checkNotBuilt();
+        this.templateSnapshot = templateSnapshot;
+        return this;
+    }
+
     /**
      *
      * @return new instance of builder
@@ -554,6 +578,10 @@ public final class MustacheEngineBuilder implements
         return literalSupport;
     }
 
+    public TemplateSnapshot getTemplateSnapshot() {
+        return templateSnapshot;
+    }
+
     private void checkNotBuilt() {
         if (isBuilt) {
             throw new IllegalStateException(
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine;
+
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Charsets;
+
+/**
+ * A template source held in a direct {@link ByteBuffer}, UTF-8 encoded. The
+ * source is decoded on demand, i.e. every {@link #toString()} invocation
+ * creates a new {@link String}.
+ *
+ * <p>
+ * The sources are not allocated one by one but sliced out of the shared slabs
+ * of an {@link Arena}, only a large source gets a dedicated buffer. A slab is
+ * released once all the sources sliced out of it are garbage collected.
+ * </p>
+ *
+ * @author Martin Kouba
+ * @see org.trimou.engine.config.EngineConfigurationKey#OFF_HEAP_SOURCE_CACHE
+ */
+final class OffHeapSource implements CharSequence {
+
+    private final ByteBuffer buffer;
+
+    private final int length;
+
+    /**
+     *
+     * @param source
+     * @param arena
+     */
+    OffHeapSource(String source, Arena arena) {
+        this.buffer = arena.allocate(Charsets.UTF_8.encode(source));
+        this.length = source.length();
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    /**
+     *
+     * @return the number of bytes held off-heap
+     */
+    int getBytes() {
+        return buffer.capacity();
+    }
+
+    @Override
+    public String toString() {
+        // The buffer is read-only, a duplicate is safe to use concurrently
+        return Charsets.UTF_8.decode(buffer.duplicate()).toString();
+    }
+
+    /**
+     * A simple bump allocator. The unused space at the end of a full slab is
+     * wasted, therefore only the sources smaller than
+     * {@link #MAX_SLICE_SIZE} are sliced out of a slab.
+     */
+    static final class Arena {
+
+        static final int SLAB_SIZE = 256 * 1024;
+
+        static final int MAX_SLICE_SIZE = SLAB_SIZE / 8;
+
+        private ByteBuffer slab;
+
+        /**
+         *
+         * @param encoded
+         * @return a read-only buffer holding the given bytes
+         */
+        synchronized ByteBuffer allocate(ByteBuffer encoded) {
+            int size = encoded.remaining();
+            if (size > MAX_SLICE_SIZE) {
+                ByteBuffer direct = ByteBuffer.allocateDirect(size);
+                direct.put(encoded);
+                direct.flip();
+                return direct.asReadOnlyBuffer();
+            }
+            if (slab == null || slab.remaining() < size) {
+                slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            }
+            int start = slab.position();
+            slab.put(encoded);
+            ByteBuffer slice = slab.duplicate();
+            slice.position(start);
+            slice.limit(start + size);
+            return slice.slice().asReadOnlyBuffer();
+        }
+
+    }
+
+}
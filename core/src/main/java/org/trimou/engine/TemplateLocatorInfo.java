@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Lookup statistics of a template locator.
+ *
+ * @author Martin Kouba
+ * @see MustacheEngine#getTemplateLocatorInfo()
+ */
+public final class TemplateLocatorInfo {
+
+    private final String locator;
+
+    private final int priority;
+
+    private final long hits;
+
+    private final long misses;
+
+    private final long cachedMisses;
+
+    private final long locateTime;
+
+    /**
+     *
+     * @param locator
+     * @param priority
+     * @param hits
+     * @param misses
+     * @param cachedMisses
+     * @param locateTime
+     */
+    @ConstructorProperties({ "locator", "priority", "hits", "misses",
+            "cachedMisses", "locateTime" })
+    public TemplateLocatorInfo(String locator, int priority, long hits,
+            long misses, long cachedMisses, long locateTime) {
+        this.locator = locator;
+        this.priority = priority;
+        this.hits = hits;
+        this.misses = misses;
+        this.cachedMisses = cachedMisses;
+        this.locateTime = locateTime;
+    }
+
+    /**
+     *
+     * @return the string representation of the locator
+     */
+    public String getLocator() {
+        return locator;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     *
+     * @return the number of templates located
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     *
+     * @return the number of lookups the locator was not able to locate the
+     *         template for
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     *
+     * @return the number of lookups skipped because of a cached miss
+     * @see org.trimou.engine.config.EngineConfigurationKey#TEMPLATE_LOCATOR_MISS_CACHE_TIMEOUT
+     */
+    public long getCachedMisses() {
+        return cachedMisses;
+    }
+
+    /**
+     *
+     * @return the total time spent in the locator (in nanoseconds)
+     */
+    public long getLocateTime() {
+        return locateTime;
+    }
+
+    /**
+     *
+     * @return the ratio of hits to all the lookups performed by the locator,
+     *         or <code>0</code> if no lookup was performed yet
+     */
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return lookups > 0 ? (double) hits / lookups : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String
+                .format("TemplateLocatorInfo [locator: %s, priority: %s, hits: %s, misses: %s, cachedMisses: %s, locateTime: %s]",
+                        locator, priority, hits, misses, cachedMisses,
+                        locateTime);
+    }
+
+}
@@ -117,4 +117,29 @@ public interface ComputingCache<K, V> {
 
     }
 
+    /**
+     * A listener which is also notified about the removed value. If the
+     * implementation supports this listener,
+     * {@link #entryRemoved(Object, Object, String)} is invoked instead of
+     * {@link #entryInvalidated(Object, String)}.
+     *
+     * @param <K>
+     *            The key
+     * @param <V>
+     *            The value
+     */
+    interface RemovalListener<K, V> extends Listener<K> {
+
+        /**
+         *
+         * @param key
+         * @param value
+         *            The removed value, may be <code>null</code> if already
+         *            garbage collected
+         * @param cause
+         */
+        void entryRemoved(K key, V value, String cause);
+
+    }
+
 }
\ No newline at end of file
@@ -56,9 +56,17 @@ public class DefaultComputingCacheFactory extends AbstractConfigurationAware
         if (listener != null) {
             builder.removalListener(new RemovalListener<K, V>() {
                 @Override
+                @SuppressWarnings("unchecked")
                 public void onRemoval(RemovalNotification<K, V> notification) {
-                    listener.entryInvalidated(notification.getKey(),
-                            notification.getCause().toString());
+                    if (listener instanceof ComputingCache.RemovalListener) {
+                        ((ComputingCache.RemovalListener<K, V>) listener)
+                                .entryRemoved(notification.getKey(),
+                                        notification.getValue(),
+                                        notification.getCause().toString());
+                    } else {
+                        listener.entryInvalidated(notification.getKey(),
+                                notification.getCause().toString());
+                    }
                 }
             });
         }
@@ -124,7 +124,115 @@ public enum EngineConfigurationKey implements ConfigurationKey {
      * If set to <code>true</code> the evaluation of simple variables, e.g.
      * <code>{{.}}</code> or <code>{{foo}}</code>, is optimized.
      */
-    RESOLVER_HINTS_ENABLED(true), ;
+    RESOLVER_HINTS_ENABLED(true),
+    /**
+     * If set to <code>true</code> the content of section and inverted section
+     * segments is not compiled until first needed, e.g. when the section is
+     * rendered for the first time. This may significantly reduce the
+     * compilation time and memory footprint of large templates with many
+     * branches which are rarely rendered. On the other hand, some compilation
+     * problems (e.g. invalid helper definition) are not detected until the
+     * section is rendered.
+     */
+    LAZY_SECTION_COMPILATION(false),
+    /**
+     * If set to <code>true</code> the compiled segments use a more compact
+     * representation, e.g. the tag content and key parts are interned across
+     * all the templates. This may considerably reduce the memory footprint if
+     * there are many similar templates. On the other hand, the compilation
+     * might be a little slower.
+     */
+    COMPACT_SEGMENTS(false),
+    /**
+     * If set to <code>true</code> and the
+     * {@link #TEMPLATE_CACHE_EXPIRATION_TIMEOUT} is set, an expired template
+     * is not removed from the template cache but refreshed in the background
+     * instead. In the meantime, the stale template is used. The template is
+     * only recompiled if the source has changed. Note that the
+     * {@link java.util.concurrent.ExecutorService} set via
+     * {@link org.trimou.engine.MustacheEngineBuilder#setExecutorService(java.util.concurrent.ExecutorService)}
+     * is used to execute the refresh tasks, if present.
+     */
+    TEMPLATE_CACHE_BACKGROUND_REFRESH(false),
+    /**
+     * If set to <code>true</code> the templates with identical source share
+     * the compiled segment tree. The sources are compared by a 128-bit hash
+     * and length, the sources themselves are not retained.
+     * Templates still have distinct names, generated ids and root segments.
+     * The segments of a shared tree refer to the template compiled first, the
+     * actually rendered template is resolved during rendering (e.g. in error
+     * messages and profiling listeners).
+     */
+    SHARE_IDENTICAL_TEMPLATES(false),
+    /**
+     * If set to <code>true</code> the template sources (e.g. used by
+     * {@link org.trimou.handlebars.EmbedHelper}) are cached off-heap in direct
+     * byte buffers, UTF-8 encoded. A source is decoded every time it's
+     * obtained from the cache. The small sources share larger buffers (slabs)
+     * which are only released once all the sources they hold are evicted.
+     * Note that the amount of direct memory might be limited, see also
+     * <code>-XX:MaxDirectMemorySize</code>.
+     */
+    OFF_HEAP_SOURCE_CACHE(false),
+    /**
+     * The timeout in seconds for which a template locator is not asked again
+     * for a template it was not able to locate. Zero and negative values mean
+     * no caching of misses. The misses are cached even if the template cache
+     * is disabled or the debug mode is enabled, i.e. a template created later
+     * might not be found until the timeout expires. A template invalidation
+     * removes the cached misses too.
+     *
+     * @see org.trimou.engine.MustacheEngine#getTemplateLocatorInfo()
+     */
+    TEMPLATE_LOCATOR_MISS_CACHE_TIMEOUT(0l),
+    /**
+     * If set to a positive value, the buffers used when rendering a template
+     * to a string (see {@link org.trimou.Mustache#render(Object)}) and when
+     * processing lambdas are reused per thread and engine. The value
+     * represents the max capacity (in characters) of a buffer retained for
+     * reuse, i.e. a buffer which grows larger is discarded. Zero and negative
+     * values mean no reuse.
+     *
+     * @see org.trimou.util.StringBuilderPool
+     */
+    RENDER_BUFFER_MAX_CAPACITY(0),
+    /**
+     * The max number of characters written by a single rendering, including
+     * the output of asynchronous helpers. Zero and negative values mean no
+     * limit.
+     *
+     * @see org.trimou.exception.MustacheProblem#RENDER_LIMIT_EXCEEDED
+     */
+    RENDER_OUTPUT_LIMIT(0l),
+    /**
+     * The max number of iterations within a single rendering. Every iteration
+     * of a section and every execution of a block helper content counts, i.e.
+     * every {@link org.trimou.handlebars.Options#fn()} invocation - not only
+     * an iteration of the each helper but also the content of the if, with
+     * and unless helpers. Zero and negative values mean no limit.
+     *
+     * @see org.trimou.exception.MustacheProblem#RENDER_LIMIT_EXCEEDED
+     */
+    RENDER_ITERATION_LIMIT(0l),
+    /**
+     * The max depth of nested template invocations (partials, template
+     * inheritance, etc.) within a single rendering. Unlike
+     * {@link #TEMPLATE_RECURSIVE_INVOCATION_LIMIT} all the templates are
+     * counted, not only the recursive invocations. Zero and negative values
+     * mean no limit.
+     *
+     * @see org.trimou.exception.MustacheProblem#RENDER_LIMIT_EXCEEDED
+     */
+    RENDER_DEPTH_LIMIT(0),
+    /**
+     * The max duration of a single rendering in milliseconds. The deadline is
+     * checked before a section content is executed, i.e. a long-running
+     * resolver or helper is not interrupted. Zero and negative values mean no
+     * limit.
+     *
+     * @see org.trimou.exception.MustacheProblem#RENDER_LIMIT_EXCEEDED
+     */
+    RENDER_TIMEOUT(0l), ;
 
     private Object defaultValue;
 
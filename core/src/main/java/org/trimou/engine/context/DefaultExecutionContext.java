@@ -21,16 +21,20 @@ import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.trimou.engine.config.Configuration;
-import org.trimou.engine.config.EngineConfigurationKey;
+import org.trimou.engine.listener.EngineMetricsListener;
+import org.trimou.engine.listener.EngineMetricsListeners;
 import org.trimou.engine.parser.Template;
 import org.trimou.engine.resolver.EnhancedResolver;
 import org.trimou.engine.resolver.EnhancedResolver.Hint;
 import org.trimou.engine.resolver.Placeholder;
 import org.trimou.engine.resolver.Resolver;
+import org.trimou.engine.segment.Origin;
 import org.trimou.engine.segment.Segment;
 import org.trimou.exception.MustacheException;
 import org.trimou.exception.MustacheProblem;
 
+import com.google.common.collect.ImmutableMap;
+
 /**
  * A default implementation.
  *
@@ -46,34 +50,42 @@ final class DefaultExecutionContext implements ExecutionContext {
 
     protected final Template templateInvocation;
 
-    protected final int invocationLimitCounter;
+    protected final TemplateInvocations invocations;
 
     protected final Map<String, Segment> definingSections;
 
     protected final Resolver[] resolvers;
 
+    protected final RenderingBudget budget;
+
+    protected final EngineMetricsListener[] metricsListeners;
+
     /**
      *
      * @param parent
      * @param configuration
      * @param contextObject
      * @param templateInvocation
-     * @param templateInvocations
-     * @param invocationLimitCounter
+     * @param invocations
      * @param definingSections
      * @param resolvers
+     * @param budget
+     * @param metricsListeners
      */
     DefaultExecutionContext(DefaultExecutionContext parent,
             Configuration configuration, Object contextObject,
-            Template templateInvocation, int invocationLimitCounter,
-            Map<String, Segment> definingSections, Resolver[] resolvers) {
+            Template templateInvocation, TemplateInvocations invocations,
+            Map<String, Segment> definingSections, Resolver[] resolvers,
+            RenderingBudget budget, EngineMetricsListener[] metricsListeners) {
         this.parent = parent;
         this.configuration = configuration;
         this.contextObject = contextObject;
         this.templateInvocation = templateInvocation;
-        this.invocationLimitCounter = invocationLimitCounter;
+        this.invocations = invocations;
         this.definingSections = definingSections;
         this.resolvers = resolvers;
+        this.budget = budget;
+        this.metricsListeners = metricsListeners;
     }
 
     @Override
@@ -131,7 +143,8 @@ final class DefaultExecutionContext implements ExecutionContext {
     @Override
     public ExecutionContext setContextObject(Object object) {
         return new DefaultExecutionContext(this, configuration, object, null,
-                invocationLimitCounter, null, resolvers);
+                invocations, definingSections, resolvers, budget,
+                metricsListeners);
     }
 
     @Override
@@ -147,45 +160,54 @@ final class DefaultExecutionContext implements ExecutionContext {
 
     @Override
     public ExecutionContext setTemplateInvocation(Template template) {
-        if (invocationLimitCounter < 0
-                && getTemplateInvocations(template) > configuration
-                        .getIntegerPropertyValue(EngineConfigurationKey.TEMPLATE_RECURSIVE_INVOCATION_LIMIT)) {
+        int count = invocations.getCount(template);
+        if (count > invocations.getLimit()) {
             throw new MustacheException(
                     MustacheProblem.RENDER_TEMPLATE_INVOCATION_RECURSIVE_LIMIT_EXCEEDED,
                     "Recursive invocation limit exceeded [limit: %s, level: %s, template: %s]",
-                    configuration
-                            .getIntegerPropertyValue(EngineConfigurationKey.TEMPLATE_RECURSIVE_INVOCATION_LIMIT),
-                    invocationLimitCounter, templateInvocation);
+                    invocations.getLimit(), count, templateInvocation);
+        }
+        if (budget != null) {
+            budget.checkDepth(invocations.getDepth() + 1, template);
         }
         return new DefaultExecutionContext(this, configuration, null, template,
-                invocationLimitCounter - 1, null, resolvers);
+                invocations.add(template), definingSections, resolvers, budget,
+                metricsListeners);
     }
 
     @Override
     public ExecutionContext setDefiningSections(Iterable<Segment> segments) {
-        Map<String, Segment> definingSections = null;
+        Map<String, Segment> merged = null;
         for (Segment segment : segments) {
             if (getDefiningSection(segment.getText()) == null) {
-                if (definingSections == null) {
-                    definingSections = new HashMap<String, Segment>();
+                if (merged == null) {
+                    merged = definingSections != null ? new HashMap<String, Segment>(
+                            definingSections) : new HashMap<String, Segment>();
                 }
-                definingSections.put(segment.getText(), segment);
+                merged.put(segment.getText(), segment);
             }
         }
+        return setAllDefiningSections(merged != null ? ImmutableMap
+                .copyOf(merged) : definingSections);
+    }
+
+    @Override
+    public ExecutionContext setAllDefiningSections(
+            Map<String, Segment> definingSections) {
         return new DefaultExecutionContext(this, configuration, null, null,
-                invocationLimitCounter, definingSections, resolvers);
+                invocations, definingSections, resolvers, budget,
+                metricsListeners);
+    }
+
+    @Override
+    public Map<String, Segment> getDefiningSections() {
+        return definingSections;
     }
 
     @Override
     public Segment getDefiningSection(String name) {
-        Segment section = null;
-        if (definingSections != null) {
-            section = definingSections.get(name);
-        }
-        if (section == null && parent != null) {
-            section = parent.getDefiningSection(name);
-        }
-        return section;
+        // The map contains all the defining sections, no need to ask parent
+        return definingSections != null ? definingSections.get(name) : null;
     }
 
     @Override
@@ -193,15 +215,24 @@ final class DefaultExecutionContext implements ExecutionContext {
         return parent;
     }
 
-    private int getTemplateInvocations(Template template) {
-        int invocations = 0;
-        if (templateInvocation != null && templateInvocation.equals(template)) {
-            invocations++;
-        }
-        if (parent != null) {
-            invocations += parent.getTemplateInvocations(template);
-        }
-        return invocations;
+    @Override
+    public Origin getOrigin(Segment segment) {
+        Origin origin = segment.getOrigin();
+        Template template = invocations.getTemplate(origin.getTemplate());
+        return template != null && template != origin.getTemplate() ? origin
+                .withTemplate(template) : origin;
+    }
+
+    @Override
+    public ExecutionContext setRenderingBudget(RenderingBudget budget) {
+        return new DefaultExecutionContext(this, configuration, null, null,
+                invocations, definingSections, resolvers, budget,
+                metricsListeners);
+    }
+
+    @Override
+    public RenderingBudget getRenderingBudget() {
+        return budget;
     }
 
     /**
@@ -221,20 +252,28 @@ final class DefaultExecutionContext implements ExecutionContext {
     private Object resolveLeadingContextObject(String name, ValueWrapper value,
             AtomicReference<Hint> hintRef) {
 
+        Hint hint = hintRef != null ? hintRef.get() : null;
         Object leading = resolveContextObject(name, value, hintRef);
 
         if (leading == null) {
             // Leading context object not found - try to resolve context
             // unrelated objects (JNDI lookup, CDI, etc.)
-            Hint hint = hintRef != null ? hintRef.get() : null;
+            hint = hintRef != null ? hintRef.get() : null;
             if (hint != null) {
                 leading = hint.resolve(null, name, value);
+                if (leading != null) {
+                    value.setResolvedByHint();
+                }
             }
             if (leading == null) {
                 leading = resolve(null, name, value, hint == null
                         && hintRef != null);
             }
         }
+        if (hint != null) {
+            EngineMetricsListeners.hintUsed(metricsListeners,
+                    value.isResolvedByHint());
+        }
         return leading;
     }
 
@@ -247,6 +286,9 @@ final class DefaultExecutionContext implements ExecutionContext {
             Hint hint = hintRef != null ? hintRef.get() : null;
             if (hint != null) {
                 leading = hint.resolve(contextObject, name, value);
+                if (leading != null) {
+                    value.setResolvedByHint();
+                }
             }
             if (leading == null) {
                 leading = resolve(contextObject, name, value, hint == null
@@ -265,6 +307,8 @@ final class DefaultExecutionContext implements ExecutionContext {
         for (int i = 0; i < resolvers.length; i++) {
             resolved = resolvers[i].resolve(contextObject, name, value);
             if (resolved != null) {
+                EngineMetricsListeners.resolverHit(metricsListeners,
+                        resolvers[i]);
                 if (createHint) {
                     // Initialize a new hint if possible
                     Resolver resolver = resolvers[i];
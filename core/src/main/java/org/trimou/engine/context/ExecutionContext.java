@@ -15,12 +15,14 @@
  */
 package org.trimou.engine.context;
 
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.trimou.annotations.Internal;
 import org.trimou.engine.parser.Template;
 import org.trimou.engine.resolver.EnhancedResolver.Hint;
 import org.trimou.engine.segment.ExtendSegment;
+import org.trimou.engine.segment.Origin;
 import org.trimou.engine.segment.Segment;
 
 /**
@@ -80,6 +82,27 @@ public interface ExecutionContext {
      */
     ExecutionContext setDefiningSections(Iterable<Segment> segments);
 
+    /**
+     * Unlike {@link #setDefiningSections(Iterable)} the given map replaces
+     * all the defining sections associated with the context, i.e. it must
+     * already contain the sections returned by {@link #getDefiningSections()}.
+     *
+     * @param definingSections
+     *            The immutable map of all defining sections
+     * @return a new child execution context
+     * @see ExtendSegment
+     */
+    ExecutionContext setAllDefiningSections(
+            Map<String, Segment> definingSections);
+
+    /**
+     *
+     * @return the immutable map of all defining sections associated with the
+     *         context or <code>null</code> if there are no such sections
+     * @see ExtendSegment
+     */
+    Map<String, Segment> getDefiningSections();
+
     /**
      * @param name
      * @return the defining section with the specified name or <code>null</code>
@@ -94,4 +117,30 @@ public interface ExecutionContext {
      */
     ExecutionContext getParent();
 
+    /**
+     * The segments of a shared compiled tree refer to the template the tree
+     * was compiled for, see also
+     * {@link org.trimou.engine.config.EngineConfigurationKey#SHARE_IDENTICAL_TEMPLATES}
+     * .
+     *
+     * @param segment
+     * @return the origin of the given segment within the template actually
+     *         rendered
+     */
+    Origin getOrigin(Segment segment);
+
+    /**
+     *
+     * @param budget
+     * @return a new child context with the given rendering budget
+     */
+    ExecutionContext setRenderingBudget(RenderingBudget budget);
+
+    /**
+     *
+     * @return the budget of the current rendering or <code>null</code> if no
+     *         limits are set
+     */
+    RenderingBudget getRenderingBudget();
+
 }
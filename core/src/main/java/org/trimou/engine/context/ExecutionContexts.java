@@ -17,6 +17,8 @@ package org.trimou.engine.context;
 
 import org.trimou.engine.config.Configuration;
 import org.trimou.engine.config.EngineConfigurationKey;
+import org.trimou.engine.listener.EngineMetricsListener;
+import org.trimou.engine.listener.EngineMetricsListeners;
 import org.trimou.engine.resolver.Resolver;
 
 /**
@@ -32,15 +34,32 @@ public final class ExecutionContexts {
     */
    public static ExecutionContext newGlobalExecutionContext(
            Configuration configuration) {
+       return newGlobalExecutionContext(configuration,
+               EngineMetricsListeners.from(configuration));
+   }
+
+   /**
+    *
+    * @param configuration
+    * @param metricsListeners
+    *            The listeners interested in metrics, may be <code>null</code>
+    * @return a new global execution context for the given configuration
+    * @see EngineMetricsListeners#from(Configuration)
+    */
+   public static ExecutionContext newGlobalExecutionContext(
+           Configuration configuration,
+           EngineMetricsListener[] metricsListeners) {
        return new DefaultExecutionContext(
                null,
                configuration,
                configuration.getGlobalData(),
                null,
-               configuration
-                       .getIntegerPropertyValue(EngineConfigurationKey.TEMPLATE_RECURSIVE_INVOCATION_LIMIT),
+               new TemplateInvocations(
+                       configuration
+                               .getIntegerPropertyValue(EngineConfigurationKey.TEMPLATE_RECURSIVE_INVOCATION_LIMIT)),
                null, configuration.getResolvers().toArray(
-                       new Resolver[configuration.getResolvers().size()]));
+                       new Resolver[configuration.getResolvers().size()]),
+               null, metricsListeners);
    }
 
 }
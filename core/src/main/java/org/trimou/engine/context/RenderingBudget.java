@@ -0,0 +1,227 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine.context;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.trimou.annotations.Internal;
+import org.trimou.engine.config.Configuration;
+import org.trimou.engine.config.EngineConfigurationKey;
+import org.trimou.engine.segment.Segment;
+import org.trimou.exception.MustacheException;
+import org.trimou.exception.MustacheProblem;
+
+/**
+ * The limits of a single rendering. If a limit is exceeded the rendering is
+ * aborted with {@link MustacheProblem#RENDER_LIMIT_EXCEEDED}.
+ *
+ * <p>
+ * An instance obtained via {@link #from(Configuration)} only holds the
+ * configured limits, {@link #start()} must be used to obtain the budget of a
+ * particular rendering. The budget is shared by all the execution contexts of
+ * the rendering (including the asynchronous helpers) and is thread-safe.
+ * </p>
+ *
+ * @author Martin Kouba
+ * @see EngineConfigurationKey#RENDER_OUTPUT_LIMIT
+ * @see EngineConfigurationKey#RENDER_ITERATION_LIMIT
+ * @see EngineConfigurationKey#RENDER_DEPTH_LIMIT
+ * @see EngineConfigurationKey#RENDER_TIMEOUT
+ */
+@Internal
+public final class RenderingBudget {
+
+    private final long outputLimit;
+
+    private final long iterationLimit;
+
+    private final int depthLimit;
+
+    private final long timeout;
+
+    private final long deadline;
+
+    private final AtomicLong iterations;
+
+    private final AtomicLong asyncOutput;
+
+    /**
+     *
+     * @param configuration
+     * @return the limits of the given configuration or <code>null</code> if
+     *         no limit is set
+     */
+    public static RenderingBudget from(Configuration configuration) {
+        long outputLimit = configuration
+                .getLongPropertyValue(EngineConfigurationKey.RENDER_OUTPUT_LIMIT);
+        long iterationLimit = configuration
+                .getLongPropertyValue(EngineConfigurationKey.RENDER_ITERATION_LIMIT);
+        int depthLimit = configuration
+                .getIntegerPropertyValue(EngineConfigurationKey.RENDER_DEPTH_LIMIT);
+        long timeout = configuration
+                .getLongPropertyValue(EngineConfigurationKey.RENDER_TIMEOUT);
+        if (outputLimit <= 0 && iterationLimit <= 0 && depthLimit <= 0
+                && timeout <= 0) {
+            return null;
+        }
+        return new RenderingBudget(outputLimit, iterationLimit, depthLimit,
+                TimeUnit.MILLISECONDS.toNanos(timeout), 0);
+    }
+
+    private RenderingBudget(long outputLimit, long iterationLimit,
+            int depthLimit, long timeout, long deadline) {
+        this.outputLimit = outputLimit;
+        this.iterationLimit = iterationLimit;
+        this.depthLimit = depthLimit;
+        this.timeout = timeout;
+        this.deadline = deadline;
+        this.iterations = new AtomicLong();
+        this.asyncOutput = new AtomicLong();
+    }
+
+    /**
+     *
+     * @return a new budget for a rendering which starts now
+     */
+    public RenderingBudget start() {
+        return new RenderingBudget(outputLimit, iterationLimit, depthLimit,
+                timeout, timeout > 0 ? System.nanoTime() + timeout : 0);
+    }
+
+    /**
+     *
+     * @param appendable
+     * @return the appendable which enforces the output limit
+     */
+    public Appendable limitOutput(Appendable appendable) {
+        return outputLimit > 0 ? new LimitedAppendable(appendable, outputLimit)
+                : appendable;
+    }
+
+    /**
+     * The output of an asynchronous helper is buffered and only written to the
+     * limited appendable when the rendering is finished. Therefore, it's
+     * also counted separately while being buffered so that a runaway
+     * asynchronous helper is aborted early.
+     *
+     * @param chars
+     *            The number of characters buffered
+     */
+    public void asyncOutput(int chars) {
+        if (outputLimit > 0 && asyncOutput.addAndGet(chars) > outputLimit) {
+            throw new MustacheException(MustacheProblem.RENDER_LIMIT_EXCEEDED,
+                    "Output limit exceeded [limit: %s]", outputLimit);
+        }
+    }
+
+    /**
+     * Record the next iteration, e.g. of a section, and check the deadline.
+     *
+     * @param segment
+     * @param context
+     */
+    public void iteration(Segment segment, ExecutionContext context) {
+        if (iterationLimit > 0 && iterations.incrementAndGet() > iterationLimit) {
+            throw new MustacheException(MustacheProblem.RENDER_LIMIT_EXCEEDED,
+                    "Iteration limit exceeded [limit: %s, origin: %s]",
+                    iterationLimit, context.getOrigin(segment));
+        }
+        checkDeadline(segment, context);
+    }
+
+    /**
+     *
+     * @param segment
+     * @param context
+     */
+    public void checkDeadline(Segment segment, ExecutionContext context) {
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            throw new MustacheException(MustacheProblem.RENDER_LIMIT_EXCEEDED,
+                    "Rendering timeout exceeded [timeout: %s ms, origin: %s]",
+                    TimeUnit.NANOSECONDS.toMillis(timeout),
+                    context.getOrigin(segment));
+        }
+    }
+
+    /**
+     *
+     * @param depth
+     *            The number of nested template invocations
+     * @param template
+     */
+    void checkDepth(int depth, Object template) {
+        if (depthLimit > 0 && depth > depthLimit) {
+            throw new MustacheException(MustacheProblem.RENDER_LIMIT_EXCEEDED,
+                    "Template invocation depth limit exceeded [limit: %s, template: %s]",
+                    depthLimit, template);
+        }
+    }
+
+    private static final class LimitedAppendable implements Appendable {
+
+        private final Appendable delegate;
+
+        private final long limit;
+
+        private long length;
+
+        LimitedAppendable(Appendable delegate, long limit) {
+            this.delegate = delegate;
+            this.limit = limit;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq) throws IOException {
+            if (csq == null) {
+                return append("null");
+            }
+            increment(csq.length());
+            delegate.append(csq);
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end)
+                throws IOException {
+            if (csq == null) {
+                return append("null", start, end);
+            }
+            increment(end - start);
+            delegate.append(csq, start, end);
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) throws IOException {
+            increment(1);
+            delegate.append(c);
+            return this;
+        }
+
+        private void increment(int chars) {
+            length += chars;
+            if (length > limit) {
+                throw new MustacheException(
+                        MustacheProblem.RENDER_LIMIT_EXCEEDED,
+                        "Output limit exceeded [limit: %s]", limit);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine.context;
+
+import org.trimou.engine.parser.Template;
+
+/**
+ * An immutable table of the templates invoked on the path from the root
+ * execution context. The number of distinct templates is usually very small,
+ * so a linear scan of an identity-based array is faster than any map. The
+ * table is copied on write, i.e. the sibling contexts may share the same
+ * instance.
+ *
+ * @author Martin Kouba
+ */
+final class TemplateInvocations {
+
+    private final int limit;
+
+    private final Template[] templates;
+
+    private final int[] counts;
+
+    private final int depth;
+
+    /**
+     *
+     * @param limit
+     *            The recursive invocation limit
+     */
+    TemplateInvocations(int limit) {
+        this(limit, new Template[0], new int[0], 0);
+    }
+
+    private TemplateInvocations(int limit, Template[] templates, int[] counts,
+            int depth) {
+        this.limit = limit;
+        this.templates = templates;
+        this.counts = counts;
+        this.depth = depth;
+    }
+
+    /**
+     *
+     * @param template
+     * @return the table with the given template invocation added
+     */
+    TemplateInvocations add(Template template) {
+        int idx = indexOf(template);
+        if (idx != -1) {
+            int[] newCounts = counts.clone();
+            newCounts[idx]++;
+            return new TemplateInvocations(limit, templates, newCounts,
+                    depth + 1);
+        }
+        int length = templates.length;
+        Template[] newTemplates = new Template[length + 1];
+        System.arraycopy(templates, 0, newTemplates, 0, length);
+        newTemplates[length] = template;
+        int[] newCounts = new int[length + 1];
+        System.arraycopy(counts, 0, newCounts, 0, length);
+        newCounts[length] = 1;
+        return new TemplateInvocations(limit, newTemplates, newCounts,
+                depth + 1);
+    }
+
+    /**
+     *
+     * @param template
+     * @return the number of invocations of the given template
+     */
+    int getCount(Template template) {
+        int idx = indexOf(template);
+        return idx != -1 ? counts[idx] : 0;
+    }
+
+    /**
+     *
+     * @return the number of all template invocations
+     */
+    int getDepth() {
+        return depth;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     *
+     * @param originTemplate
+     * @return the most recently invoked template whose segments refer to the
+     *         given template or <code>null</code> if no such template was
+     *         invoked
+     * @see Template#getOriginTemplate()
+     */
+    Template getTemplate(Template originTemplate) {
+        for (int i = templates.length - 1; i >= 0; i--) {
+            if (templates[i].getOriginTemplate() == originTemplate) {
+                return templates[i];
+            }
+        }
+        return null;
+    }
+
+    private int indexOf(Template template) {
+        for (int i = 0; i < templates.length; i++) {
+            if (templates[i] == template) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
@@ -41,6 +41,8 @@ public final class ValueWrapper extends AbstractReleaseCallbackContainer
 
     private Hint hint;
 
+    private boolean resolvedByHint;
+
     /**
      *
      * @param key
@@ -94,4 +96,17 @@ public final class ValueWrapper extends AbstractReleaseCallbackContainer
         this.hint = hint;
     }
 
+    /**
+     *
+     * @return <code>true</code> if the leading context object was resolved
+     *         by a hint, <code>false</code> otherwise
+     */
+    boolean isResolvedByHint() {
+        return resolvedByHint;
+    }
+
+    void setResolvedByHint() {
+        this.resolvedByHint = true;
+    }
+
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine.jmx;
+
+import java.util.List;
+
+import org.trimou.engine.CachedTemplateInfo;
+import org.trimou.engine.TemplateLocatorInfo;
+
+/**
+ * JMX view of the template cache of a {@link org.trimou.engine.MustacheEngine}.
+ *
+ * @author Martin Kouba
+ * @see TemplateCacheMonitor#register(org.trimou.engine.MustacheEngine, String)
+ */
+public interface TemplateCacheMXBean {
+
+    /**
+     *
+     * @return the number of cached templates
+     */
+    int getTemplatesCount();
+
+    /**
+     *
+     * @return the sum of estimated retained sizes of all cached templates
+     */
+    long getRetainedSizeEstimate();
+
+    /**
+     *
+     * @return the number of bytes held off-heap by all cached sources
+     * @see org.trimou.engine.config.EngineConfigurationKey#OFF_HEAP_SOURCE_CACHE
+     */
+    long getOffHeapSize();
+
+    /**
+     *
+     * @return the info about all cached templates
+     * @see org.trimou.engine.MustacheEngine#getTemplateCacheInfo()
+     */
+    List<CachedTemplateInfo> getTemplates();
+
+    /**
+     *
+     * @param limit
+     * @return the info about the largest cached templates
+     */
+    List<CachedTemplateInfo> getLargestTemplates(int limit);
+
+    /**
+     *
+     * @return the lookup statistics of all template locators
+     * @see org.trimou.engine.MustacheEngine#getTemplateLocatorInfo()
+     */
+    List<TemplateLocatorInfo> getTemplateLocators();
+
+    /**
+     * @see org.trimou.engine.MustacheEngine#invalidateTemplateCache()
+     */
+    void invalidateTemplateCache();
+
+    /**
+     *
+     * @param templateId
+     * @see org.trimou.engine.MustacheEngine#invalidateTemplate(String)
+     */
+    void invalidateTemplate(String templateId);
+
+}
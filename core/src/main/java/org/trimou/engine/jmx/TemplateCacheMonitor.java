@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.trimou.engine.CachedTemplateInfo;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.TemplateLocatorInfo;
+import org.trimou.exception.MustacheException;
+import org.trimou.exception.MustacheProblem;
+import org.trimou.util.Checker;
+
+/**
+ * The default {@link TemplateCacheMXBean} implementation.
+ *
+ * <p>
+ * Use {@link #register(MustacheEngine, String)} to register the MXBean in the
+ * platform MBean server, e.g. in an
+ * {@link org.trimou.engine.EngineBuiltCallback}.
+ * </p>
+ *
+ * @author Martin Kouba
+ */
+public class TemplateCacheMonitor implements TemplateCacheMXBean {
+
+    public static final String OBJECT_NAME_PREFIX = "org.trimou:type=TemplateCache,name=";
+
+    private final MustacheEngine engine;
+
+    /**
+     *
+     * @param engine
+     */
+    public TemplateCacheMonitor(MustacheEngine engine) {
+        Checker.checkArgumentNotNull(engine);
+        this.engine = engine;
+    }
+
+    @Override
+    public int getTemplatesCount() {
+        return engine.getTemplateCacheInfo().size();
+    }
+
+    @Override
+    public long getRetainedSizeEstimate() {
+        long size = 0;
+        for (CachedTemplateInfo info : engine.getTemplateCacheInfo()) {
+            size += info.getRetainedSizeEstimate();
+        }
+        return size;
+    }
+
+    @Override
+    public long getOffHeapSize() {
+        long size = 0;
+        for (CachedTemplateInfo info : engine.getTemplateCacheInfo()) {
+            size += info.getOffHeapSize();
+        }
+        return size;
+    }
+
+    @Override
+    public List<CachedTemplateInfo> getTemplates() {
+        return engine.getTemplateCacheInfo();
+    }
+
+    @Override
+    public List<CachedTemplateInfo> getLargestTemplates(int limit) {
+        List<CachedTemplateInfo> info = engine.getTemplateCacheInfo();
+        return limit < info.size() ? info.subList(0, Math.max(limit, 0))
+                : info;
+    }
+
+    @Override
+    public List<TemplateLocatorInfo> getTemplateLocators() {
+        return engine.getTemplateLocatorInfo();
+    }
+
+    @Override
+    public void invalidateTemplateCache() {
+        engine.invalidateTemplateCache();
+    }
+
+    @Override
+    public void invalidateTemplate(String templateId) {
+        engine.invalidateTemplate(templateId);
+    }
+
+    /**
+     * Register a new monitor for the given engine in the platform MBean
+     * server.
+     *
+     * @param engine
+     * @param name
+     *            The value of the name key property
+     * @return the object name of the registered MXBean
+     */
+    public static ObjectName register(MustacheEngine engine, String name) {
+        Checker.checkArgumentsNotNull(engine, name);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(OBJECT_NAME_PREFIX
+                    + ObjectName.quote(name));
+            server.registerMBean(new TemplateCacheMonitor(engine), objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new MustacheException(MustacheProblem.MONITORING_JMX_ERROR, e);
+        }
+    }
+
+    /**
+     * Unregister the MXBean from the platform MBean server.
+     *
+     * @param objectName
+     */
+    public static void unregister(ObjectName objectName) {
+        Checker.checkArgumentNotNull(objectName);
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    objectName);
+        } catch (JMException e) {
+            throw new MustacheException(MustacheProblem.MONITORING_JMX_ERROR, e);
+        }
+    }
+
+}
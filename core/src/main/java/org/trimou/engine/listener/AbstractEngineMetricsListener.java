@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine.listener;
+
+import org.trimou.engine.resolver.Resolver;
+import org.trimou.engine.segment.Segment;
+
+/**
+ * Abstract no-op mustache listener which is also an
+ * {@link EngineMetricsListener}.
+ *
+ * @author Martin Kouba
+ */
+public abstract class AbstractEngineMetricsListener extends
+        AbstractMustacheListener implements EngineMetricsListener {
+
+    @Override
+    public void outputRendered(MustacheRenderingEvent event, long length) {
+        // No-op
+    }
+
+    @Override
+    public void asyncOutputAwaited(MustacheRenderingEvent event,
+            long waitTime) {
+        // No-op
+    }
+
+    @Override
+    public void cacheAccessed(String cacheId, String key, boolean hit) {
+        // No-op
+    }
+
+    @Override
+    public void cacheEntryRemoved(String cacheId, String key, String cause) {
+        // No-op
+    }
+
+    @Override
+    public void resolverHit(Resolver resolver) {
+        // No-op
+    }
+
+    @Override
+    public void hintUsed(boolean hit) {
+        // No-op
+    }
+
+    @Override
+    public void asyncTaskStarted(Segment segment, long queueTime) {
+        // No-op
+    }
+
+    @Override
+    public void parsingFailed(String templateName) {
+        // No-op
+    }
+
+}
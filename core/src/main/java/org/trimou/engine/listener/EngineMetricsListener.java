@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine.listener;
+
+import org.trimou.engine.resolver.Resolver;
+import org.trimou.engine.segment.Segment;
+
+/**
+ * A {@link MustacheListener} may also implement this optional interface in
+ * order to be notified about the events which are usually only interesting
+ * for metrics, e.g. the size of the rendered output, cache hits and misses or
+ * resolver hits.
+ *
+ * <p>
+ * The notifications are only performed if at least one registered listener
+ * implements this interface, otherwise there is no overhead. Keep in mind that
+ * some of the methods are invoked very often and from multiple threads, i.e.
+ * an implementation must be fast and thread-safe.
+ * </p>
+ *
+ * @author Martin Kouba
+ * @see AbstractEngineMetricsListener
+ */
+public interface EngineMetricsListener {
+
+    /**
+     * The rendering output is complete. This method is invoked before
+     * {@link MustacheListener#renderingFinished(MustacheRenderingEvent)} and is
+     * not invoked if the rendering fails.
+     *
+     * @param event
+     * @param length
+     *            The number of characters rendered
+     */
+    void outputRendered(MustacheRenderingEvent event, long length);
+
+    /**
+     * The rendering thread waited for the output of the asynchronous helpers.
+     * This method is only invoked if the template contains asynchronous
+     * helpers and is invoked before
+     * {@link #outputRendered(MustacheRenderingEvent, long)}.
+     *
+     * @param event
+     * @param waitTime
+     *            The time the rendering thread was blocked (in nanoseconds)
+     * @see org.trimou.handlebars.Options#executeAsync(org.trimou.handlebars.Options.HelperExecutable)
+     */
+    void asyncOutputAwaited(MustacheRenderingEvent event, long waitTime);
+
+    /**
+     * A template or a template source was obtained from an engine cache.
+     *
+     * @param cacheId
+     *            The consumer id of the cache, e.g.
+     *            {@link org.trimou.engine.MustacheEngine#COMPUTING_CACHE_CONSUMER_ID}
+     * @param key
+     * @param hit
+     *            <code>true</code> if the value was already cached,
+     *            <code>false</code> if it had to be computed
+     */
+    void cacheAccessed(String cacheId, String key, boolean hit);
+
+    /**
+     * An entry was removed from an engine cache, e.g. evicted or invalidated.
+     *
+     * @param cacheId
+     * @param key
+     * @param cause
+     */
+    void cacheEntryRemoved(String cacheId, String key, String cause);
+
+    /**
+     * A value was resolved by the given resolver, i.e. not by a hint.
+     *
+     * @param resolver
+     * @see org.trimou.engine.resolver.EnhancedResolver.Hint
+     */
+    void resolverHit(Resolver resolver);
+
+    /**
+     * A hint was used to resolve the leading context object of a value tag.
+     *
+     * @param hit
+     *            <code>true</code> if the hint resolved the object,
+     *            <code>false</code> if the resolver chain had to be used
+     * @see org.trimou.engine.resolver.EnhancedResolver.Hint
+     */
+    void hintUsed(boolean hit);
+
+    /**
+     * An asynchronous helper task is about to start.
+     *
+     * @param segment
+     *            The segment of the helper
+     * @param queueTime
+     *            The time the task waited for an executor thread (in
+     *            nanoseconds)
+     * @see org.trimou.handlebars.Options#executeAsync(org.trimou.handlebars.Options.HelperExecutable)
+     */
+    void asyncTaskStarted(Segment segment, long queueTime);
+
+    /**
+     * The parsing of a template failed, i.e.
+     * {@link MustacheListener#parsingStarted(MustacheParsingEvent)} was
+     * invoked but
+     * {@link MustacheListener#compilationFinished(MustacheCompilationEvent)}
+     * will not be invoked. This method is invoked on the parsing thread.
+     *
+     * @param templateName
+     */
+    void parsingFailed(String templateName);
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine.listener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.trimou.annotations.Internal;
+import org.trimou.engine.config.Configuration;
+import org.trimou.engine.resolver.Resolver;
+import org.trimou.engine.segment.Segment;
+
+/**
+ * Notifies the {@link EngineMetricsListener}s. All the methods accept
+ * <code>null</code> listeners, i.e. no listener is registered.
+ *
+ * @author Martin Kouba
+ */
+@Internal
+public final class EngineMetricsListeners {
+
+    private EngineMetricsListeners() {
+    }
+
+    /**
+     *
+     * @param configuration
+     * @return the listeners interested in metrics or <code>null</code> if
+     *         there are no such listeners
+     */
+    public static EngineMetricsListener[] from(Configuration configuration) {
+        List<MustacheListener> listeners = configuration
+                .getMustacheListeners();
+        if (listeners == null) {
+            return null;
+        }
+        List<EngineMetricsListener> metricsListeners = new ArrayList<EngineMetricsListener>();
+        for (MustacheListener listener : listeners) {
+            if (listener instanceof EngineMetricsListener) {
+                metricsListeners.add((EngineMetricsListener) listener);
+            }
+        }
+        return metricsListeners.isEmpty() ? null : metricsListeners
+                .toArray(new EngineMetricsListener[metricsListeners.size()]);
+    }
+
+    public static void outputRendered(EngineMetricsListener[] listeners,
+            MustacheRenderingEvent event, long length) {
+        if (listeners != null) {
+            for (EngineMetricsListener listener : listeners) {
+                listener.outputRendered(event, length);
+            }
+        }
+    }
+
+    public static void asyncOutputAwaited(EngineMetricsListener[] listeners,
+            MustacheRenderingEvent event, long waitTime) {
+        if (listeners != null) {
+            for (EngineMetricsListener listener : listeners) {
+                listener.asyncOutputAwaited(event, waitTime);
+            }
+        }
+    }
+
+    public static void cacheAccessed(EngineMetricsListener[] listeners,
+            String cacheId, String key, boolean hit) {
+        if (listeners != null) {
+            for (EngineMetricsListener listener : listeners) {
+                listener.cacheAccessed(cacheId, key, hit);
+            }
+        }
+    }
+
+    public static void cacheEntryRemoved(EngineMetricsListener[] listeners,
+            String cacheId, String key, String cause) {
+        if (listeners != null) {
+            for (EngineMetricsListener listener : listeners) {
+                listener.cacheEntryRemoved(cacheId, key, cause);
+            }
+        }
+    }
+
+    public static void resolverHit(EngineMetricsListener[] listeners,
+            Resolver resolver) {
+        if (listeners != null) {
+            for (EngineMetricsListener listener : listeners) {
+                listener.resolverHit(resolver);
+            }
+        }
+    }
+
+    public static void hintUsed(EngineMetricsListener[] listeners, boolean hit) {
+        if (listeners != null) {
+            for (EngineMetricsListener listener : listeners) {
+                listener.hintUsed(hit);
+            }
+        }
+    }
+
+    public static void asyncTaskStarted(EngineMetricsListener[] listeners,
+            Segment segment, long queueTime) {
+        if (listeners != null) {
+            for (EngineMetricsListener listener : listeners) {
+                listener.asyncTaskStarted(segment, queueTime);
+            }
+        }
+    }
+
+    public static void parsingFailed(EngineMetricsListener[] listeners,
+            String templateName) {
+        if (listeners != null) {
+            for (EngineMetricsListener listener : listeners) {
+                listener.parsingFailed(templateName);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,528 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine.listener;
+
+import java.util.Collections;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.resource.ReleaseCallback;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A {@link MustacheListener} collecting template rendering statistics in
+ * fixed-size log-linear histograms. Unlike {@link SimpleStatsCollector} and
+ * {@link EnhancedStatsCollector} the memory footprint of a template's data
+ * does not grow with the number of renderings and no objects are allocated per
+ * rendering. The recorded values have a relative error of at most ~3%. Values
+ * greater than approx. 18 minutes are recorded as the maximum trackable value.
+ *
+ * <p>
+ * Each histogram is striped so that concurrent renderings of the same template
+ * are not likely to update the same counters. The buckets are allocated
+ * lazily, i.e. only the value ranges actually recorded consume memory.
+ * </p>
+ *
+ * Note that the template is identified with the name/id - so data will not be
+ * correct if there's more than one templates with the same name (which is
+ * possible if using {@link MustacheEngine#compileMustache(String, String)}).
+ *
+ * This listener is not able to detect rendering errors, i.e. a failed
+ * rendering is not recorded.
+ *
+ * @author Martin Kouba
+ */
+public class HistogramStatsCollector extends AbstractStatsCollector {
+
+    private static final int DEFAULT_STRIPES = Math.min(4,
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+
+    private final int stripes;
+
+    /**
+     * Map of name to histogram
+     */
+    private final ConcurrentMap<String, Histogram> data;
+
+    /**
+     * Renderings in progress on the current thread - pairs of event id and
+     * start time
+     */
+    private final ThreadLocal<StartTimes> startTimes;
+
+    /**
+     *
+     */
+    public HistogramStatsCollector() {
+        this(null, null, DEFAULT_STRIPES);
+    }
+
+    /**
+     *
+     * @param templatePredicate
+     * @param timeUnit
+     */
+    public HistogramStatsCollector(Predicate<String> templatePredicate,
+            TimeUnit timeUnit) {
+        this(templatePredicate, timeUnit, DEFAULT_STRIPES);
+    }
+
+    /**
+     *
+     * @param templatePredicate
+     * @param timeUnit
+     * @param stripes
+     *            The number of stripes of a histogram, must be a power of two
+     */
+    public HistogramStatsCollector(Predicate<String> templatePredicate,
+            TimeUnit timeUnit, int stripes) {
+        super(templatePredicate, timeUnit);
+        Preconditions.checkArgument(stripes > 0
+                && Integer.bitCount(stripes) == 1,
+                "The number of stripes must be a power of two");
+        this.stripes = stripes;
+        this.data = new ConcurrentHashMap<String, Histogram>();
+        this.startTimes = new ThreadLocal<StartTimes>() {
+            @Override
+            protected StartTimes initialValue() {
+                return new StartTimes();
+            }
+        };
+    }
+
+    @Override
+    public void renderingStarted(MustacheRenderingEvent event) {
+        if (isApplied(event.getMustacheName())) {
+            StartTimes current = startTimes.get();
+            current.push(event.getGeneratedId(), System.nanoTime());
+            // Discards the start time if the rendering fails
+            event.registerReleaseCallback(current);
+        }
+    }
+
+    @Override
+    public void renderingFinished(MustacheRenderingEvent event) {
+        if (isApplied(event.getMustacheName())) {
+            long start = startTimes.get().pop(event.getGeneratedId());
+            if (start == -1) {
+                return;
+            }
+            Histogram histogram = data.get(event.getMustacheName());
+            if (histogram == null) {
+                histogram = new Histogram(stripes);
+                Histogram previous = data.putIfAbsent(event.getMustacheName(),
+                        histogram);
+                if (previous != null) {
+                    histogram = previous;
+                }
+            }
+            histogram.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Drop all the collected data.
+     */
+    public void clearData() {
+        data.clear();
+    }
+
+    /**
+     *
+     * @param templateId
+     * @return a snapshot of the statistics for the given template or
+     *         <code>null</code> if no data available
+     */
+    public HistogramStats getStats(String templateId) {
+        Histogram histogram = data.get(templateId);
+        return histogram != null ? new HistogramStats(templateId, histogram)
+                : null;
+    }
+
+    /**
+     *
+     * @return a snapshot of all available statistics
+     */
+    public Set<HistogramStats> getStats() {
+        if (data.isEmpty()) {
+            return Collections.emptySet();
+        }
+        ImmutableSet.Builder<HistogramStats> builder = ImmutableSet.builder();
+        for (Entry<String, Histogram> entry : data.entrySet()) {
+            builder.add(new HistogramStats(entry.getKey(), entry.getValue()));
+        }
+        return builder.build();
+    }
+
+    /**
+     *
+     * @return the number of renderings in progress on the current thread
+     */
+    int getPendingRenderings() {
+        return startTimes.get().size / 2;
+    }
+
+    /**
+     * Log-linear buckets - each power of two range is divided into
+     * {@value #SUB_BUCKET_HALF_COUNT} linear sub-buckets. The buckets of a
+     * stripe are split into pages of {@value #PAGE_SIZE} buckets (i.e. one
+     * power of two range) and a page is only allocated when a value falls into
+     * its range. The rendering times of a template usually span a few ranges so
+     * most of the pages are never allocated.
+     */
+    static final class Histogram {
+
+        static final int SUB_BUCKET_BITS = 6;
+
+        static final int SUB_BUCKET_HALF_COUNT = 1 << (SUB_BUCKET_BITS - 1);
+
+        static final int MAX_EXPONENT = 40;
+
+        static final long MAX_VALUE = (1l << (MAX_EXPONENT + 1)) - 1;
+
+        static final int BUCKETS = bucketIndex(MAX_VALUE) + 1;
+
+        static final int PAGE_SIZE = SUB_BUCKET_HALF_COUNT;
+
+        static final int PAGES = (BUCKETS + PAGE_SIZE - 1) / PAGE_SIZE;
+
+        private static final int TOTAL = 0;
+
+        private static final int MIN = 1;
+
+        private static final int MAX = 2;
+
+        private final int stripeMask;
+
+        /**
+         * The pages of all the stripes in a single array, i.e. the page index
+         * of a stripe is offset by stripe * {@link #PAGES}
+         */
+        private final AtomicReferenceArray<AtomicLongArray> pages;
+
+        /**
+         * The total, min and max of all the stripes in a single array
+         */
+        private final AtomicLongArray stats;
+
+        Histogram(int stripes) {
+            this.stripeMask = stripes - 1;
+            this.pages = new AtomicReferenceArray<AtomicLongArray>(stripes
+                    * PAGES);
+            this.stats = new AtomicLongArray(stripes * 3);
+            for (int i = 0; i < stripes; i++) {
+                stats.set(i * 3 + MIN, Long.MAX_VALUE);
+            }
+        }
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            } else if (value > MAX_VALUE) {
+                value = MAX_VALUE;
+            }
+            int stripe = (int) Thread.currentThread().getId() & stripeMask;
+            int index = bucketIndex(value);
+            getPage(stripe * PAGES + index / PAGE_SIZE).incrementAndGet(
+                    index % PAGE_SIZE);
+            int offset = stripe * 3;
+            stats.addAndGet(offset + TOTAL, value);
+            if (value < stats.get(offset + MIN)) {
+                updateMin(offset + MIN, value);
+            }
+            if (value > stats.get(offset + MAX)) {
+                updateMax(offset + MAX, value);
+            }
+        }
+
+        /**
+         *
+         * @return the counts summed across all the stripes
+         */
+        long[] getCounts() {
+            long[] result = new long[BUCKETS];
+            for (int i = 0; i < pages.length(); i++) {
+                AtomicLongArray page = pages.get(i);
+                if (page == null) {
+                    continue;
+                }
+                int start = (i % PAGES) * PAGE_SIZE;
+                for (int j = 0; j < PAGE_SIZE && start + j < BUCKETS; j++) {
+                    result[start + j] += page.get(j);
+                }
+            }
+            return result;
+        }
+
+        long getTotal() {
+            long total = 0;
+            for (int i = TOTAL; i < stats.length(); i += 3) {
+                total += stats.get(i);
+            }
+            return total;
+        }
+
+        long getMin() {
+            long min = Long.MAX_VALUE;
+            for (int i = MIN; i < stats.length(); i += 3) {
+                min = Math.min(min, stats.get(i));
+            }
+            return min;
+        }
+
+        long getMax() {
+            long max = 0;
+            for (int i = MAX; i < stats.length(); i += 3) {
+                max = Math.max(max, stats.get(i));
+            }
+            return max;
+        }
+
+        /**
+         *
+         * @return the number of allocated pages
+         */
+        int getAllocatedPages() {
+            int allocated = 0;
+            for (int i = 0; i < pages.length(); i++) {
+                if (pages.get(i) != null) {
+                    allocated++;
+                }
+            }
+            return allocated;
+        }
+
+        private AtomicLongArray getPage(int index) {
+            AtomicLongArray page = pages.get(index);
+            if (page == null) {
+                page = new AtomicLongArray(PAGE_SIZE);
+                if (!pages.compareAndSet(index, null, page)) {
+                    page = pages.get(index);
+                }
+            }
+            return page;
+        }
+
+        private void updateMin(int index, long value) {
+            long current;
+            while (value < (current = stats.get(index))) {
+                if (stats.compareAndSet(index, current, value)) {
+                    break;
+                }
+            }
+        }
+
+        private void updateMax(int index, long value) {
+            long current;
+            while (value > (current = stats.get(index))) {
+                if (stats.compareAndSet(index, current, value)) {
+                    break;
+                }
+            }
+        }
+
+        static int bucketIndex(long value) {
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = Math.max(0, exponent - SUB_BUCKET_BITS + 1);
+            return shift * SUB_BUCKET_HALF_COUNT + (int) (value >>> shift);
+        }
+
+        /**
+         *
+         * @param index
+         * @return the highest value recorded in the given bucket
+         */
+        static long highestValue(int index) {
+            if (index < 2 * SUB_BUCKET_HALF_COUNT) {
+                return index;
+            }
+            int shift = index / SUB_BUCKET_HALF_COUNT - 1;
+            long mantissa = index - shift * SUB_BUCKET_HALF_COUNT;
+            return ((mantissa + 1) << shift) - 1;
+        }
+
+    }
+
+    /**
+     * A simple growable stack, the renderings may be nested. The instance is
+     * also registered as a release callback of every rendering started on the
+     * thread - a released rendering is no longer in progress, so all the
+     * entries above the number of open renderings belong to failed renderings
+     * and are discarded.
+     */
+    private static final class StartTimes implements ReleaseCallback {
+
+        private long[] elements = new long[8];
+
+        private int size;
+
+        private int open;
+
+        void push(long id, long start) {
+            if (size + 2 > elements.length) {
+                long[] newElements = new long[elements.length * 2];
+                System.arraycopy(elements, 0, newElements, 0, size);
+                elements = newElements;
+            }
+            elements[size++] = id;
+            elements[size++] = start;
+            open++;
+        }
+
+        @Override
+        public void release() {
+            open--;
+            if (size > open * 2) {
+                size = open * 2;
+            }
+        }
+
+        /**
+         * The renderings which failed, i.e. were not finished, are discarded.
+         *
+         * @param id
+         * @return the start time or <code>-1</code> if no such rendering found
+         */
+        long pop(long id) {
+            while (size > 0) {
+                size -= 2;
+                if (elements[size] == id) {
+                    return elements[size + 1];
+                }
+            }
+            return -1;
+        }
+
+    }
+
+    /**
+     * An immutable snapshot of the histogram data. All the time values are
+     * converted to the time unit of the collector.
+     */
+    public class HistogramStats {
+
+        private final String name;
+
+        private final long executions;
+
+        private final long totalTime;
+
+        private final long minTime;
+
+        private final long maxTime;
+
+        private final long[] counts;
+
+        HistogramStats(String name, Histogram histogram) {
+            this.name = name;
+            this.counts = histogram.getCounts();
+            long executions = 0;
+            for (long count : counts) {
+                executions += count;
+            }
+            this.executions = executions;
+            this.totalTime = histogram.getTotal();
+            this.minTime = executions > 0 ? histogram.getMin() : 0;
+            this.maxTime = histogram.getMax();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getExecutions() {
+            return executions;
+        }
+
+        public long getTotalTime() {
+            return convert(totalTime);
+        }
+
+        public long getMeanTime() {
+            return executions > 0 ? convert(totalTime / executions) : 0;
+        }
+
+        public long getMinTime() {
+            return convert(minTime);
+        }
+
+        public long getMaxTime() {
+            return convert(maxTime);
+        }
+
+        /**
+         *
+         * @param percentile
+         *            The value between 0 and 100
+         * @return the value such that the given percentage of renderings took
+         *         no more time (within the histogram precision)
+         */
+        public long getValueAtPercentile(double percentile) {
+            Preconditions.checkArgument(percentile >= 0 && percentile <= 100,
+                    "Percentile must be between 0 and 100");
+            if (executions == 0) {
+                return 0;
+            }
+            long threshold = Math.max(1,
+                    (long) Math.ceil(percentile / 100 * executions));
+            long sum = 0;
+            for (int i = 0; i < counts.length; i++) {
+                sum += counts[i];
+                if (sum >= threshold) {
+                    return convert(Math.min(Histogram.highestValue(i),
+                            maxTime));
+                }
+            }
+            return convert(maxTime);
+        }
+
+        public long getP50() {
+            return getValueAtPercentile(50);
+        }
+
+        public long getP90() {
+            return getValueAtPercentile(90);
+        }
+
+        public long getP99() {
+            return getValueAtPercentile(99);
+        }
+
+        public long getP999() {
+            return getValueAtPercentile(99.9);
+        }
+
+        @Override
+        public String toString() {
+            return String
+                    .format("HistogramStats [name: %s, executions: %s, totalTime: %s, meanTime: %s, minTime: %s, maxTime: %s, p50: %s, p90: %s, p99: %s, p999: %s]",
+                            name, executions, getTotalTime(), getMeanTime(),
+                            getMinTime(), getMaxTime(), getP50(), getP90(),
+                            getP99(), getP999());
+        }
+
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine.listener;
+
+import org.trimou.engine.context.ExecutionContext;
+import org.trimou.engine.segment.Segment;
+
+/**
+ * A {@link MustacheListener} may also implement this optional interface in
+ * order to be notified about the execution of every segment which represents a
+ * tag, e.g. a variable, a section or a partial. Text segments and line
+ * separators are not observed.
+ *
+ * <p>
+ * The notifications are only performed if at least one registered listener
+ * implements this interface, otherwise there is no overhead. Keep in mind that
+ * the listeners are invoked very often, i.e. an implementation must be fast.
+ * </p>
+ *
+ * <p>
+ * Listeners are invoked in the order of their registration, except for
+ * {@link #segmentFinished(Segment, ExecutionContext)} method which is invoked
+ * in reverse order.
+ * </p>
+ *
+ * @author Martin Kouba
+ * @see SegmentProfiler
+ */
+public interface SegmentExecutionListener {
+
+    /**
+     * The segment execution is about to start.
+     *
+     * @param segment
+     * @param context
+     */
+    void segmentStarted(Segment segment, ExecutionContext context);
+
+    /**
+     * The segment execution finished. This method is always invoked, even if
+     * the execution fails.
+     *
+     * @param segment
+     * @param context
+     */
+    void segmentFinished(Segment segment, ExecutionContext context);
+
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine.listener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.trimou.engine.context.ExecutionContext;
+import org.trimou.engine.resource.ReleaseCallback;
+import org.trimou.engine.segment.Origin;
+import org.trimou.engine.segment.Segment;
+import org.trimou.exception.MustacheException;
+import org.trimou.exception.MustacheProblem;
+import org.trimou.lambda.Lambda;
+import org.trimou.util.Strings;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
+
+/**
+ * Measures the time spent executing the segments of the rendered templates,
+ * i.e. it's possible to find out which partial, section or helper is slow.
+ * The data are aggregated in a call tree - the path from the root represents
+ * the stack of segments being executed (the rendered template is always the
+ * first element).
+ *
+ * <p>
+ * It's possible to only profile every n-th rendering, see also
+ * {@link #SegmentProfiler(int)}. Note that nested renderings (e.g. a template
+ * rendered from a lambda) are sampled independently.
+ * </p>
+ *
+ * <p>
+ * The results are available as a flame-graph-compatible collapsed-stack report
+ * ({@link #writeCollapsedStacks(Appendable)}), aggregated per origin
+ * ({@link #getOriginStats()}) and per helper name ({@link #getHelperStats()}).
+ * </p>
+ *
+ * @author Martin Kouba
+ * @see SegmentExecutionListener
+ */
+public class SegmentProfiler extends AbstractMustacheListener implements
+        SegmentExecutionListener {
+
+    private final int samplingInterval;
+
+    private final AtomicLong renderings;
+
+    private final Node root;
+
+    private final ThreadLocal<Frames> frames;
+
+    /**
+     * Profile all renderings.
+     */
+    public SegmentProfiler() {
+        this(1);
+    }
+
+    /**
+     *
+     * @param samplingInterval
+     *            Only every n-th rendering is profiled
+     */
+    public SegmentProfiler(int samplingInterval) {
+        Preconditions.checkArgument(samplingInterval > 0,
+                "Sampling interval must be greater than zero");
+        this.samplingInterval = samplingInterval;
+        this.renderings = new AtomicLong();
+        this.root = new Node(null, null, null);
+        this.frames = new ThreadLocal<Frames>() {
+            @Override
+            protected Frames initialValue() {
+                return new Frames();
+            }
+        };
+    }
+
+    @Override
+    public void renderingStarted(MustacheRenderingEvent event) {
+        final Frames current = frames.get();
+        if (current.depth == 0
+                && renderings.getAndIncrement() % samplingInterval != 0) {
+            return;
+        }
+        current.push(current.top(root).getChild(
+                normalizeTemplateName(event.getMustacheName())),
+                System.nanoTime());
+        final int depth = current.depth;
+        event.registerReleaseCallback(new ReleaseCallback() {
+            @Override
+            public void release() {
+                current.popTo(depth - 1);
+            }
+        });
+    }
+
+    @Override
+    public void segmentStarted(Segment segment, ExecutionContext context) {
+        Frames current = frames.get();
+        if (current.depth == 0) {
+            // Not sampled
+            return;
+        }
+        current.push(current.top(root).getChild(segment, context),
+                System.nanoTime());
+    }
+
+    @Override
+    public void segmentFinished(Segment segment, ExecutionContext context) {
+        Frames current = frames.get();
+        if (current.depth == 0) {
+            return;
+        }
+        current.popTo(current.depth - 1);
+    }
+
+    /**
+     * Drop all the collected data. The renderings in progress are not
+     * affected.
+     */
+    public void clearData() {
+        root.children.clear();
+        root.segmentChildren.clear();
+    }
+
+    /**
+     * Write the collapsed stacks, one line per stack, e.g.
+     * <code>foo;SECTION:items [foo:2];VALUE:name [foo:3] 1250</code>. The
+     * value is the self time in microseconds, i.e. the time spent in the last
+     * segment of the stack excluding the nested segments. The output can be
+     * used as an input of the FlameGraph tools.
+     *
+     * @param appendable
+     */
+    public void writeCollapsedStacks(Appendable appendable) {
+        try {
+            for (Node child : root.children.values()) {
+                writeCollapsedStacks(appendable, child, child.label);
+            }
+        } catch (IOException e) {
+            throw new MustacheException(MustacheProblem.RENDER_IO_ERROR, e);
+        }
+    }
+
+    /**
+     *
+     * @return the collapsed stacks
+     * @see #writeCollapsedStacks(Appendable)
+     */
+    public String getCollapsedStacks() {
+        StringBuilder builder = new StringBuilder();
+        writeCollapsedStacks(builder);
+        return builder.toString();
+    }
+
+    /**
+     * Note that the time of a recursively invoked segment (e.g. a recursive
+     * partial) is counted multiple times.
+     *
+     * @return the stats aggregated per origin (template name and line), sorted
+     *         by the total time in descending order
+     */
+    public List<ProfileStats> getOriginStats() {
+        Map<String, long[]> data = new HashMap<String, long[]>();
+        for (Node child : root.children.values()) {
+            collect(child, data, false);
+        }
+        return toStats(data);
+    }
+
+    /**
+     *
+     * @return the stats aggregated per helper name, sorted by the total time
+     *         in descending order
+     */
+    public List<ProfileStats> getHelperStats() {
+        Map<String, long[]> data = new HashMap<String, long[]>();
+        for (Node child : root.children.values()) {
+            collect(child, data, true);
+        }
+        return toStats(data);
+    }
+
+    private void writeCollapsedStacks(Appendable appendable, Node node,
+            String stack) throws IOException {
+        long childrenTime = 0;
+        for (Node child : node.children.values()) {
+            childrenTime += child.time.get();
+            writeCollapsedStacks(appendable, child, stack + ";" + child.label);
+        }
+        long selfTime = TimeUnit.NANOSECONDS.toMicros(node.time.get()
+                - childrenTime);
+        if (selfTime > 0) {
+            appendable.append(stack);
+            appendable.append(" ");
+            appendable.append(String.valueOf(selfTime));
+            appendable.append("\n");
+        }
+    }
+
+    private void collect(Node node, Map<String, long[]> data, boolean helpers) {
+        String key = helpers ? node.helperName : node.origin;
+        if (key != null) {
+            long[] values = data.get(key);
+            if (values == null) {
+                values = new long[2];
+                data.put(key, values);
+            }
+            values[0] += node.count.get();
+            values[1] += node.time.get();
+        }
+        for (Node child : node.children.values()) {
+            collect(child, data, helpers);
+        }
+    }
+
+    private List<ProfileStats> toStats(Map<String, long[]> data) {
+        List<ProfileStats> stats = new ArrayList<ProfileStats>(data.size());
+        for (Map.Entry<String, long[]> entry : data.entrySet()) {
+            stats.add(new ProfileStats(entry.getKey(), entry.getValue()[0],
+                    entry.getValue()[1]));
+        }
+        Collections.sort(stats, new Comparator<ProfileStats>() {
+            @Override
+            public int compare(ProfileStats o1, ProfileStats o2) {
+                return Long.compare(o2.getTotalTime(), o1.getTotalTime());
+            }
+        });
+        return ImmutableList.copyOf(stats);
+    }
+
+    static String toOriginString(Origin origin) {
+        return normalizeTemplateName(origin.getTemplateName()) + ":"
+                + (origin.getLine() != null ? origin.getLine()
+                        : Strings.NOT_AVAILABLE);
+    }
+
+    /**
+     * A one-off lambda template is compiled for every lambda invocation, i.e.
+     * the generated part of the name is removed so that the data are
+     * aggregated per the template the lambda was invoked from, e.g.
+     * <code>oneoff_lambda_10_4242</code> becomes
+     * <code>oneoff_lambda_10</code>.
+     *
+     * @param templateName
+     * @return the normalized template name
+     * @see Lambda#ONEOFF_LAMBDA_TEMPLATE_PREFIX
+     */
+    static String normalizeTemplateName(String templateName) {
+        if (templateName.startsWith(Lambda.ONEOFF_LAMBDA_TEMPLATE_PREFIX)) {
+            int idx = templateName.lastIndexOf('_');
+            if (idx >= Lambda.ONEOFF_LAMBDA_TEMPLATE_PREFIX.length()) {
+                return templateName.substring(0, idx);
+            }
+        }
+        return templateName;
+    }
+
+    /**
+     * Call tree node. The children are keyed by the label so that the tree
+     * does not grow if a template is recompiled (e.g. a one-off lambda
+     * template). The segment instances are only used to cache the child
+     * lookups and are weakly referenced.
+     */
+    private static final class Node {
+
+        private final String label;
+
+        private final String origin;
+
+        private final String helperName;
+
+        private final ConcurrentMap<String, Node> children;
+
+        private final ConcurrentMap<Segment, Node> segmentChildren;
+
+        private final AtomicLong count;
+
+        private final AtomicLong time;
+
+        Node(String label, String origin, String helperName) {
+            this.label = label;
+            this.origin = origin;
+            this.helperName = helperName;
+            this.children = new ConcurrentHashMap<String, Node>();
+            this.segmentChildren = new MapMaker().weakKeys().makeMap();
+            this.count = new AtomicLong();
+            this.time = new AtomicLong();
+        }
+
+        /**
+         *
+         * @param templateName
+         * @return the child node
+         */
+        Node getChild(String templateName) {
+            return getChild(templateName, null, null);
+        }
+
+        /**
+         *
+         * @param segment
+         * @param context
+         * @return the child node
+         */
+        Node getChild(Segment segment, ExecutionContext context) {
+            Origin origin = context.getOrigin(segment);
+            // The segment may be executed on behalf of another template, e.g.
+            // an extending one
+            boolean cacheable = origin == segment.getOrigin();
+            if (cacheable) {
+                Node child = segmentChildren.get(segment);
+                if (child != null) {
+                    return child;
+                }
+            }
+            String originName = toOriginString(origin);
+            Node child = getChild(toLabel(segment, originName), originName,
+                    segment.getHelperName());
+            if (cacheable) {
+                segmentChildren.put(segment, child);
+            }
+            return child;
+        }
+
+        private Node getChild(String label, String origin, String helperName) {
+            Node child = children.get(label);
+            if (child == null) {
+                child = new Node(label, origin, helperName);
+                Node previous = children.putIfAbsent(label, child);
+                if (previous != null) {
+                    child = previous;
+                }
+            }
+            return child;
+        }
+
+        void record(long duration) {
+            count.incrementAndGet();
+            time.addAndGet(duration);
+        }
+
+        private static String toLabel(Segment segment, String origin) {
+            // Semicolon is used as a frame separator
+            return (segment.getType() + ":" + segment.getText() + " ["
+                    + origin + "]").replace(';', ',').replace(
+                    '\n', ' ');
+        }
+
+    }
+
+    /**
+     * The stack of the nodes being executed on the current thread
+     */
+    private static final class Frames {
+
+        private Node[] nodes = new Node[16];
+
+        private long[] starts = new long[16];
+
+        private int depth;
+
+        Node top(Node root) {
+            return depth > 0 ? nodes[depth - 1] : root;
+        }
+
+        void push(Node node, long start) {
+            if (depth == nodes.length) {
+                Node[] newNodes = new Node[nodes.length * 2];
+                System.arraycopy(nodes, 0, newNodes, 0, depth);
+                nodes = newNodes;
+                long[] newStarts = new long[starts.length * 2];
+                System.arraycopy(starts, 0, newStarts, 0, depth);
+                starts = newStarts;
+            }
+            nodes[depth] = node;
+            starts[depth] = start;
+            depth++;
+        }
+
+        void popTo(int targetDepth) {
+            long end = System.nanoTime();
+            while (depth > targetDepth && depth > 0) {
+                depth--;
+                nodes[depth].record(end - starts[depth]);
+                nodes[depth] = null;
+            }
+        }
+
+    }
+
+    /**
+     * Aggregated profile data.
+     */
+    public static final class ProfileStats {
+
+        private final String name;
+
+        private final long invocations;
+
+        private final long totalTime;
+
+        ProfileStats(String name, long invocations, long totalTime) {
+            this.name = name;
+            this.invocations = invocations;
+            this.totalTime = totalTime;
+        }
+
+        /**
+         *
+         * @return the origin (template name and line) or the helper name
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getInvocations() {
+            return invocations;
+        }
+
+        /**
+         *
+         * @return the total time in nanoseconds, including the nested
+         *         segments
+         */
+        public long getTotalTime() {
+            return totalTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "ProfileStats [name: %s, invocations: %s, totalTime: %s]",
+                    name, invocations, totalTime);
+        }
+
+    }
+
+}
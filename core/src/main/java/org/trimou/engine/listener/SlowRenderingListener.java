@@ -0,0 +1,478 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine.listener;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.trimou.engine.config.EngineConfigurationKey;
+import org.trimou.engine.context.ExecutionContext;
+import org.trimou.engine.resource.ReleaseCallback;
+import org.trimou.engine.segment.Origin;
+import org.trimou.engine.segment.Segment;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Detects the renderings which take longer than the specified threshold. For
+ * each slow rendering the template name, the output size, the time spent
+ * waiting for asynchronous helpers, the slowest segments (including the
+ * origin) and the number of helper invocations are captured and a warning with
+ * <code>key=value</code> fields is logged. Subclasses may override
+ * {@link #slowRenderingDetected(SlowRendering)} to process the captured data
+ * differently.
+ *
+ * <p>
+ * Unlike {@link EngineConfigurationKey#DEBUG_MODE} this listener does not
+ * affect the template cache. However, all the segments of all the renderings
+ * are observed, i.e. there is some overhead. Nested renderings (e.g. a
+ * template rendered from a lambda) are measured separately.
+ * </p>
+ *
+ * @author Martin Kouba
+ * @see SegmentExecutionListener
+ */
+public class SlowRenderingListener extends AbstractEngineMetricsListener
+        implements SegmentExecutionListener {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(SlowRenderingListener.class);
+
+    public static final int DEFAULT_SEGMENTS_LIMIT = 5;
+
+    private final long threshold;
+
+    private final int segmentsLimit;
+
+    private final ThreadLocal<Deque<Recording>> recordings;
+
+    /**
+     *
+     * @param threshold
+     * @param unit
+     */
+    public SlowRenderingListener(long threshold, TimeUnit unit) {
+        this(threshold, unit, DEFAULT_SEGMENTS_LIMIT);
+    }
+
+    /**
+     *
+     * @param threshold
+     * @param unit
+     * @param segmentsLimit
+     *            The max number of the slowest segments captured
+     */
+    public SlowRenderingListener(long threshold, TimeUnit unit,
+            int segmentsLimit) {
+        Preconditions.checkArgument(segmentsLimit >= 0,
+                "Segments limit must not be negative");
+        this.threshold = unit.toNanos(threshold);
+        this.segmentsLimit = segmentsLimit;
+        this.recordings = new ThreadLocal<Deque<Recording>>() {
+            @Override
+            protected Deque<Recording> initialValue() {
+                return new ArrayDeque<Recording>();
+            }
+        };
+    }
+
+    @Override
+    public void renderingStarted(MustacheRenderingEvent event) {
+        final Deque<Recording> current = recordings.get();
+        final Recording recording = new Recording(event.getMustacheName(),
+                System.nanoTime());
+        current.push(recording);
+        event.registerReleaseCallback(new ReleaseCallback() {
+            @Override
+            public void release() {
+                long time = System.nanoTime() - recording.start;
+                // Also remove the recordings of failed nested renderings
+                while (!current.isEmpty()) {
+                    if (current.pop() == recording) {
+                        break;
+                    }
+                }
+                if (time >= threshold) {
+                    slowRenderingDetected(recording.toSlowRendering(time,
+                            segmentsLimit));
+                }
+            }
+        });
+    }
+
+    @Override
+    public void renderingFinished(MustacheRenderingEvent event) {
+        Recording recording = recordings.get().peek();
+        if (recording != null) {
+            recording.finished = true;
+        }
+    }
+
+    @Override
+    public void outputRendered(MustacheRenderingEvent event, long length) {
+        Recording recording = recordings.get().peek();
+        if (recording != null) {
+            recording.outputSize = length;
+        }
+    }
+
+    @Override
+    public void asyncOutputAwaited(MustacheRenderingEvent event,
+            long waitTime) {
+        Recording recording = recordings.get().peek();
+        if (recording != null) {
+            recording.asyncWaitTime = waitTime;
+        }
+    }
+
+    @Override
+    public void segmentStarted(Segment segment, ExecutionContext context) {
+        Recording recording = recordings.get().peek();
+        if (recording != null) {
+            recording.push(segment, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void segmentFinished(Segment segment, ExecutionContext context) {
+        Recording recording = recordings.get().peek();
+        if (recording != null) {
+            recording.pop(segment, context, System.nanoTime());
+        }
+    }
+
+    /**
+     * Logs a warning by default.
+     *
+     * @param rendering
+     */
+    protected void slowRenderingDetected(SlowRendering rendering) {
+        logger.warn(
+                "Slow rendering detected: template={} timeMs={} failed={} outputSize={} asyncWaitMs={} helpers={} segments={}",
+                rendering.getTemplateName(),
+                TimeUnit.NANOSECONDS.toMillis(rendering.getTime()),
+                rendering.isFailed(), rendering.getOutputSize(),
+                TimeUnit.NANOSECONDS.toMillis(rendering.getAsyncWaitTime()),
+                rendering.getHelperInvocations(), rendering.getSegments());
+    }
+
+    /**
+     * The data of a rendering in progress. Only accessed by the rendering
+     * thread.
+     */
+    private static final class Recording {
+
+        private final String templateName;
+
+        private final long start;
+
+        private final Map<Segment, SegmentData> segments;
+
+        private Segment[] stack = new Segment[16];
+
+        private long[] starts = new long[16];
+
+        private long[] childTimes = new long[16];
+
+        private int depth;
+
+        private boolean finished;
+
+        private long outputSize = -1;
+
+        private long asyncWaitTime;
+
+        Recording(String templateName, long start) {
+            this.templateName = templateName;
+            this.start = start;
+            this.segments = new HashMap<Segment, SegmentData>();
+        }
+
+        void push(Segment segment, long time) {
+            if (depth == stack.length) {
+                Segment[] newStack = new Segment[stack.length * 2];
+                System.arraycopy(stack, 0, newStack, 0, depth);
+                stack = newStack;
+                long[] newStarts = new long[starts.length * 2];
+                System.arraycopy(starts, 0, newStarts, 0, depth);
+                starts = newStarts;
+                long[] newChildTimes = new long[childTimes.length * 2];
+                System.arraycopy(childTimes, 0, newChildTimes, 0, depth);
+                childTimes = newChildTimes;
+            }
+            stack[depth] = segment;
+            starts[depth] = time;
+            childTimes[depth] = 0;
+            depth++;
+        }
+
+        void pop(Segment segment, ExecutionContext context, long time) {
+            if (depth == 0 || stack[depth - 1] != segment) {
+                // Should not happen
+                return;
+            }
+            depth--;
+            long duration = time - starts[depth];
+            stack[depth] = null;
+            if (depth > 0) {
+                childTimes[depth - 1] += duration;
+            }
+            SegmentData data = segments.get(segment);
+            if (data == null) {
+                // The origin string is only built for a slow rendering
+                data = new SegmentData(segment, context.getOrigin(segment));
+                segments.put(segment, data);
+            }
+            data.invocations++;
+            data.time += duration;
+            data.selfTime += duration - childTimes[depth];
+        }
+
+        SlowRendering toSlowRendering(long time, int segmentsLimit) {
+            List<SegmentData> data = new ArrayList<SegmentData>(
+                    segments.values());
+            Collections.sort(data, new Comparator<SegmentData>() {
+                @Override
+                public int compare(SegmentData o1, SegmentData o2) {
+                    return Long.compare(o2.selfTime, o1.selfTime);
+                }
+            });
+            ImmutableList.Builder<SlowSegment> slowest = ImmutableList
+                    .builder();
+            for (SegmentData segmentData : data.subList(0,
+                    Math.min(segmentsLimit, data.size()))) {
+                slowest.add(new SlowSegment(segmentData));
+            }
+            Map<String, Long> helpers = new TreeMap<String, Long>();
+            for (SegmentData segmentData : data) {
+                String helperName = segmentData.segment.getHelperName();
+                if (helperName != null) {
+                    Long count = helpers.get(helperName);
+                    helpers.put(helperName,
+                            count != null ? count + segmentData.invocations
+                                    : segmentData.invocations);
+                }
+            }
+            return new SlowRendering(templateName, time, !finished,
+                    outputSize, asyncWaitTime, slowest.build(),
+                    ImmutableMap.copyOf(helpers));
+        }
+
+    }
+
+    private static final class SegmentData {
+
+        private final Segment segment;
+
+        private final Origin origin;
+
+        private long invocations;
+
+        private long time;
+
+        private long selfTime;
+
+        SegmentData(Segment segment, Origin origin) {
+            this.segment = segment;
+            this.origin = origin;
+        }
+
+    }
+
+    /**
+     * The data captured for a slow rendering.
+     */
+    public static final class SlowRendering {
+
+        private final String templateName;
+
+        private final long time;
+
+        private final boolean failed;
+
+        private final long outputSize;
+
+        private final long asyncWaitTime;
+
+        private final List<SlowSegment> segments;
+
+        private final Map<String, Long> helperInvocations;
+
+        SlowRendering(String templateName, long time, boolean failed,
+                long outputSize, long asyncWaitTime,
+                List<SlowSegment> segments, Map<String, Long> helperInvocations) {
+            this.templateName = templateName;
+            this.time = time;
+            this.failed = failed;
+            this.outputSize = outputSize;
+            this.asyncWaitTime = asyncWaitTime;
+            this.segments = segments;
+            this.helperInvocations = helperInvocations;
+        }
+
+        public String getTemplateName() {
+            return templateName;
+        }
+
+        /**
+         *
+         * @return the rendering time in nanoseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         *
+         * @return <code>true</code> if the rendering failed,
+         *         <code>false</code> otherwise
+         */
+        public boolean isFailed() {
+            return failed;
+        }
+
+        /**
+         *
+         * @return the number of characters rendered or <code>-1</code> if the
+         *         rendering failed
+         */
+        public long getOutputSize() {
+            return outputSize;
+        }
+
+        /**
+         *
+         * @return the time the rendering thread waited for the output of the
+         *         asynchronous helpers in nanoseconds
+         */
+        public long getAsyncWaitTime() {
+            return asyncWaitTime;
+        }
+
+        /**
+         *
+         * @return the slowest segments, sorted by the self time in descending
+         *         order
+         */
+        public List<SlowSegment> getSegments() {
+            return segments;
+        }
+
+        /**
+         *
+         * @return the number of invocations per helper name
+         */
+        public Map<String, Long> getHelperInvocations() {
+            return helperInvocations;
+        }
+
+        @Override
+        public String toString() {
+            return String
+                    .format("Slow rendering [template: %s, time: %s ms, failed: %s, outputSize: %s, asyncWait: %s ms, helpers: %s, segments: %s]",
+                            templateName, TimeUnit.NANOSECONDS.toMillis(time),
+                            failed, outputSize,
+                            TimeUnit.NANOSECONDS.toMillis(asyncWaitTime),
+                            helperInvocations, segments);
+        }
+
+    }
+
+    /**
+     * The data captured for a segment of a slow rendering.
+     */
+    public static final class SlowSegment {
+
+        private final String segment;
+
+        private final String origin;
+
+        private final long invocations;
+
+        private final long time;
+
+        private final long selfTime;
+
+        SlowSegment(SegmentData data) {
+            this.segment = data.segment.getType() + ":"
+                    + data.segment.getText();
+            this.origin = SegmentProfiler.toOriginString(data.origin);
+            this.invocations = data.invocations;
+            this.time = data.time;
+            this.selfTime = data.selfTime;
+        }
+
+        /**
+         *
+         * @return the segment type and text
+         */
+        public String getSegment() {
+            return segment;
+        }
+
+        /**
+         *
+         * @return the template name and line
+         */
+        public String getOrigin() {
+            return origin;
+        }
+
+        public long getInvocations() {
+            return invocations;
+        }
+
+        /**
+         *
+         * @return the total time in nanoseconds, including the nested
+         *         segments
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         *
+         * @return the time in nanoseconds, excluding the nested segments
+         */
+        public long getSelfTime() {
+            return selfTime;
+        }
+
+        @Override
+        public String toString() {
+            return String
+                    .format("%s [%s] invocations: %s, time: %s ms, selfTime: %s ms",
+                            segment, origin, invocations,
+                            TimeUnit.NANOSECONDS.toMillis(time),
+                            TimeUnit.NANOSECONDS.toMillis(selfTime));
+        }
+
+    }
+
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine.locator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.trimou.engine.priority.WithPriority;
+import org.trimou.exception.MustacheException;
+import org.trimou.exception.MustacheProblem;
+import org.trimou.util.Checker;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.CharStreams;
+
+/**
+ * Reads the templates from a single bundle file through a
+ * {@link MappedByteBuffer}. The bundle consists of an index and the
+ * concatenated UTF-8 encoded template sources. The index is read when the
+ * locator is created, i.e. the lookup by id does not involve any I/O
+ * operation and {@link #getAllIdentifiers()} is served from the index.
+ *
+ * <p>
+ * A bundle can be created with {@link #write(Map, OutputStream)} or
+ * {@link #write(TemplateLocator, OutputStream)}, e.g. during the build.
+ * </p>
+ *
+ * @author Martin Kouba
+ */
+public class BundleTemplateLocator extends AbstractTemplateLocator {
+
+    private static final int MAGIC = 0x54524d42;
+
+    private static final int VERSION = 1;
+
+    private final File bundleFile;
+
+    private final ByteBuffer data;
+
+    private final Map<String, Entry> index;
+
+    /**
+     *
+     * @param priority
+     * @param bundleFile
+     */
+    public BundleTemplateLocator(int priority, File bundleFile) {
+        super(priority);
+        Checker.checkArgumentNotNull(bundleFile);
+        this.bundleFile = bundleFile;
+        MappedByteBuffer buffer = map(bundleFile);
+        this.index = readIndex(buffer);
+        this.data = buffer.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     *
+     * @param bundleFile
+     */
+    public BundleTemplateLocator(File bundleFile) {
+        this(WithPriority.BUILTIN_TEMPLATE_LOCATORS_DEFAULT_PRIORITY,
+                bundleFile);
+    }
+
+    @Override
+    public Reader locate(String templateId) {
+        Entry entry = index.get(templateId);
+        if (entry == null) {
+            return null;
+        }
+        // The buffer is read-only, a duplicate is safe to use concurrently
+        ByteBuffer source = data.duplicate();
+        source.position(entry.offset);
+        source.limit(entry.offset + entry.length);
+        CharsetDecoder decoder = Charsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        try {
+            return new StringReader(decoder.decode(source).toString());
+        } catch (CharacterCodingException e) {
+            throw new MustacheException(MustacheProblem.TEMPLATE_LOADING_ERROR,
+                    e);
+        }
+    }
+
+    @Override
+    public Set<String> getAllIdentifiers() {
+        return index.keySet();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [priority: %s, bundleFile: %s, templates: %s]",
+                getClass().getName(), getPriority(), bundleFile, index.size());
+    }
+
+    /**
+     * Write all the templates available to the given locator.
+     *
+     * @param locator
+     * @param out
+     * @throws IOException
+     */
+    public static void write(TemplateLocator locator, OutputStream out)
+            throws IOException {
+        Checker.checkArgumentsNotNull(locator, out);
+        SortedMap<String, String> templates = new TreeMap<String, String>();
+        for (String templateId : locator.getAllIdentifiers()) {
+            Reader reader = locator.locate(templateId);
+            if (reader == null) {
+                continue;
+            }
+            try {
+                templates.put(templateId, CharStreams.toString(reader));
+            } finally {
+                reader.close();
+            }
+        }
+        write(templates, out);
+    }
+
+    /**
+     *
+     * @param templates
+     *            Template id to source map
+     * @param out
+     * @throws IOException
+     */
+    public static void write(Map<String, String> templates, OutputStream out)
+            throws IOException {
+        Checker.checkArgumentsNotNull(templates, out);
+        // Sort the templates so that the output is reproducible
+        SortedMap<String, String> sorted = new TreeMap<String, String>(
+                templates);
+        ByteArrayOutputStream sources = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(sorted.size());
+        for (Map.Entry<String, String> entry : sorted.entrySet()) {
+            byte[] source = entry.getValue().getBytes(Charsets.UTF_8);
+            header.writeUTF(entry.getKey());
+            header.writeInt(sources.size());
+            header.writeInt(source.length);
+            sources.write(source);
+        }
+        sources.writeTo(header);
+        header.flush();
+    }
+
+    private static MappedByteBuffer map(File bundleFile) {
+        try {
+            RandomAccessFile file = new RandomAccessFile(bundleFile, "r");
+            try {
+                // The mapping remains valid after the channel is closed
+                return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        file.length());
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            throw new MustacheException(
+                    MustacheProblem.TEMPLATE_LOCATOR_INVALID_CONFIGURATION,
+                    "Unable to read the bundle file: " + bundleFile, e);
+        }
+    }
+
+    private static Map<String, Entry> readIndex(ByteBuffer buffer) {
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new MustacheException(
+                        MustacheProblem.TEMPLATE_LOCATOR_INVALID_CONFIGURATION,
+                        "Invalid bundle file format");
+            }
+            int size = buffer.getInt();
+            ImmutableMap.Builder<String, Entry> builder = ImmutableMap
+                    .builder();
+            for (int i = 0; i < size; i++) {
+                builder.put(readUTF(buffer),
+                        new Entry(buffer.getInt(), buffer.getInt()));
+            }
+            return builder.build();
+        } catch (RuntimeException e) {
+            if (e instanceof MustacheException) {
+                throw e;
+            }
+            throw new MustacheException(
+                    MustacheProblem.TEMPLATE_LOCATOR_INVALID_CONFIGURATION,
+                    "Invalid bundle file format", e);
+        }
+    }
+
+    /**
+     * Read a string written by {@link DataOutputStream#writeUTF(String)}. Note
+     * that template identifiers are not expected to contain characters
+     * encoded differently in modified UTF-8, i.e. null or supplementary
+     * characters.
+     */
+    private static String readUTF(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xffff;
+        ByteBuffer bytes = buffer.slice();
+        bytes.limit(length);
+        buffer.position(buffer.position() + length);
+        return Charsets.UTF_8.decode(bytes).toString();
+    }
+
+    private static final class Entry {
+
+        private final int offset;
+
+        private final int length;
+
+        Entry(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+}
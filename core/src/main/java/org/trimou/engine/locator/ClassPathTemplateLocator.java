@@ -19,8 +19,11 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLDecoder;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -28,7 +31,13 @@ import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.trimou.exception.MustacheException;
@@ -36,6 +45,8 @@ import org.trimou.exception.MustacheProblem;
 import org.trimou.util.Files;
 import org.trimou.util.Strings;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 
 /**
@@ -48,10 +59,13 @@ import com.google.common.collect.ImmutableSet;
  * the trimou-extension-servlet.
  *
  * By default, the locator will attempt to scan the classpath to get all
- * available template identifiers. However, only roots representing a directory
- * on a filesystem will be processed. The scanning of JARs and other sources is
- * not trivial. Moreover, it's legal for JARs to have no directory entries at
- * all. Scanning can be entirely disabled - see also
+ * available template identifiers. Roots representing a directory on a
+ * filesystem and roots located in a JAR archive (including a JAR nested in
+ * another JAR, e.g. <code>jar:file:/app.jar!/lib/templates.jar!/templates/</code>
+ * ) are processed. The entries of an archive are only read once and the result
+ * is cached. Note that it's legal for JARs to have no directory entries at all
+ * - such a root is not found by the class loader. Other sources are ignored.
+ * Scanning can be entirely disabled - see also
  * {@link Builder#setScanClasspath(boolean)}.
  *
  * @author Martin Kouba
@@ -61,10 +75,17 @@ public class ClassPathTemplateLocator extends PathTemplateLocator<String> {
     private static final Logger logger = LoggerFactory
             .getLogger(ClassPathTemplateLocator.class);
 
+    private static final String ARCHIVE_SEPARATOR = "!/";
+
     private final ClassLoader classLoader;
 
     private final boolean scanClasspath;
 
+    /**
+     * Archive URL to the list of file entries with the suffix
+     */
+    private final ConcurrentMap<String, List<String>> archiveEntries;
+
     /**
      *
      * @param priority
@@ -125,6 +146,7 @@ public class ClassPathTemplateLocator extends PathTemplateLocator<String> {
         }
         this.classLoader = classLoader;
         this.scanClasspath = scanClasspath;
+        this.archiveEntries = new ConcurrentHashMap<String, List<String>>();
     }
 
     @Override
@@ -170,6 +192,14 @@ public class ClassPathTemplateLocator extends PathTemplateLocator<String> {
                         logger.warn("Unable to process root path: {}",
                                 resource, e);
                     }
+                } else if (Strings.URI_PROCOTOL_JAR.equals(resource
+                        .getProtocol())) {
+                    try {
+                        processArchive(resource.toString(), builder);
+                    } catch (URISyntaxException e) {
+                        logger.warn("Unable to process root path: {}",
+                                resource, e);
+                    }
                 } else {
                     logger.debug(
                             "Protocol not supported - root resource is ignored: {}",
@@ -215,6 +245,154 @@ public class ClassPathTemplateLocator extends PathTemplateLocator<String> {
         return reader;
     }
 
+    private void processArchive(String rootUrl,
+            ImmutableSet.Builder<String> builder) throws IOException,
+            URISyntaxException {
+
+        int separatorIdx = rootUrl.lastIndexOf(ARCHIVE_SEPARATOR);
+        if (separatorIdx == -1) {
+            logger.warn("Unable to process root path: {}", rootUrl);
+            return;
+        }
+        String archiveUrl = rootUrl.substring(0, separatorIdx);
+        String rootEntry = decode(rootUrl.substring(separatorIdx
+                + ARCHIVE_SEPARATOR.length()));
+        if (!rootEntry.isEmpty() && !rootEntry.endsWith(Strings.SLASH)) {
+            rootEntry = rootEntry + Strings.SLASH;
+        }
+
+        for (String entry : getArchiveEntries(archiveUrl)) {
+            if (!entry.startsWith(rootEntry)) {
+                continue;
+            }
+            String id = stripSuffix(entry.substring(rootEntry.length())
+                    .replace(getRealPathSeparator(), getVirtualPathSeparator()));
+            builder.add(id);
+            logger.debug("Template available: {}", id);
+        }
+    }
+
+    private List<String> getArchiveEntries(String archiveUrl)
+            throws IOException, URISyntaxException {
+        List<String> entries = archiveEntries.get(archiveUrl);
+        if (entries == null) {
+            entries = readArchiveEntries(archiveUrl, getSuffix());
+            List<String> previous = archiveEntries.putIfAbsent(archiveUrl,
+                    entries);
+            if (previous != null) {
+                entries = previous;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Only the entries with the given suffix are read.
+     */
+    private static List<String> readArchiveEntries(String archiveUrl,
+            String suffix) throws IOException, URISyntaxException {
+        // jar:file:/app.jar!/lib/nested.jar
+        String[] parts = StringUtils.splitByWholeSeparator(
+                archiveUrl.substring(Strings.URI_PROCOTOL_JAR.length() + 1),
+                ARCHIVE_SEPARATOR);
+        // The central directory of the outermost archive is read at once
+        ZipFile archive = new ZipFile(Paths.get(new URI(parts[0])).toFile());
+        List<String> nested = new ArrayList<String>(parts.length - 1);
+        for (int i = 1; i < parts.length; i++) {
+            nested.add(decode(parts[i]));
+        }
+        try {
+            return readEntries(archive, nested, suffix);
+        } finally {
+            archive.close();
+        }
+    }
+
+    private static List<String> readEntries(ZipFile archive,
+            List<String> nested, String suffix) throws IOException {
+        if (!nested.isEmpty()) {
+            ZipEntry entry = archive.getEntry(nested.get(0));
+            if (entry != null && !entry.isDirectory()) {
+                ZipInputStream in = new ZipInputStream(
+                        archive.getInputStream(entry));
+                try {
+                    return readEntries(in, nested.subList(1, nested.size()),
+                            suffix);
+                } finally {
+                    in.close();
+                }
+            }
+        }
+        List<String> names = new ArrayList<String>();
+        for (Enumeration<? extends ZipEntry> entries = archive.entries(); entries
+                .hasMoreElements();) {
+            ZipEntry entry = entries.nextElement();
+            if (!entry.isDirectory() && hasSuffix(entry.getName(), suffix)) {
+                names.add(entry.getName());
+            }
+        }
+        return filterDirectories(names, nested);
+    }
+
+    private static List<String> readEntries(ZipInputStream in,
+            List<String> nested, String suffix) throws IOException {
+        // Nested archives must be read sequentially
+        List<String> names = new ArrayList<String>();
+        ZipEntry entry;
+        while ((entry = in.getNextEntry()) != null) {
+            if (entry.isDirectory()) {
+                continue;
+            }
+            if (!nested.isEmpty() && entry.getName().equals(nested.get(0))) {
+                // Do not close the stream - it would close the outer stream
+                return readEntries(new ZipInputStream(in),
+                        nested.subList(1, nested.size()), suffix);
+            }
+            if (hasSuffix(entry.getName(), suffix)) {
+                names.add(entry.getName());
+            }
+        }
+        return filterDirectories(names, nested);
+    }
+
+    private static boolean hasSuffix(String name, String suffix) {
+        return suffix == null || name.endsWith(suffix);
+    }
+
+    /**
+     * The names in <code>jar:</code> URLs are percent-encoded, e.g. a space is
+     * encoded as <code>%20</code>.
+     */
+    private static String decode(String name) {
+        try {
+            // A plus sign is not a space in a path
+            return URLDecoder.decode(name.replace("+", "%2B"),
+                    Charsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parts which do not represent a nested archive are directories, e.g.
+     * <code>BOOT-INF/classes</code>.
+     */
+    private static List<String> filterDirectories(List<String> names,
+            List<String> directories) {
+        for (String directory : directories) {
+            String prefix = directory.endsWith(Strings.SLASH) ? directory
+                    : directory + Strings.SLASH;
+            List<String> filtered = new ArrayList<String>();
+            for (String name : names) {
+                if (name.startsWith(prefix)) {
+                    filtered.add(name.substring(prefix.length()));
+                }
+            }
+            names = filtered;
+        }
+        return ImmutableList.copyOf(names);
+    }
+
     private String constructVirtualPath(File root, File source) {
 
         File parent = source.getParentFile();
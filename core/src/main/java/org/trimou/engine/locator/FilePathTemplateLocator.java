@@ -16,6 +16,7 @@
 package org.trimou.engine.locator;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -23,23 +24,50 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.trimou.engine.config.ConfigurationKey;
+import org.trimou.engine.config.SimpleConfigurationKey;
 import org.trimou.exception.MustacheException;
 import org.trimou.exception.MustacheProblem;
+import org.trimou.util.Checker;
 import org.trimou.util.Files;
 
+import com.google.common.collect.ImmutableSet;
+
 /**
  * Abstract file-based template locator.
  *
+ * <p>
+ * If {@link #WATCH_CHANGES_KEY} is set to <code>true</code>, the root
+ * directory is watched for changes (see {@link java.nio.file.WatchService})
+ * and the registered {@link TemplateChangeListener}s are notified. The engine
+ * invalidates the changed templates and the templates which depend on them
+ * (e.g. via partials), so that it's not necessary to set the
+ * {@link org.trimou.engine.config.EngineConfigurationKey#TEMPLATE_CACHE_EXPIRATION_TIMEOUT}
+ * in order to reload templates during development.
+ * </p>
+ *
  * @author Martin Kouba
  */
-public abstract class FilePathTemplateLocator extends PathTemplateLocator<File> {
+public abstract class FilePathTemplateLocator extends PathTemplateLocator<File>
+        implements ObservableTemplateLocator {
 
     private static final Logger logger = LoggerFactory
             .getLogger(FilePathTemplateLocator.class);
 
+    /**
+     * If set to <code>true</code> the root directory is watched for changes
+     */
+    public static final ConfigurationKey WATCH_CHANGES_KEY = new SimpleConfigurationKey(
+            FilePathTemplateLocator.class.getName() + ".watchChanges", false);
+
+    private final List<TemplateChangeListener> pendingListeners = new CopyOnWriteArrayList<TemplateChangeListener>();
+
+    private volatile TemplateWatcher watcher;
+
     /**
      *
      * @param priority
@@ -59,6 +87,64 @@ public abstract class FilePathTemplateLocator extends PathTemplateLocator<File>
         super(priority, rootPath, suffix);
     }
 
+    @Override
+    public void init() {
+        super.init();
+        if (configuration.getBooleanPropertyValue(WATCH_CHANGES_KEY)) {
+            File rootDir = getRootDir();
+            if (rootDir == null || !Files.isDirectoryUsable(rootDir)) {
+                logger.warn(
+                        "Unable to watch template changes - invalid root dir: {}",
+                        rootDir);
+                return;
+            }
+            try {
+                TemplateWatcher templateWatcher = new TemplateWatcher(this,
+                        rootDir);
+                for (TemplateChangeListener listener : pendingListeners) {
+                    templateWatcher.addListener(listener);
+                }
+                pendingListeners.clear();
+                templateWatcher.start();
+                watcher = templateWatcher;
+            } catch (IOException e) {
+                throw new MustacheException(
+                        MustacheProblem.TEMPLATE_LOCATOR_INVALID_CONFIGURATION,
+                        e);
+            }
+        }
+    }
+
+    @Override
+    public Set<ConfigurationKey> getConfigurationKeys() {
+        return ImmutableSet.<ConfigurationKey> builder()
+                .addAll(super.getConfigurationKeys()).add(WATCH_CHANGES_KEY)
+                .build();
+    }
+
+    @Override
+    public void addChangeListener(TemplateChangeListener listener) {
+        Checker.checkArgumentNotNull(listener);
+        TemplateWatcher templateWatcher = watcher;
+        if (templateWatcher != null) {
+            templateWatcher.addListener(listener);
+        } else {
+            // Not initialized or not watching
+            pendingListeners.add(listener);
+        }
+    }
+
+    /**
+     * Stop watching the template changes. Has no effect if
+     * {@link #WATCH_CHANGES_KEY} is not set to <code>true</code>.
+     */
+    public void stopWatching() {
+        TemplateWatcher templateWatcher = watcher;
+        if (templateWatcher != null) {
+            templateWatcher.stop();
+        }
+    }
+
     @Override
     public Reader locate(String filePath) {
         return locateRealPath(toRealPath(filePath));
@@ -113,6 +199,20 @@ public abstract class FilePathTemplateLocator extends PathTemplateLocator<File>
         return name.toString();
     }
 
+    /**
+     *
+     * @param file
+     * @return the template identifier for the given file or <code>null</code>
+     *         if the file does not represent a template
+     */
+    String getTemplateId(File file) {
+        if (getSuffix() != null
+                && !file.getName().endsWith("." + getSuffix())) {
+            return null;
+        }
+        return stripSuffix(constructVirtualPath(file));
+    }
+
     /**
      *
      * @return the root directory
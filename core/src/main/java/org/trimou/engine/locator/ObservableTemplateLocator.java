@@ -0,0 +1,35 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine.locator;
+
+/**
+ * A template locator which is able to notify about template changes, e.g. so
+ * that the engine can invalidate the changed templates.
+ *
+ * @author Martin Kouba
+ */
+public interface ObservableTemplateLocator extends TemplateLocator {
+
+    /**
+     * The listener is only weakly referenced, i.e. the caller is responsible
+     * for keeping a strong reference as long as the notifications should be
+     * delivered.
+     *
+     * @param listener
+     */
+    void addChangeListener(TemplateChangeListener listener);
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine.locator;
+
+/**
+ * Receives notifications about template changes.
+ *
+ * @author Martin Kouba
+ * @see ObservableTemplateLocator
+ */
+public interface TemplateChangeListener {
+
+    /**
+     * The template was created, modified or deleted. This method may be
+     * called from a different thread.
+     *
+     * @param templateId
+     */
+    void templateChanged(String templateId);
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine.locator;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the root directory of a {@link FilePathTemplateLocator} (including
+ * all subdirectories) and notifies the listeners about template changes.
+ *
+ * <p>
+ * The watcher thread is a daemon thread. It's stopped automatically once all
+ * the registered listeners are garbage collected.
+ * </p>
+ *
+ * @author Martin Kouba
+ */
+final class TemplateWatcher implements Runnable {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(TemplateWatcher.class);
+
+    private static final long POLL_TIMEOUT = 500;
+
+    private final FilePathTemplateLocator locator;
+
+    private final WatchService watchService;
+
+    private final Map<WatchKey, Path> directories;
+
+    private final List<WeakReference<TemplateChangeListener>> listeners;
+
+    private volatile boolean listenerAdded;
+
+    private volatile boolean running;
+
+    /**
+     *
+     * @param locator
+     * @param rootDir
+     * @throws IOException
+     */
+    TemplateWatcher(FilePathTemplateLocator locator, File rootDir)
+            throws IOException {
+        this.locator = locator;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.directories = new HashMap<WatchKey, Path>();
+        this.listeners = new CopyOnWriteArrayList<WeakReference<TemplateChangeListener>>();
+        registerAll(rootDir.toPath());
+    }
+
+    void addListener(TemplateChangeListener listener) {
+        listeners.add(new WeakReference<TemplateChangeListener>(listener));
+        listenerAdded = true;
+    }
+
+    void start() {
+        running = true;
+        Thread thread = new Thread(this, "Trimou template watcher ["
+                + locator.getRootPath() + "]");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        logger.debug("Watching template changes [locator: {}]", locator);
+        try {
+            while (running) {
+                WatchKey key;
+                try {
+                    key = watchService.poll(POLL_TIMEOUT,
+                            TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (key == null) {
+                    if (listenerAdded && !hasListeners()) {
+                        logger.debug("No listeners left - stop watching");
+                        break;
+                    }
+                    continue;
+                }
+                Path dir = directories.get(key);
+                if (dir != null) {
+                    processEvents(key, dir);
+                }
+                if (!key.reset()) {
+                    directories.remove(key);
+                }
+            }
+        } finally {
+            running = false;
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.warn("Unable to close the watch service", e);
+            }
+        }
+    }
+
+    private void processEvents(WatchKey key, Path dir) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // Some events might be lost
+                for (String templateId : locator.getAllIdentifiers()) {
+                    notifyListeners(templateId);
+                }
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+                try {
+                    registerAll(path);
+                } catch (IOException e) {
+                    logger.warn("Unable to watch the directory: " + path, e);
+                }
+                continue;
+            }
+            String templateId = locator.getTemplateId(path.toFile());
+            if (templateId != null) {
+                logger.debug("Template changed [id: {}, kind: {}]",
+                        templateId, event.kind());
+                notifyListeners(templateId);
+            }
+        }
+    }
+
+    private void notifyListeners(String templateId) {
+        for (WeakReference<TemplateChangeListener> reference : listeners) {
+            TemplateChangeListener listener = reference.get();
+            if (listener == null) {
+                listeners.remove(reference);
+            } else {
+                try {
+                    listener.templateChanged(templateId);
+                } catch (RuntimeException e) {
+                    logger.warn("Unable to notify the listener: " + listener,
+                            e);
+                }
+            }
+        }
+    }
+
+    private boolean hasListeners() {
+        for (WeakReference<TemplateChangeListener> reference : listeners) {
+            if (reference.get() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void registerAll(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir,
+                    BasicFileAttributes attrs) throws IOException {
+                directories.put(dir.register(watchService, ENTRY_CREATE,
+                        ENTRY_MODIFY, ENTRY_DELETE), dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+}
@@ -15,6 +15,7 @@
  */
 package org.trimou.engine.parser;
 
+import static org.trimou.engine.config.EngineConfigurationKey.LAZY_SECTION_COMPILATION;
 import static org.trimou.engine.config.EngineConfigurationKey.REMOVE_STANDALONE_LINES;
 import static org.trimou.engine.config.EngineConfigurationKey.REMOVE_UNNECESSARY_SEGMENTS;
 import static org.trimou.engine.config.EngineConfigurationKey.REUSE_LINE_SEPARATOR_SEGMENTS;
@@ -23,9 +24,11 @@ import static org.trimou.exception.MustacheProblem.COMPILE_INVALID_TAG;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Deque;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Set;
 import java.util.regex.Matcher;
 
 import org.apache.commons.lang3.StringUtils;
@@ -37,6 +40,7 @@ import org.trimou.engine.MustacheTagType;
 import org.trimou.engine.config.EngineConfigurationKey;
 import org.trimou.engine.segment.CommentSegment;
 import org.trimou.engine.segment.ContainerSegment;
+import org.trimou.engine.segment.DeferredSegmentList;
 import org.trimou.engine.segment.ExtendSectionSegment;
 import org.trimou.engine.segment.ExtendSegment;
 import org.trimou.engine.segment.InvertedSectionSegment;
@@ -52,9 +56,15 @@ import org.trimou.engine.segment.TextSegment;
 import org.trimou.engine.segment.ValueSegment;
 import org.trimou.exception.MustacheException;
 import org.trimou.exception.MustacheProblem;
+import org.trimou.handlebars.EmbedHelper;
+import org.trimou.handlebars.Helper;
+import org.trimou.handlebars.IncludeHelper;
 import org.trimou.util.Patterns;
+import org.trimou.util.Strings;
 
+import com.google.common.collect.ForwardingList;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 
 /**
  * The default handler implementation that compiles the template. It's not
@@ -69,6 +79,8 @@ class DefaultParsingHandler implements ParsingHandler {
 
     private final Deque<ContainerSegmentBase> containerStack = new ArrayDeque<ContainerSegmentBase>();
 
+    private final Set<String> dependencies = new HashSet<String>();
+
     private MustacheEngine engine;
 
     private String templateName;
@@ -130,10 +142,15 @@ class DefaultParsingHandler implements ParsingHandler {
                 .getIdentifierGenerator().generate(Mustache.class),
                 templateName, engine);
         template.setRootSegment(rootSegmentBase.asSegment(template));
+        template.setDependencies(ImmutableSet.copyOf(dependencies));
 
-        logger.debug("Compilation of {} finished [time: {} ms, segments: {}]",
-                new Object[] { templateName, System.currentTimeMillis() - start,
-                        template.getRootSegment().getSegmentsSize(true) });
+        if (logger.isDebugEnabled()) {
+            logger.debug(
+                    "Compilation of {} finished [time: {} ms, segments: {}]",
+                    new Object[] { templateName,
+                            System.currentTimeMillis() - start,
+                            template.getRootSegment().getSegmentsSize(true) });
+        }
 
         rootSegmentBase = null;
     }
@@ -154,19 +171,27 @@ class DefaultParsingHandler implements ParsingHandler {
             break;
         case UNESCAPE_VARIABLE:
         case VARIABLE:
+            addHelperDependency(tag.getContent());
             addSegment(new ValueSegmentBase(tag, line, getIndex(),
                     skipValueEscaping));
             break;
         case PARTIAL:
+            dependencies.add(tag.getContent());
             addSegment(new PartialSegmentBase(tag, line, getIndex()));
             break;
         case DELIMITER:
             changeDelimiters(tag.getContent());
             addSegment(new SegmentBase(tag, line, getIndex()));
             break;
+        case EXTEND:
+            dependencies.add(tag.getContent());
+            push(new ContainerSegmentBase(tag, line, getIndex()));
+            break;
         case SECTION:
+            addHelperDependency(tag.getContent());
+            push(new ContainerSegmentBase(tag, line, getIndex()));
+            break;
         case INVERTED_SECTION:
-        case EXTEND:
         case EXTEND_SECTION:
             push(new ContainerSegmentBase(tag, line, getIndex()));
             break;
@@ -268,6 +293,50 @@ class DefaultParsingHandler implements ParsingHandler {
         addSegment(container);
     }
 
+    /**
+     * Record the template included/embedded via {@link IncludeHelper} or
+     * {@link EmbedHelper}, e.g. <code>{{include "foo"}}</code>. Note that
+     * only string literals are taken into account.
+     *
+     * @param content
+     */
+    private void addHelperDependency(String content) {
+        if (!handlebarsSupportEnabled) {
+            return;
+        }
+        // Unlike HelperValidator.splitHelperName() an unterminated literal
+        // is ignored here - it's reported when the segment is compiled
+        int length = content.length();
+        int start = skipWhitespace(content, 0);
+        int end = start;
+        while (end < length && !Character.isWhitespace(content.charAt(end))) {
+            end++;
+        }
+        Helper helper = engine.getConfiguration().getHelpers()
+                .get(content.substring(start, end));
+        if (!(helper instanceof IncludeHelper)
+                && !(helper instanceof EmbedHelper)) {
+            return;
+        }
+        start = skipWhitespace(content, end);
+        if (start >= length
+                || !Strings.isStringLiteralSeparator(content.charAt(start))) {
+            return;
+        }
+        end = content.indexOf(content.charAt(start), start + 1);
+        if (end > start + 1) {
+            dependencies.add(content.substring(start + 1, end));
+        }
+    }
+
+    private static int skipWhitespace(String content, int index) {
+        while (index < content.length()
+                && Character.isWhitespace(content.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
     /**
      * E.g. =<% %>=, =[ ]=
      *
@@ -393,10 +462,10 @@ class DefaultParsingHandler implements ParsingHandler {
             switch (getType()) {
             case SECTION:
                 return new SectionSegment(getContent(), getOrigin(template),
-                        getSegments(template));
+                        getSectionSegments(template));
             case INVERTED_SECTION:
                 return new InvertedSectionSegment(getContent(),
-                        getOrigin(template), getSegments(template));
+                        getOrigin(template), getSectionSegments(template));
             case EXTEND:
                 return new ExtendSegment(getContent(), getOrigin(template),
                         getSegments(template));
@@ -417,6 +486,15 @@ class DefaultParsingHandler implements ParsingHandler {
             return builder.build();
         }
 
+        private List<Segment> getSectionSegments(Template template) {
+            if (!segments.isEmpty()
+                    && template.getEngine().getConfiguration()
+                            .getBooleanPropertyValue(LAZY_SECTION_COMPILATION)) {
+                return new LazySegmentList(this, template);
+            }
+            return getSegments(template);
+        }
+
         @Override
         public Iterator<SegmentBase> iterator() {
             return segments.iterator();
@@ -428,6 +506,74 @@ class DefaultParsingHandler implements ParsingHandler {
 
     }
 
+    /**
+     * The list of segments which are compiled when first needed. The
+     * reference to the segment bases is released afterwards.
+     */
+    static class LazySegmentList extends ForwardingList<Segment> implements
+            DeferredSegmentList {
+
+        private volatile List<Segment> segments;
+
+        private ContainerSegmentBase container;
+
+        private Template template;
+
+        LazySegmentList(ContainerSegmentBase container, Template template) {
+            this.container = container;
+            this.template = template;
+        }
+
+        @Override
+        public boolean isCompiled() {
+            return segments != null;
+        }
+
+        @Override
+        public int getPendingSegmentsSize() {
+            ContainerSegmentBase pending = container;
+            return pending != null ? sum(pending, false) : 0;
+        }
+
+        @Override
+        public int getPendingTextLength() {
+            ContainerSegmentBase pending = container;
+            return pending != null ? sum(pending, true) : 0;
+        }
+
+        private static int sum(ContainerSegmentBase container,
+                boolean textLength) {
+            int sum = 0;
+            for (SegmentBase base : container) {
+                sum += textLength ? base.getContent().length() : 1;
+                if (base instanceof ContainerSegmentBase) {
+                    sum += sum((ContainerSegmentBase) base, textLength);
+                }
+            }
+            return sum;
+        }
+
+        @Override
+        protected List<Segment> delegate() {
+            List<Segment> result = segments;
+            if (result == null) {
+                synchronized (this) {
+                    result = segments;
+                    if (result == null) {
+                        logger.trace("Compile lazy section {} in {}",
+                                container.getContent(), template.getName());
+                        result = container.getSegments(template);
+                        segments = result;
+                        container = null;
+                        template = null;
+                    }
+                }
+            }
+            return result;
+        }
+
+    }
+
     static class LineSeparatorBase extends SegmentBase {
 
         // Cache the segment so that reuse is possible
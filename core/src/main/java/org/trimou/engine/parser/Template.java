@@ -15,19 +15,28 @@
  */
 package org.trimou.engine.parser;
 
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import org.trimou.Mustache;
 import org.trimou.annotations.Internal;
 import org.trimou.engine.MustacheEngine;
 import org.trimou.engine.context.ExecutionContext;
 import org.trimou.engine.context.ExecutionContexts;
+import org.trimou.engine.context.RenderingBudget;
+import org.trimou.engine.listener.EngineMetricsListener;
+import org.trimou.engine.listener.EngineMetricsListeners;
 import org.trimou.engine.listener.MustacheListener;
 import org.trimou.engine.listener.MustacheRenderingEvent;
 import org.trimou.engine.resource.AbstractReleaseCallbackContainer;
+import org.trimou.engine.segment.Origin;
 import org.trimou.engine.segment.RootSegment;
 import org.trimou.exception.MustacheException;
 import org.trimou.exception.MustacheProblem;
+import org.trimou.util.OutputSizeEstimate;
+import org.trimou.util.StringBuilderPool;
 
 import com.google.common.collect.Lists;
 
@@ -47,8 +56,34 @@ public class Template implements Mustache {
 
     private final ExecutionContext globalExecutionContext;
 
+    /**
+     * The last access time is only updated if older than the granularity (in
+     * milliseconds).
+     */
+    public static final long LAST_ACCESS_TIME_GRANULARITY = 1000;
+
     private volatile RootSegment rootSegment;
 
+    private volatile Template originTemplate = this;
+
+    private volatile int sourceLength = -1;
+
+    private volatile long lastAccessTime;
+
+    private volatile Set<String> dependencies = Collections.emptySet();
+
+    private volatile boolean valid = true;
+
+    private volatile long expirationTime;
+
+    private final OutputSizeEstimate outputSize = new OutputSizeEstimate();
+
+    private final StringBuilderPool builderPool;
+
+    private final RenderingBudget renderingLimits;
+
+    private final EngineMetricsListener[] metricsListeners;
+
     /**
      *
      * @param generatedId
@@ -59,8 +94,13 @@ public class Template implements Mustache {
         this.generatedId = generatedId;
         this.name = name;
         this.engine = engine;
+        this.metricsListeners = EngineMetricsListeners.from(engine
+                .getConfiguration());
         this.globalExecutionContext = ExecutionContexts
-                .newGlobalExecutionContext(engine.getConfiguration());
+                .newGlobalExecutionContext(engine.getConfiguration(),
+                        metricsListeners);
+        this.builderPool = StringBuilderPool.from(engine.getConfiguration());
+        this.renderingLimits = RenderingBudget.from(engine.getConfiguration());
     }
 
     @Override
@@ -75,9 +115,14 @@ public class Template implements Mustache {
 
     @Override
     public String render(Object data) {
-        StringBuilder builder = new StringBuilder();
-        render(builder, data);
-        return builder.toString();
+        StringBuilder builder = builderPool.acquire(outputSize.get());
+        try {
+            render(builder, data);
+            outputSize.update(builder.length());
+            return builder.toString();
+        } finally {
+            builderPool.release(builder);
+        }
     }
 
     @Override
@@ -88,12 +133,34 @@ public class Template implements Mustache {
                         .generate(MustacheRenderingEvent.class));
         try {
             renderingStarted(event);
-            appendable = rootSegment.execute(
-                    appendable,
-                    data != null ? globalExecutionContext
-                            .setContextObject(data) : globalExecutionContext);
+            ExecutionContext context = globalExecutionContext;
+            // The length of a builder is known, no need to count
+            Appendable output = metricsListeners == null
+                    || appendable instanceof StringBuilder ? appendable
+                    : new CountingAppendable(appendable);
+            int initialLength = output instanceof StringBuilder ? ((StringBuilder) output)
+                    .length() : 0;
+            appendable = output;
+            if (renderingLimits != null) {
+                RenderingBudget budget = renderingLimits.start();
+                appendable = budget.limitOutput(appendable);
+                context = context.setRenderingBudget(budget);
+            }
+            appendable = rootSegment.execute(appendable,
+                    data != null ? context.setContextObject(data) : context);
             // We need for flush the async appendable if needed
-            RootSegment.flushAsyncAppendable(appendable);
+            long flushStart = metricsListeners != null ? System.nanoTime() : 0;
+            if (RootSegment.flushAsyncAppendable(appendable)
+                    && metricsListeners != null) {
+                EngineMetricsListeners.asyncOutputAwaited(metricsListeners,
+                        event, System.nanoTime() - flushStart);
+            }
+            if (metricsListeners != null) {
+                EngineMetricsListeners.outputRendered(metricsListeners, event,
+                        output instanceof CountingAppendable ? ((CountingAppendable) output).length
+                                : ((StringBuilder) output).length()
+                                        - initialLength);
+            }
             renderingFinished(event);
         } finally {
             event.release();
@@ -116,6 +183,135 @@ public class Template implements Mustache {
         return engine;
     }
 
+    /**
+     * The new template has its own root segment but the segments of the
+     * shared tree still refer to the template the tree was compiled for, see
+     * also {@link #getOriginTemplate()} and
+     * {@link ExecutionContext#getOrigin(org.trimou.engine.segment.Segment)}.
+     *
+     * @param generatedId
+     * @param name
+     * @return a new template with the given id and name which shares the
+     *         compiled segment tree with this template
+     */
+    public Template share(Long generatedId, String name) {
+        Template template = new Template(generatedId, name, engine);
+        template.setRootSegment(new RootSegment(new Origin(template),
+                rootSegment.getSegments()));
+        template.setDependencies(dependencies);
+        template.originTemplate = originTemplate;
+        return template;
+    }
+
+    /**
+     *
+     * @return the template the segments of this template refer to in their
+     *         origins, i.e. this template unless the compiled segment tree is
+     *         shared
+     * @see #share(Long, String)
+     */
+    public Template getOriginTemplate() {
+        return originTemplate;
+    }
+
+    /**
+     * The dependencies are recorded during compilation, i.e. also the
+     * templates referenced from lazily compiled sections are included.
+     *
+     * @return the ids of the templates this template refers to (partials,
+     *         template inheritance, include and embed helpers with a string
+     *         literal parameter)
+     */
+    public Set<String> getDependencies() {
+        return dependencies;
+    }
+
+    void setDependencies(Set<String> dependencies) {
+        this.dependencies = dependencies;
+    }
+
+    /**
+     *
+     * @return the number of characters of the template source or
+     *         <code>-1</code> if not known
+     */
+    public int getSourceLength() {
+        return sourceLength;
+    }
+
+    public void setSourceLength(int sourceLength) {
+        this.sourceLength = sourceLength;
+    }
+
+    /**
+     *
+     * @return the time the template was last obtained from the template cache
+     *         (in milliseconds, see {@link #LAST_ACCESS_TIME_GRANULARITY}), or
+     *         <code>0</code> if never
+     */
+    public long getLastAccessTime() {
+        return lastAccessTime;
+    }
+
+    public void setLastAccessTime(long lastAccessTime) {
+        this.lastAccessTime = lastAccessTime;
+    }
+
+    /**
+     * Frequently used templates do not write the volatile field on every
+     * access.
+     *
+     * @see #LAST_ACCESS_TIME_GRANULARITY
+     */
+    public void updateLastAccessTime() {
+        long now = System.currentTimeMillis();
+        if (now - lastAccessTime >= LAST_ACCESS_TIME_GRANULARITY) {
+            lastAccessTime = now;
+        }
+    }
+
+    /**
+     * A segment may hold a reference to a cached template (e.g. partial) as
+     * long as the template is valid.
+     *
+     * @return <code>true</code> if the template was not removed from the
+     *         template cache and is not expired, <code>false</code> otherwise
+     * @see #invalidate()
+     * @see #setExpirationTime(long)
+     */
+    public boolean isValid() {
+        return valid
+                && (expirationTime <= 0 || System.currentTimeMillis() < expirationTime);
+    }
+
+    /**
+     * The template is removed from the template cache.
+     */
+    public void invalidate() {
+        this.valid = false;
+    }
+
+    /**
+     *
+     * @param expirationTime
+     *            The time the template expires in the template cache (in
+     *            milliseconds), <code>0</code> means never
+     */
+    public void setExpirationTime(long expirationTime) {
+        this.expirationTime = expirationTime;
+    }
+
+    /**
+     * The estimate is only updated by {@link #render(Object)}.
+     *
+     * @return the estimated number of characters of the rendered output or
+     *         <code>0</code> if not known
+     * @see OutputSizeEstimate
+     */
+    public int getOutputSizeEstimate() {
+        return outputSize.get();
+    }
+
     private void renderingStarted(MustacheRenderingEvent event) {
         List<MustacheListener> listeners = engine.getConfiguration()
                 .getMustacheListeners();
@@ -178,6 +374,46 @@ public class Template implements Mustache {
 
     }
 
+    private static final class CountingAppendable implements Appendable {
+
+        private final Appendable delegate;
+
+        private long length;
+
+        CountingAppendable(Appendable delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq) throws IOException {
+            if (csq == null) {
+                return append("null");
+            }
+            delegate.append(csq);
+            length += csq.length();
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end)
+                throws IOException {
+            if (csq == null) {
+                return append("null", start, end);
+            }
+            delegate.append(csq, start, end);
+            length += end - start;
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) throws IOException {
+            delegate.append(c);
+            length++;
+            return this;
+        }
+
+    }
+
     @Override
     public String toString() {
         return String.format("Template %s", name);
@@ -0,0 +1,461 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine.parser;
+
+import static org.trimou.engine.config.EngineConfigurationKey.END_DELIMITER;
+import static org.trimou.engine.config.EngineConfigurationKey.START_DELIMITER;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.trimou.Mustache;
+import org.trimou.annotations.Internal;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.MustacheTagType;
+import org.trimou.exception.MustacheException;
+import org.trimou.exception.MustacheProblem;
+import org.trimou.util.Checker;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+/**
+ * A snapshot of parsed templates which can be persisted and loaded later, e.g.
+ * to speed up the startup of an application.
+ *
+ * <p>
+ * The snapshot does not hold the compiled segment trees (these are bound to a
+ * particular engine instance and its configuration - helpers, key splitter,
+ * etc.). Instead, it holds the compact sequence of parsing events (text, tag
+ * and line separator tokens) produced by the parser. Replaying the events skips
+ * the character-level parsing completely while the compilation still reflects
+ * the current engine configuration.
+ * </p>
+ *
+ * <p>
+ * Each entry is validated against the hash of the template source. A stale
+ * entry is ignored, i.e. the template is parsed as usual and the entry is
+ * replaced. Therefore it's possible to load a snapshot, build the engine and
+ * write the snapshot back in order to refresh it.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @author Martin Kouba
+ * @see org.trimou.engine.MustacheEngineBuilder#setTemplateSnapshot(TemplateSnapshot)
+ */
+public final class TemplateSnapshot {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(TemplateSnapshot.class);
+
+    private static final int MAGIC = 0x54524D53;
+
+    private static final int VERSION = 1;
+
+    private static final byte EVENT_TEXT = 1;
+
+    private static final byte EVENT_TAG = 2;
+
+    private static final byte EVENT_LINE_SEPARATOR = 3;
+
+    private static final byte EVENT_END = 0;
+
+    /**
+     * The default name of the snapshot resource, e.g. the location used by the
+     * build-time compilation plugin
+     */
+    public static final String DEFAULT_RESOURCE_NAME = "META-INF/trimou/templates.snapshot";
+
+    private final ConcurrentMap<String, SnapshotEntry> entries;
+
+    /**
+     * Create an empty snapshot.
+     */
+    public TemplateSnapshot() {
+        this.entries = new ConcurrentHashMap<String, SnapshotEntry>();
+    }
+
+    /**
+     *
+     * @param input
+     *            The stream is not closed
+     * @return the snapshot read from the given input stream
+     * @throws IOException
+     */
+    public static TemplateSnapshot read(InputStream input) throws IOException {
+        Checker.checkArgumentNotNull(input);
+        DataInputStream in = new DataInputStream(input);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a template snapshot");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported template snapshot version: "
+                    + version);
+        }
+        TemplateSnapshot snapshot = new TemplateSnapshot();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            String templateId = in.readUTF();
+            byte[] hash = readBytes(in);
+            byte[] events = readBytes(in);
+            snapshot.entries.put(templateId, new SnapshotEntry(hash, events));
+        }
+        logger.debug("Template snapshot read [entries: {}]", size);
+        return snapshot;
+    }
+
+    /**
+     *
+     * @param classLoader
+     * @return the snapshot read from the {@link #DEFAULT_RESOURCE_NAME}
+     *         resource or <code>null</code> if no such resource exists
+     * @throws IOException
+     */
+    public static TemplateSnapshot fromClassPath(ClassLoader classLoader)
+            throws IOException {
+        return fromClassPath(classLoader, DEFAULT_RESOURCE_NAME);
+    }
+
+    /**
+     *
+     * @param classLoader
+     * @param resourceName
+     * @return the snapshot read from the given resource or <code>null</code> if
+     *         no such resource exists
+     * @throws IOException
+     */
+    public static TemplateSnapshot fromClassPath(ClassLoader classLoader,
+            String resourceName) throws IOException {
+        Checker.checkArgumentsNotNull(classLoader, resourceName);
+        InputStream in = classLoader.getResourceAsStream(resourceName);
+        if (in == null) {
+            return null;
+        }
+        try {
+            return read(new BufferedInputStream(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     *
+     * @param output
+     *            The stream is flushed but not closed
+     * @throws IOException
+     */
+    public void write(OutputStream output) throws IOException {
+        Checker.checkArgumentNotNull(output);
+        // Make a copy so that the entries count is consistent
+        Set<Entry<String, SnapshotEntry>> current = ImmutableSet
+                .copyOf(entries.entrySet());
+        DataOutputStream out = new DataOutputStream(output);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(current.size());
+        for (Entry<String, SnapshotEntry> entry : current) {
+            out.writeUTF(entry.getKey());
+            writeBytes(out, entry.getValue().hash);
+            writeBytes(out, entry.getValue().events);
+        }
+        out.flush();
+        logger.debug("Template snapshot written [entries: {}]", current.size());
+    }
+
+    /**
+     *
+     * @return the immutable set of identifiers of all templates in the snapshot
+     */
+    public Set<String> getTemplateIds() {
+        return ImmutableSet.copyOf(entries.keySet());
+    }
+
+    /**
+     *
+     * @param templateId
+     * @return <code>true</code> if the snapshot contains an entry for the given
+     *         template, <code>false</code> otherwise
+     */
+    public boolean contains(String templateId) {
+        return entries.containsKey(templateId);
+    }
+
+    /**
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     *
+     * @return <code>true</code> if the snapshot contains no entries
+     */
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Compile the template. If there is a valid entry for the given template,
+     * the parsing events are replayed to the given handler. Otherwise the
+     * source is parsed and the entry is updated.
+     *
+     * @param templateId
+     * @param source
+     * @param engine
+     * @param parserFactory
+     * @param handler
+     * @return the compiled template
+     */
+    @Internal
+    public Mustache compile(String templateId, String source,
+            MustacheEngine engine, ParserFactory parserFactory,
+            ParsingHandler handler) {
+
+        String start = engine.getConfiguration().getStringPropertyValue(
+                START_DELIMITER);
+        String end = engine.getConfiguration().getStringPropertyValue(
+                END_DELIMITER);
+        byte[] hash = hash(source, start, end);
+        SnapshotEntry entry = entries.get(templateId);
+
+        if (entry != null && Arrays.equals(entry.hash, hash)) {
+            replay(templateId, entry, new Delimiters(start, end), engine,
+                    handler);
+            logger.trace("Template {} compiled from snapshot", templateId);
+        } else {
+            if (entry != null) {
+                logger.debug("Stale snapshot entry for {} will be replaced",
+                        templateId);
+            }
+            RecordingParsingHandler recording = new RecordingParsingHandler(
+                    handler);
+            parserFactory.createParser(engine).parse(templateId,
+                    new StringReader(source), recording);
+            entries.put(templateId, new SnapshotEntry(hash,
+                    recording.getEvents()));
+        }
+        return handler.getCompiledTemplate();
+    }
+
+    private void replay(String templateId, SnapshotEntry entry,
+            Delimiters delimiters, MustacheEngine engine,
+            ParsingHandler handler) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    entry.events));
+            handler.startTemplate(templateId, delimiters, engine);
+            byte event;
+            while ((event = in.readByte()) != EVENT_END) {
+                switch (event) {
+                case EVENT_TEXT:
+                    handler.text(readString(in));
+                    break;
+                case EVENT_LINE_SEPARATOR:
+                    handler.lineSeparator(readString(in));
+                    break;
+                case EVENT_TAG:
+                    MustacheTagType type = MustacheTagType
+                            .valueOf(in.readUTF());
+                    handler.tag(new ParsedTag(readString(in), type));
+                    break;
+                default:
+                    throw new MustacheException(
+                            MustacheProblem.COMPILE_IO_ERROR,
+                            "Unsupported snapshot event: %s", event);
+                }
+            }
+            handler.endTemplate();
+        } catch (IOException e) {
+            entries.remove(templateId, entry);
+            throw new MustacheException(MustacheProblem.COMPILE_IO_ERROR, e);
+        } catch (IllegalArgumentException e) {
+            // Unknown tag type
+            entries.remove(templateId, entry);
+            throw new MustacheException(MustacheProblem.COMPILE_IO_ERROR, e);
+        } catch (MustacheException e) {
+            if (MustacheProblem.COMPILE_IO_ERROR.equals(e.getCode())) {
+                entries.remove(templateId, entry);
+            }
+            throw e;
+        }
+    }
+
+    private static byte[] hash(String source, String startDelimiter,
+            String endDelimiter) {
+        // The default delimiters affect the parsing events
+        return Hashing.murmur3_128().newHasher()
+                .putString(startDelimiter, Charsets.UTF_8).putByte((byte) 0)
+                .putString(endDelimiter, Charsets.UTF_8).putByte((byte) 0)
+                .putString(source, Charsets.UTF_8).hash().asBytes();
+    }
+
+    private static void writeString(DataOutputStream out, String value)
+            throws IOException {
+        writeBytes(out, value.getBytes(Charsets.UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), Charsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value)
+            throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new MustacheException(MustacheProblem.COMPILE_IO_ERROR,
+                    "Corrupt template snapshot - invalid length: %s", length);
+        }
+        if (length > in.available()) {
+            // The number of available bytes is only an estimate for some
+            // streams - do not allocate the whole array upfront
+            byte[] value = ByteStreams.toByteArray(ByteStreams.limit(in,
+                    length));
+            if (value.length != length) {
+                throw new MustacheException(MustacheProblem.COMPILE_IO_ERROR,
+                        "Corrupt template snapshot - length %s exceeds the remaining stream",
+                        length);
+            }
+            return value;
+        }
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+
+    private static final class SnapshotEntry {
+
+        private final byte[] hash;
+
+        private final byte[] events;
+
+        SnapshotEntry(byte[] hash, byte[] events) {
+            this.hash = hash;
+            this.events = events;
+        }
+
+    }
+
+    /**
+     * Records the parsing events and delegates to the original handler.
+     */
+    private static final class RecordingParsingHandler implements
+            ParsingHandler {
+
+        private final ParsingHandler delegate;
+
+        private final ByteArrayOutputStream bytes;
+
+        private final DataOutputStream out;
+
+        RecordingParsingHandler(ParsingHandler delegate) {
+            this.delegate = delegate;
+            this.bytes = new ByteArrayOutputStream();
+            this.out = new DataOutputStream(bytes);
+        }
+
+        @Override
+        public void startTemplate(String name, Delimiters delimiters,
+                MustacheEngine engine) {
+            delegate.startTemplate(name, delimiters, engine);
+        }
+
+        @Override
+        public void text(String text) {
+            delegate.text(text);
+            try {
+                out.writeByte(EVENT_TEXT);
+                writeString(out, text);
+            } catch (IOException e) {
+                throw new MustacheException(MustacheProblem.COMPILE_IO_ERROR,
+                        e);
+            }
+        }
+
+        @Override
+        public void tag(ParsedTag tag) {
+            delegate.tag(tag);
+            try {
+                out.writeByte(EVENT_TAG);
+                out.writeUTF(tag.getType().name());
+                writeString(out, tag.getContent());
+            } catch (IOException e) {
+                throw new MustacheException(MustacheProblem.COMPILE_IO_ERROR,
+                        e);
+            }
+        }
+
+        @Override
+        public void lineSeparator(String separator) {
+            delegate.lineSeparator(separator);
+            try {
+                out.writeByte(EVENT_LINE_SEPARATOR);
+                writeString(out, separator);
+            } catch (IOException e) {
+                throw new MustacheException(MustacheProblem.COMPILE_IO_ERROR,
+                        e);
+            }
+        }
+
+        @Override
+        public void endTemplate() {
+            delegate.endTemplate();
+            try {
+                out.writeByte(EVENT_END);
+            } catch (IOException e) {
+                throw new MustacheException(MustacheProblem.COMPILE_IO_ERROR,
+                        e);
+            }
+        }
+
+        @Override
+        public Mustache getCompiledTemplate() {
+            return delegate.getCompiledTemplate();
+        }
+
+        byte[] getEvents() {
+            return bytes.toByteArray();
+        }
+
+    }
+
+}
@@ -20,6 +20,8 @@ import java.util.List;
 
 import org.trimou.engine.MustacheTagInfo;
 import org.trimou.engine.context.ExecutionContext;
+import org.trimou.engine.context.RenderingBudget;
+import org.trimou.engine.listener.SegmentExecutionListener;
 
 import com.google.common.collect.ImmutableList;
 
@@ -33,6 +35,11 @@ abstract class AbstractContainerSegment extends AbstractSegment implements
 
     private final List<Segment> segments;
 
+    /**
+     * Only set if some listener is interested in segment executions
+     */
+    private final SegmentExecutionListener[] executionListeners;
+
     /**
      *
      * @param name
@@ -42,15 +49,46 @@ abstract class AbstractContainerSegment extends AbstractSegment implements
     public AbstractContainerSegment(String name, Origin origin, List<Segment> segments) {
         super(name, origin);
         this.segments = segments;
+        this.executionListeners = Segments
+                .getExecutionListeners(getEngineConfiguration());
     }
 
     public Appendable execute(Appendable appendable, ExecutionContext context) {
+        RenderingBudget budget = context.getRenderingBudget();
+        if (budget != null) {
+            budget.checkDeadline(this, context);
+        }
+        if (executionListeners != null) {
+            return executeObserved(appendable, context);
+        }
         for (Segment segment : segments) {
             appendable = segment.execute(appendable, context);
         }
         return appendable;
     }
 
+    private Appendable executeObserved(Appendable appendable,
+            ExecutionContext context) {
+        for (Segment segment : segments) {
+            if (segment.getType().getTagType() == null) {
+                // Text, line separator
+                appendable = segment.execute(appendable, context);
+                continue;
+            }
+            for (SegmentExecutionListener listener : executionListeners) {
+                listener.segmentStarted(segment, context);
+            }
+            try {
+                appendable = segment.execute(appendable, context);
+            } finally {
+                for (int i = executionListeners.length - 1; i >= 0; i--) {
+                    executionListeners[i].segmentFinished(segment, context);
+                }
+            }
+        }
+        return appendable;
+    }
+
     @Override
     public Iterator<Segment> iterator() {
         return getSegments().iterator();
@@ -63,6 +101,9 @@ abstract class AbstractContainerSegment extends AbstractSegment implements
     public int getSegmentsSize(boolean recursive) {
         if(recursive) {
             int count = 0;
+            if (Segments.isDeferred(segments)) {
+                return count;
+            }
             for (Segment segment : this) {
                 count++;
                 if (segment instanceof ContainerSegment) {
@@ -71,7 +112,7 @@ abstract class AbstractContainerSegment extends AbstractSegment implements
             }
             return count;
         }
-        return segments.size();
+        return Segments.isDeferred(segments) ? 0 : segments.size();
     }
 
     public String getContentLiteralBlock() {
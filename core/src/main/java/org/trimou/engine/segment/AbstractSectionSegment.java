@@ -14,17 +14,19 @@ import org.trimou.engine.config.EngineConfigurationKey;
  */
 abstract class AbstractSectionSegment extends AbstractContainerSegment {
 
-    private final String cachedContentLiteralBlock;
+    private final boolean cacheContentLiteralBlock;
+
+    /**
+     * Lazily initialized so that the literal block is not held if not used
+     */
+    private volatile String cachedContentLiteralBlock;
 
     public AbstractSectionSegment(String name, Origin origin,
             List<Segment> segments) {
         super(name, origin, segments);
-        if (getEngineConfiguration().getBooleanPropertyValue(
-                EngineConfigurationKey.CACHE_SECTION_LITERAL_BLOCK)) {
-            this.cachedContentLiteralBlock = getContentLiteralBlock();
-        } else {
-            this.cachedContentLiteralBlock = null;
-        }
+        this.cacheContentLiteralBlock = getEngineConfiguration()
+                .getBooleanPropertyValue(
+                        EngineConfigurationKey.CACHE_SECTION_LITERAL_BLOCK);
     }
 
     @Override
@@ -40,10 +42,15 @@ abstract class AbstractSectionSegment extends AbstractContainerSegment {
 
     @Override
     public String getContentLiteralBlock() {
-        if (cachedContentLiteralBlock != null) {
-            return cachedContentLiteralBlock;
+        if (!cacheContentLiteralBlock) {
+            return super.getContentLiteralBlock();
+        }
+        String literal = cachedContentLiteralBlock;
+        if (literal == null) {
+            literal = super.getContentLiteralBlock();
+            cachedContentLiteralBlock = literal;
         }
-        return super.getContentLiteralBlock();
+        return literal;
     }
 
 }
@@ -44,7 +44,10 @@ abstract class AbstractSegment implements Segment {
 
     private final String text;
 
-    private final MustacheTagInfo info;
+    /**
+     * Lazily initialized - most segments never need the info
+     */
+    private volatile MustacheTagInfo info;
 
     /**
      *
@@ -53,9 +56,8 @@ abstract class AbstractSegment implements Segment {
      */
     public AbstractSegment(String text, Origin origin) {
         Checker.checkArgumentsNotNull(text, origin);
-        this.text = text;
         this.origin = origin;
-        this.info = new DefaultSegmentInfo();
+        this.text = isCompactSegmentsEnabled() ? Segments.intern(text) : text;
     }
 
     public String getText() {
@@ -69,7 +71,22 @@ abstract class AbstractSegment implements Segment {
 
     @Override
     public MustacheTagInfo getTagInfo() {
-        return info;
+        MustacheTagInfo result = info;
+        if (result == null) {
+            synchronized (this) {
+                result = info;
+                if (result == null) {
+                    result = new DefaultSegmentInfo();
+                    info = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String getHelperName() {
+        return null;
     }
 
     @Override
@@ -107,6 +124,11 @@ abstract class AbstractSegment implements Segment {
         return getDefaultStartDelimiter() + content + getDefaultEndDelimiter();
     }
 
+    protected boolean isCompactSegmentsEnabled() {
+        return getEngineConfiguration().getBooleanPropertyValue(
+                EngineConfigurationKey.COMPACT_SEGMENTS);
+    }
+
     protected boolean isHandlebarsSupportEnabled() {
         return getEngineConfiguration().getBooleanPropertyValue(
                 EngineConfigurationKey.HANDLEBARS_SUPPORT_ENABLED);
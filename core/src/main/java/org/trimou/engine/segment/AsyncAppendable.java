@@ -16,9 +16,11 @@
 package org.trimou.engine.segment;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import org.trimou.engine.context.RenderingBudget;
 import org.trimou.exception.MustacheException;
 import org.trimou.exception.MustacheProblem;
 import org.trimou.handlebars.Options;
@@ -37,34 +39,50 @@ class AsyncAppendable implements Appendable {
 
     protected volatile Future<AsyncAppendable> future;
 
+    private final RenderingBudget budget;
+
     /**
      *
      * @param parent
+     * @param budget
+     *            The budget of the rendering, may be <code>null</code>
      */
-    AsyncAppendable(Appendable parent) {
+    AsyncAppendable(Appendable parent, RenderingBudget budget) {
         this.parent = parent;
         this.buffer = new StringBuilder();
+        this.budget = budget;
     }
 
     @Override
     public Appendable append(CharSequence csq) throws IOException {
+        int length = buffer.length();
         buffer.append(csq);
+        buffered(length);
         return this;
     }
 
     @Override
     public Appendable append(CharSequence csq, int start, int end)
             throws IOException {
+        int length = buffer.length();
         buffer.append(csq, start, end);
+        buffered(length);
         return this;
     }
 
     @Override
     public Appendable append(char c) throws IOException {
         buffer.append(c);
+        buffered(buffer.length() - 1);
         return this;
     }
 
+    private void buffered(int previousLength) {
+        if (budget != null) {
+            budget.asyncOutput(buffer.length() - previousLength);
+        }
+    }
+
     /**
      * Append the result to the parent.
      */
@@ -76,8 +94,7 @@ class AsyncAppendable implements Appendable {
                 ((AsyncAppendable) parent).flush();
             }
         } catch (Exception e) {
-            throw new MustacheException(
-                    MustacheProblem.RENDER_ASYNC_PROCESSING_ERROR, e);
+            throw asyncProcessingError(e);
         }
     }
 
@@ -114,22 +131,39 @@ class AsyncAppendable implements Appendable {
                 }
                 return ret;
             } catch (Exception e) {
-                throw new MustacheException(
-                        MustacheProblem.RENDER_ASYNC_PROCESSING_ERROR, e);
+                throw asyncProcessingError(e);
             }
         } else {
             return ret != null ? ret.append(buffer) : buffer;
         }
     }
 
+    /**
+     * A {@link MustacheException} thrown by the asynchronous task (e.g. the
+     * output limit exceeded) is propagated as is.
+     *
+     * @param e
+     * @return the exception to throw
+     */
+    private MustacheException asyncProcessingError(Exception e) {
+        Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+        if (cause instanceof MustacheException) {
+            return (MustacheException) cause;
+        }
+        return new MustacheException(
+                MustacheProblem.RENDER_ASYNC_PROCESSING_ERROR, e);
+    }
+
     void setFuture(Future<AsyncAppendable> future) {
         this.future = future;
     }
 
-    static void flushIfNeeded(Appendable appendable) {
+    static boolean flushIfNeeded(Appendable appendable) {
         if (appendable instanceof AsyncAppendable) {
             ((AsyncAppendable) appendable).flush();
+            return true;
         }
+        return false;
     }
 
 }
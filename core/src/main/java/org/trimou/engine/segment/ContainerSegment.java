@@ -19,9 +19,11 @@ public interface ContainerSegment extends Segment, Iterable<Segment> {
     List<Segment> getSegments();
 
     /**
+     * The segments which are not compiled yet are not taken into account.
      *
      * @param recursive
      * @return the number of segments
+     * @see DeferredSegmentList
      */
     int getSegmentsSize(boolean recursive);
 
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine.segment;
+
+import java.util.List;
+
+import org.trimou.annotations.Internal;
+
+/**
+ * A list of segments which are not compiled until first needed. Any operation
+ * which accesses the elements triggers the compilation.
+ *
+ * @author Martin Kouba
+ * @see org.trimou.engine.config.EngineConfigurationKey#LAZY_SECTION_COMPILATION
+ */
+@Internal
+public interface DeferredSegmentList extends List<Segment> {
+
+    /**
+     *
+     * @return <code>true</code> if the segments are already compiled,
+     *         <code>false</code> otherwise
+     */
+    boolean isCompiled();
+
+    /**
+     * Must not trigger the compilation.
+     *
+     * @return the number of segments, including the nested ones, which are
+     *         not compiled yet
+     */
+    int getPendingSegmentsSize();
+
+    /**
+     * Must not trigger the compilation.
+     *
+     * @return the total length of the text of the segments, including the
+     *         nested ones, which are not compiled yet
+     */
+    int getPendingTextLength();
+
+}
@@ -15,8 +15,10 @@
  */
 package org.trimou.engine.segment;
 
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 import org.trimou.annotations.Internal;
 import org.trimou.engine.context.ExecutionContext;
@@ -24,6 +26,9 @@ import org.trimou.engine.parser.Template;
 import org.trimou.exception.MustacheException;
 import org.trimou.exception.MustacheProblem;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.MapMaker;
+
 /**
  * This segment extends some template and overrides its extending sections.
  *
@@ -37,16 +42,30 @@ import org.trimou.exception.MustacheProblem;
 public class ExtendSegment extends AbstractSectionSegment {
 
     /**
-     * Cache the partial template if possible, i.e. if the cache is enabled, no
-     * expiration timeout is set and debug mode is not enabled
+     * Cache the partial template if possible, i.e. if the cache is enabled and
+     * debug mode is not enabled
+     */
+    private final TemplateReference cachedExtendedTemplate;
+
+    /**
+     * The defining sections of this segment, initialized lazily because the
+     * segments might be compiled lazily
+     */
+    private volatile Map<String, Segment> definingSections;
+
+    /**
+     * The defining sections of this segment merged with the sections already
+     * associated with the context. The key is compared using identity, i.e.
+     * for a static inheritance chain the merged map is only computed once.
      */
-    private final AtomicReference<Template> cachedExtendedTemplate;
+    private final ConcurrentMap<Map<String, Segment>, Map<String, Segment>> mergedDefiningSections;
 
     public ExtendSegment(String text, Origin origin, List<Segment> segments) {
         super(text, origin, segments);
         this.cachedExtendedTemplate = Segments
-                .isTemplateCachingAllowed(getEngineConfiguration()) ? new AtomicReference<Template>()
-                : null;
+                .isTemplateCachingAllowed(getEngineConfiguration()) ? new TemplateReference(
+                text) : null;
+        this.mergedDefiningSections = new MapMaker().weakKeys().makeMap();
     }
 
     @Override
@@ -64,9 +83,41 @@ public class ExtendSegment extends AbstractSectionSegment {
             throw new MustacheException(
                     MustacheProblem.RENDER_INVALID_EXTEND_KEY,
                     "No template to extend found for the given key: %s %s",
-                    getText(), getOrigin());
+                    getText(), context.getOrigin(this));
+        }
+        return extended.getRootSegment().execute(appendable,
+                context.setAllDefiningSections(getDefiningSections(context)));
+    }
+
+    private Map<String, Segment> getDefiningSections(ExecutionContext context) {
+        Map<String, Segment> own = definingSections;
+        if (own == null) {
+            Map<String, Segment> sections = new HashMap<String, Segment>();
+            for (Segment segment : this) {
+                if (SegmentType.EXTEND_SECTION.equals(segment.getType())) {
+                    sections.put(segment.getText(), segment);
+                }
+            }
+            own = ImmutableMap.copyOf(sections);
+            definingSections = own;
+        }
+        Map<String, Segment> current = context.getDefiningSections();
+        if (current == null || current.isEmpty()) {
+            return own;
+        }
+        Map<String, Segment> merged = mergedDefiningSections.get(current);
+        if (merged == null) {
+            // The sections already associated with the context take precedence
+            Map<String, Segment> sections = new HashMap<String, Segment>(own);
+            sections.putAll(current);
+            merged = ImmutableMap.copyOf(sections);
+            Map<String, Segment> previous = mergedDefiningSections
+                    .putIfAbsent(current, merged);
+            if (previous != null) {
+                merged = previous;
+            }
         }
-        return extended.getRootSegment().execute(appendable, context.setDefiningSections(this));
+        return merged;
     }
 
 }
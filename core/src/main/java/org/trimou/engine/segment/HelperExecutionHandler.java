@@ -32,7 +32,10 @@ import org.slf4j.LoggerFactory;
 import org.trimou.engine.MustacheEngine;
 import org.trimou.engine.MustacheTagInfo;
 import org.trimou.engine.context.ExecutionContext;
+import org.trimou.engine.context.RenderingBudget;
 import org.trimou.engine.context.ValueWrapper;
+import org.trimou.engine.listener.EngineMetricsListener;
+import org.trimou.engine.listener.EngineMetricsListeners;
 import org.trimou.engine.parser.Template;
 import org.trimou.exception.MustacheException;
 import org.trimou.exception.MustacheProblem;
@@ -56,16 +59,21 @@ import com.google.common.collect.ImmutableMap;
  */
 class HelperExecutionHandler {
 
+    private final String helperName;
+
     private final Helper helper;
 
     private final OptionsBuilder optionsBuilder;
 
     /**
      *
+     * @param helperName
      * @param helper
      * @param optionsBuilder
      */
-    private HelperExecutionHandler(Helper helper, OptionsBuilder optionsBuilder) {
+    private HelperExecutionHandler(String helperName, Helper helper,
+            OptionsBuilder optionsBuilder) {
+        this.helperName = helperName;
         this.helper = helper;
         this.optionsBuilder = optionsBuilder;
     }
@@ -84,8 +92,8 @@ class HelperExecutionHandler {
         // First detect unterminated literals
         Iterator<String> parts = HelperValidator.splitHelperName(name, segment);
 
-        Helper helper = engine.getConfiguration().getHelpers()
-                .get(parts.next());
+        String helperName = parts.next();
+        Helper helper = engine.getConfiguration().getHelpers().get(helperName);
 
         if (helper == null) {
             return null;
@@ -118,7 +126,15 @@ class HelperExecutionHandler {
         // Let the helper validate the tag definition
         helper.validate(optionsBuilder);
 
-        return new HelperExecutionHandler(helper, optionsBuilder);
+        return new HelperExecutionHandler(helperName, helper, optionsBuilder);
+    }
+
+    /**
+     *
+     * @return the name the helper is registered with
+     */
+    String getHelperName() {
+        return helperName;
     }
 
     /**
@@ -155,6 +171,8 @@ class HelperExecutionHandler {
 
         private final MustacheEngine engine;
 
+        private final EngineMetricsListener[] metricsListeners;
+
         // true if not placeholder found, also if params list is empty
         private final boolean isParamValuePlaceholderFound;
 
@@ -168,6 +186,8 @@ class HelperExecutionHandler {
             this.hash = hash;
             this.segment = segment;
             this.engine = engine;
+            this.metricsListeners = EngineMetricsListeners.from(engine
+                    .getConfiguration());
             this.isParamValuePlaceholderFound = initParamValuePlaceholderFound(parameters);
             this.isHashValuePlaceholderFound = initHashValuePlaceholderFound(hash);
         }
@@ -254,7 +274,8 @@ class HelperExecutionHandler {
             }
 
             return new DefaultOptions(appendable, executionContext, segment,
-                    finalParams, finalHash, valueWrappers, engine);
+                    finalParams, finalHash, valueWrappers, engine,
+                    metricsListeners);
         }
 
         private Object resolveValue(Object value,
@@ -318,6 +339,8 @@ class HelperExecutionHandler {
 
         private final Map<String, Object> hash;
 
+        private final EngineMetricsListener[] metricsListeners;
+
         /**
          *
          * @param appendable
@@ -327,11 +350,13 @@ class HelperExecutionHandler {
          * @param hash
          * @param valueWrappers
          * @param engine
+         * @param metricsListeners
          */
         DefaultOptions(Appendable appendable,
                 ExecutionContext executionContext, HelperAwareSegment segment,
                 List<Object> parameters, Map<String, Object> hash,
-                List<ValueWrapper> valueWrappers, MustacheEngine engine) {
+                List<ValueWrapper> valueWrappers, MustacheEngine engine,
+                EngineMetricsListener[] metricsListeners) {
             this.appendable = appendable;
             this.valueWrappers = valueWrappers;
             this.executionContext = executionContext;
@@ -341,6 +366,7 @@ class HelperExecutionHandler {
             this.parameters = parameters;
             this.hash = hash;
             this.engine = engine;
+            this.metricsListeners = metricsListeners;
         }
 
         @Override
@@ -364,6 +390,7 @@ class HelperExecutionHandler {
 
         @Override
         public void fn() {
+            iteration();
             appendable = segment.fn(appendable, executionContext);
         }
 
@@ -411,7 +438,7 @@ class HelperExecutionHandler {
         public void executeAsync(final HelperExecutable executable) {
             // For async execution we need to wrap the original appendable
             final AsyncAppendable asyncAppendable = new AsyncAppendable(
-                    appendable);
+                    appendable, executionContext.getRenderingBudget());
 
             // Now submit the executable and get the future
             ExecutorService executor = engine.getConfiguration()
@@ -421,16 +448,26 @@ class HelperExecutionHandler {
                         MustacheProblem.RENDER_ASYNC_PROCESSING_ERROR,
                         "ExecutorService must be set in order to submit an asynchronous task");
             }
+            final long submitted = metricsListeners != null ? System
+                    .nanoTime() : 0;
             Future<AsyncAppendable> future = executor
                     .submit(new Callable<AsyncAppendable>() {
                         @Override
                         public AsyncAppendable call() throws Exception {
+                            if (metricsListeners != null) {
+                                EngineMetricsListeners.asyncTaskStarted(
+                                        metricsListeners, segment,
+                                        System.nanoTime() - submitted);
+                            }
                             // We need a separate appendable for the async
                             // execution
                             DefaultOptions asyncOptions = new DefaultOptions(
-                                    new AsyncAppendable(asyncAppendable),
+                                    new AsyncAppendable(asyncAppendable,
+                                            executionContext
+                                                    .getRenderingBudget()),
                                     executionContext, segment, parameters,
-                                    hash, new ArrayList<ValueWrapper>(), engine);
+                                    hash, new ArrayList<ValueWrapper>(),
+                                    engine, metricsListeners);
                             executable.execute(asyncOptions);
                             return (AsyncAppendable) asyncOptions
                                     .getAppendable();
@@ -450,7 +487,7 @@ class HelperExecutionHandler {
                 throw new MustacheException(
                         MustacheProblem.RENDER_INVALID_PARTIAL_KEY,
                         "No mustache template found for the given key: %s %s",
-                        templateId, segment.getOrigin());
+                        templateId, executionContext.getOrigin(segment));
             }
             return mustacheSource;
         }
@@ -462,6 +499,7 @@ class HelperExecutionHandler {
 
         @Override
         public void fn(Appendable appendable) {
+            iteration();
             segment.fn(appendable, executionContext);
         }
 
@@ -490,13 +528,20 @@ class HelperExecutionHandler {
                 throw new MustacheException(
                         MustacheProblem.RENDER_INVALID_PARTIAL_KEY,
                         "No partial found for the given key: %s %s",
-                        templateId, segment.getOrigin());
+                        templateId, executionContext.getOrigin(segment));
             }
             // Note that indentation is not supported
             partialTemplate.getRootSegment().execute(appendable,
                     executionContext);
         }
 
+        private void iteration() {
+            RenderingBudget budget = executionContext.getRenderingBudget();
+            if (budget != null) {
+                budget.iteration(segment, executionContext);
+            }
+        }
+
         void release() {
             int wrappersSize = valueWrappers.size();
             if (wrappersSize == 1) {
@@ -510,11 +555,7 @@ class HelperExecutionHandler {
                 logger.info(
                         "{} remaining objects pushed on the context stack will be automatically garbage collected [helperName: {}, template: {}]",
                         new Object[] {
-                                pushed,
-                                HelperValidator
-                                        .splitHelperName(
-                                                segment.getTagInfo().getText(),
-                                                segment).next(),
+                                pushed, segment.getHelperName(),
                                 segment.getTagInfo().getTemplateName() });
             }
         }
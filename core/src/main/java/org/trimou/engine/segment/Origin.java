@@ -12,18 +12,20 @@ import org.trimou.util.Strings;
 @Internal
 public class Origin {
 
+    private static final int NOT_AVAILABLE = -1;
+
     private final Template template;
 
     /**
      * The original line where the segment comes from (we cannot calculate this
      * because of "remove standalone lines" spec feature)
      */
-    private final Integer line;
+    private final int line;
 
     /**
      * An index within the template (segments are parsed sequentially)
      */
-    private final Integer index;
+    private final int index;
 
     /**
      * An artificial segment.
@@ -32,8 +34,8 @@ public class Origin {
      */
     public Origin(Template template) {
         this.template = template;
-        this.line = null;
-        this.index = null;
+        this.line = NOT_AVAILABLE;
+        this.index = NOT_AVAILABLE;
     }
 
     /**
@@ -52,12 +54,22 @@ public class Origin {
         return template;
     }
 
+    /**
+     *
+     * @param template
+     * @return the origin with the same line and index but a different template
+     *         (e.g. a template which shares the compiled segment tree)
+     */
+    public Origin withTemplate(Template template) {
+        return new Origin(template, line, index);
+    }
+
     public Integer getLine() {
-        return line;
+        return line != NOT_AVAILABLE ? line : null;
     }
 
     public Integer getIndex() {
-        return index;
+        return index != NOT_AVAILABLE ? index : null;
     }
 
     public String getTemplateName() {
@@ -67,8 +79,9 @@ public class Origin {
     @Override
     public String toString() {
         return String.format("[template: %s, line: %s, idx: %s]", template
-                .getName(), line != null ? line : Strings.NOT_AVAILABLE,
-                index != null ? index : Strings.NOT_AVAILABLE);
+                .getName(), line != NOT_AVAILABLE ? line
+                : Strings.NOT_AVAILABLE, index != NOT_AVAILABLE ? index
+                : Strings.NOT_AVAILABLE);
     }
 
 }
@@ -16,7 +16,6 @@
 package org.trimou.engine.segment;
 
 import java.util.List;
-import java.util.concurrent.atomic.AtomicReference;
 
 import org.trimou.annotations.Internal;
 import org.trimou.engine.MustacheTagType;
@@ -36,12 +35,12 @@ public class PartialSegment extends AbstractSegment {
     private final TextSegment indentation;
 
     /**
-     * Cache the partial template if possible, i.e. if the cache is enabled, no
-     * expiration timeout is set and debug mode is not enabled
+     * Cache the partial template if possible, i.e. if the cache is enabled and
+     * debug mode is not enabled
      */
-    private final AtomicReference<Template> cachedPartialTemplate;
+    private final TemplateReference cachedPartialTemplate;
 
-    private volatile List<List<Segment>> cachedPartialLines;
+    private volatile PartialLines cachedPartialLines;
 
     /**
      *
@@ -51,11 +50,17 @@ public class PartialSegment extends AbstractSegment {
      */
     public PartialSegment(String text, Origin origin, String indentation) {
         super(text, origin);
-        this.indentation = indentation != null ? new TextSegment(indentation,
-                new Origin(origin.getTemplate())) : null;
+        if (indentation != null) {
+            // The compact mode reuses the origin of the partial
+            this.indentation = new TextSegment(indentation,
+                    isCompactSegmentsEnabled() ? origin : new Origin(
+                            origin.getTemplate()));
+        } else {
+            this.indentation = null;
+        }
         this.cachedPartialTemplate = Segments
-                .isTemplateCachingAllowed(getEngineConfiguration()) ? new AtomicReference<Template>()
-                : null;
+                .isTemplateCachingAllowed(getEngineConfiguration()) ? new TemplateReference(
+                text) : null;
     }
 
     @Override
@@ -73,7 +78,7 @@ public class PartialSegment extends AbstractSegment {
             throw new MustacheException(
                     MustacheProblem.RENDER_INVALID_PARTIAL_KEY,
                     "No partial found for the given key: %s %s", getText(),
-                    getOrigin());
+                    context.getOrigin(this));
         }
 
         if (indentation == null) {
@@ -100,14 +105,14 @@ public class PartialSegment extends AbstractSegment {
         List<List<Segment>> partialLines;
 
         if (cachedPartialTemplate != null) {
-            if (cachedPartialLines == null) {
-                synchronized (this) {
-                    if (cachedPartialLines == null) {
-                        cachedPartialLines = getPartialLines(partialTemplate);
-                    }
-                }
+            PartialLines cached = cachedPartialLines;
+            if (cached == null || cached.template != partialTemplate) {
+                // Not initialized yet or the partial template was reloaded
+                cached = new PartialLines(partialTemplate,
+                        getPartialLines(partialTemplate));
+                cachedPartialLines = cached;
             }
-            partialLines = cachedPartialLines;
+            partialLines = cached.lines;
         } else {
             partialLines = getPartialLines(partialTemplate);
         }
@@ -129,4 +134,17 @@ public class PartialSegment extends AbstractSegment {
         return partialLines;
     }
 
+    private static final class PartialLines {
+
+        private final Template template;
+
+        private final List<List<Segment>> lines;
+
+        PartialLines(Template template, List<List<Segment>> lines) {
+            this.template = template;
+            this.lines = lines;
+        }
+
+    }
+
 }
@@ -48,8 +48,35 @@ public class RootSegment extends AbstractContainerSegment {
                 context.setTemplateInvocation(getTemplate()));
     }
 
-    public static void flushAsyncAppendable(Appendable appendable) {
-        AsyncAppendable.flushIfNeeded(appendable);
+    /**
+     * The estimate is very rough and does not take into account the objects
+     * which might be shared, e.g. interned strings or helpers. The segments
+     * which are not compiled yet are estimated as if they were compiled.
+     *
+     * @return the estimated number of bytes retained by the segment tree
+     */
+    public long getRetainedSizeEstimate() {
+        return Segments.estimateRetainedSize(this);
+    }
+
+    /**
+     * Unlike {@link #getSegmentsSize(boolean)} the segments which are not
+     * compiled yet are also counted.
+     *
+     * @return the number of all segments of the tree
+     */
+    public int getSegmentsSizeEstimate() {
+        return Segments.countSegments(this);
+    }
+
+    /**
+     *
+     * @param appendable
+     * @return <code>true</code> if the given appendable was asynchronous and
+     *         had to be flushed, <code>false</code> otherwise
+     */
+    public static boolean flushAsyncAppendable(Appendable appendable) {
+        return AsyncAppendable.flushIfNeeded(appendable);
     }
 
 }
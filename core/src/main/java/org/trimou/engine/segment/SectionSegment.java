@@ -23,10 +23,12 @@ import org.trimou.annotations.Internal;
 import org.trimou.engine.MustacheTagType;
 import org.trimou.engine.config.EngineConfigurationKey;
 import org.trimou.engine.context.ExecutionContext;
+import org.trimou.engine.context.RenderingBudget;
 import org.trimou.engine.context.ValueWrapper;
 import org.trimou.engine.parser.Template;
-import org.trimou.handlebars.HelperValidator;
 import org.trimou.lambda.Lambda;
+import org.trimou.util.OutputSizeEstimate;
+import org.trimou.util.StringBuilderPool;
 
 import com.google.common.collect.Iterables;
 
@@ -69,6 +71,10 @@ public class SectionSegment extends AbstractSectionSegment implements
 
     private final HelperExecutionHandler helperHandler;
 
+    private final OutputSizeEstimate lambdaInputSize;
+
+    private final StringBuilderPool builderPool;
+
     public SectionSegment(String text, Origin origin, List<Segment> segments) {
         super(text, origin, segments);
         this.helperHandler = isHandlebarsSupportEnabled() ? HelperExecutionHandler
@@ -76,12 +82,19 @@ public class SectionSegment extends AbstractSectionSegment implements
         this.iterationMetaAlias = getEngineConfiguration()
                 .getStringPropertyValue(
                         EngineConfigurationKey.ITERATION_METADATA_ALIAS);
+        this.lambdaInputSize = new OutputSizeEstimate();
+        this.builderPool = StringBuilderPool.from(getEngineConfiguration());
     }
 
     public SegmentType getType() {
         return SegmentType.SECTION;
     }
 
+    @Override
+    public String getHelperName() {
+        return helperHandler != null ? helperHandler.getHelperName() : null;
+    }
+
     public Appendable execute(Appendable appendable, ExecutionContext context) {
         if (helperHandler != null) {
             return helperHandler.execute(appendable, context);
@@ -111,8 +124,7 @@ public class SectionSegment extends AbstractSectionSegment implements
         literal.append(getContentLiteralBlock());
         if (helperHandler != null) {
             literal.append(getTagLiteral(MustacheTagType.SECTION_END
-                    .getCommand()
-                    + HelperValidator.splitHelperName(getText(), this).next()));
+                    .getCommand() + helperHandler.getHelperName()));
         } else {
             literal.append(getTagLiteral(MustacheTagType.SECTION_END
                     .getCommand() + getText()));
@@ -175,6 +187,10 @@ public class SectionSegment extends AbstractSectionSegment implements
 
     private void processIteration(Appendable appendable,
             ExecutionContext context, Object value) {
+        RenderingBudget budget = context.getRenderingBudget();
+        if (budget != null) {
+            budget.iteration(this, context);
+        }
         super.execute(appendable, context.setContextObject(value));
     }
 
@@ -190,9 +206,15 @@ public class SectionSegment extends AbstractSectionSegment implements
             input = getContentLiteralBlock();
             break;
         case PROCESSED:
-            StringBuilder processed = new StringBuilder();
-            super.execute(processed, context);
-            input = processed.toString();
+            StringBuilder processed = builderPool.acquire(lambdaInputSize
+                    .get());
+            try {
+                super.execute(processed, context);
+                lambdaInputSize.update(processed.length());
+                input = processed.toString();
+            } finally {
+                builderPool.release(processed);
+            }
             break;
         default:
             throw new IllegalStateException("Unsupported lambda input type");
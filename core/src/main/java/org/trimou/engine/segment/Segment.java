@@ -52,6 +52,14 @@ public interface Segment {
      */
     public MustacheTagInfo getTagInfo();
 
+    /**
+     *
+     * @return the name of the helper this segment executes or
+     *         <code>null</code> if no helper is associated
+     * @see org.trimou.handlebars.Helper
+     */
+    public String getHelperName();
+
     /**
      * Note that the text is reconstructed and will not be an exact copy when
      * "Set Delimiter" tags are used.
@@ -17,16 +17,23 @@ package org.trimou.engine.segment;
 
 import static org.trimou.engine.config.EngineConfigurationKey.DEBUG_MODE;
 import static org.trimou.engine.config.EngineConfigurationKey.TEMPLATE_CACHE_ENABLED;
-import static org.trimou.engine.config.EngineConfigurationKey.TEMPLATE_CACHE_EXPIRATION_TIMEOUT;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ConcurrentMap;
 
 import org.trimou.engine.MustacheEngine;
 import org.trimou.engine.config.Configuration;
+import org.trimou.engine.interpolation.KeySplitter;
+import org.trimou.engine.listener.MustacheListener;
+import org.trimou.engine.listener.SegmentExecutionListener;
 import org.trimou.engine.parser.Template;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.MapMaker;
+
 /**
  * {@link Segment} utils.
  *
@@ -34,48 +41,218 @@ import org.trimou.engine.parser.Template;
  */
 final class Segments {
 
+    // Very rough estimates of the shallow sizes (64-bit JVM, compressed oops)
+
+    private static final int SEGMENT_SIZE = 24;
+
+    private static final int ORIGIN_SIZE = 24;
+
+    private static final int STRING_SIZE = 40;
+
+    private static final int LIST_SIZE = 24;
+
+    private static final int REFERENCE_SIZE = 4;
+
+    /**
+     * Key parts, hint reference, etc.
+     */
+    private static final int VALUE_SEGMENT_EXTRA_SIZE = 64;
+
+    private static final Interner<String> STRING_INTERNER = Interners
+            .newWeakInterner();
+
+    /**
+     * Key parts per key splitter. The inner map has weak keys (i.e. identity
+     * comparison), therefore the key must be interned first.
+     */
+    private static final ConcurrentMap<KeySplitter, ConcurrentMap<String, String[]>> KEY_PARTS = new MapMaker()
+            .weakKeys().makeMap();
+
     private Segments() {
     }
 
+    /**
+     *
+     * @param value
+     * @return the canonical representation of the given string
+     */
+    static String intern(String value) {
+        return STRING_INTERNER.intern(value);
+    }
+
+    /**
+     *
+     * @param key
+     * @param splitter
+     * @return the key parts
+     */
+    static String[] splitKey(String key, KeySplitter splitter) {
+        ArrayList<String> parts = new ArrayList<String>();
+        for (Iterator<String> iterator = splitter.split(key); iterator
+                .hasNext();) {
+            parts.add(iterator.next());
+        }
+        return parts.toArray(new String[parts.size()]);
+    }
+
+    /**
+     * The key parts array is shared, i.e. it must not be modified.
+     *
+     * @param key
+     * @param splitter
+     * @return the interned key parts
+     */
+    static String[] internKeyParts(String key, KeySplitter splitter) {
+        ConcurrentMap<String, String[]> keyParts = KEY_PARTS.get(splitter);
+        if (keyParts == null) {
+            keyParts = new MapMaker().weakKeys().weakValues().makeMap();
+            ConcurrentMap<String, String[]> previous = KEY_PARTS.putIfAbsent(
+                    splitter, keyParts);
+            if (previous != null) {
+                keyParts = previous;
+            }
+        }
+        key = intern(key);
+        String[] parts = keyParts.get(key);
+        if (parts == null) {
+            parts = splitKey(key, splitter);
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = intern(parts[i]);
+            }
+            String[] previous = keyParts.putIfAbsent(key, parts);
+            if (previous != null) {
+                parts = previous;
+            }
+        }
+        return parts;
+    }
+
     /**
      *
      * @param configuration
      * @return <code>true</code> if it's possible to cache the template in a
-     *         segment, i.e. if the cache is enabled, no expiration timeout is
-     *         set and debug mode is not enabled, <code>false</code> otherwise
+     *         segment, i.e. if the cache is enabled and debug mode is not
+     *         enabled, <code>false</code> otherwise
+     * @see TemplateReference
      */
     static boolean isTemplateCachingAllowed(Configuration configuration) {
         return !configuration.getBooleanPropertyValue(DEBUG_MODE)
                 && configuration
-                        .getBooleanPropertyValue(TEMPLATE_CACHE_ENABLED)
-                && configuration
-                        .getLongPropertyValue(TEMPLATE_CACHE_EXPIRATION_TIMEOUT) <= 0;
+                        .getBooleanPropertyValue(TEMPLATE_CACHE_ENABLED);
+    }
+
+    /**
+     *
+     * @param configuration
+     * @return the listeners interested in segment executions or
+     *         <code>null</code> if there are no such listeners
+     */
+    static SegmentExecutionListener[] getExecutionListeners(
+            Configuration configuration) {
+        List<MustacheListener> listeners = configuration
+                .getMustacheListeners();
+        if (listeners == null) {
+            return null;
+        }
+        List<SegmentExecutionListener> executionListeners = new ArrayList<SegmentExecutionListener>();
+        for (MustacheListener listener : listeners) {
+            if (listener instanceof SegmentExecutionListener) {
+                executionListeners.add((SegmentExecutionListener) listener);
+            }
+        }
+        return executionListeners.isEmpty() ? null : executionListeners
+                .toArray(new SegmentExecutionListener[executionListeners
+                        .size()]);
     }
 
     /**
      *
-     * @param cachedReference
+     * @param reference
      * @param templateId
      * @param engine
-     * @return the template, use the cache if possible
+     * @return the template, use the cached reference if possible
      */
-    static Template getTemplate(AtomicReference<Template> cachedReference,
+    static Template getTemplate(TemplateReference reference,
             String templateId, MustacheEngine engine) {
-        if (cachedReference != null) {
-            Template template = cachedReference.get();
-            if (template == null) {
-                synchronized (cachedReference) {
-                    if (template == null) {
-                        template = (Template) engine.getMustache(templateId);
-                        cachedReference.set(template);
-                    }
-                }
-            }
-            return template;
+        if (reference != null) {
+            return reference.get(engine);
         }
         return (Template) engine.getMustache(templateId);
     }
 
+    /**
+     * The segments which are not compiled yet are estimated as if they were
+     * compiled, i.e. the estimate does not grow when a lazy section is
+     * compiled.
+     *
+     * @param container
+     * @return the estimated number of bytes retained by the given container
+     *         and all its segments
+     */
+    static long estimateRetainedSize(ContainerSegment container) {
+        List<Segment> segments = container.getSegments();
+        long size = estimateRetainedSize((Segment) container) + LIST_SIZE;
+        if (isDeferred(segments)) {
+            DeferredSegmentList deferred = (DeferredSegmentList) segments;
+            return size
+                    + deferred.getPendingSegmentsSize()
+                    * (SEGMENT_SIZE + ORIGIN_SIZE + STRING_SIZE + REFERENCE_SIZE)
+                    + 2l * deferred.getPendingTextLength();
+        }
+        size += segments.size() * REFERENCE_SIZE;
+        for (Segment segment : segments) {
+            if (segment instanceof ContainerSegment) {
+                size += estimateRetainedSize((ContainerSegment) segment);
+            } else {
+                size += estimateRetainedSize(segment);
+            }
+        }
+        return size;
+    }
+
+    /**
+     *
+     * @param container
+     * @return the number of segments, including the nested ones and the
+     *         segments which are not compiled yet
+     */
+    static int countSegments(ContainerSegment container) {
+        List<Segment> segments = container.getSegments();
+        if (isDeferred(segments)) {
+            return ((DeferredSegmentList) segments).getPendingSegmentsSize();
+        }
+        int count = 0;
+        for (Segment segment : segments) {
+            count++;
+            if (segment instanceof ContainerSegment) {
+                count += countSegments((ContainerSegment) segment);
+            }
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @param segments
+     * @return <code>true</code> if the segments are not compiled yet
+     */
+    static boolean isDeferred(List<Segment> segments) {
+        return segments instanceof DeferredSegmentList
+                && !((DeferredSegmentList) segments).isCompiled();
+    }
+
+    private static long estimateRetainedSize(Segment segment) {
+        long size = SEGMENT_SIZE + ORIGIN_SIZE;
+        if (segment instanceof AbstractSegment) {
+            size += STRING_SIZE + 2
+                    * ((AbstractSegment) segment).getText().length();
+        }
+        if (segment instanceof ValueSegment) {
+            size += VALUE_SEGMENT_EXTRA_SIZE;
+        }
+        return size;
+    }
+
     /**
      * Read segment lines before rendering.
      *
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.engine.segment;
+
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.parser.Template;
+
+/**
+ * Holds a reference to a cached template. The template is only obtained from
+ * the engine if not referenced yet or no longer valid, i.e. removed from the
+ * template cache or expired. The last access time of a referenced template is
+ * updated as if it was obtained from the cache.
+ *
+ * @author Martin Kouba
+ * @see Template#isValid()
+ */
+final class TemplateReference {
+
+    private final String templateId;
+
+    private volatile Template template;
+
+    /**
+     *
+     * @param templateId
+     */
+    TemplateReference(String templateId) {
+        this.templateId = templateId;
+    }
+
+    /**
+     *
+     * @param engine
+     * @return the referenced template or <code>null</code> if no such template
+     *         exists
+     */
+    Template get(MustacheEngine engine) {
+        Template current = template;
+        if (current == null || !current.isValid()) {
+            // The engine always returns the same cached instance so there's no
+            // need to synchronize
+            current = (Template) engine.getMustache(templateId);
+            template = current;
+        } else {
+            current.updateLastAccessTime();
+        }
+        return current;
+    }
+
+}
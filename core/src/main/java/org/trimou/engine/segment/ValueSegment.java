@@ -15,8 +15,6 @@
  */
 package org.trimou.engine.segment;
 
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.trimou.annotations.Internal;
@@ -28,6 +26,7 @@ import org.trimou.engine.parser.Template;
 import org.trimou.engine.resolver.EnhancedResolver.Hint;
 import org.trimou.engine.text.TextSupport;
 import org.trimou.lambda.Lambda;
+import org.trimou.util.StringBuilderPool;
 import org.trimou.util.Strings;
 
 /**
@@ -54,6 +53,8 @@ public class ValueSegment extends AbstractSegment implements HelperAwareSegment
      */
     private final AtomicReference<Hint> hint;
 
+    private final StringBuilderPool builderPool;
+
     /**
      *
      * @param text
@@ -67,12 +68,10 @@ public class ValueSegment extends AbstractSegment implements HelperAwareSegment
                 .from(text, getEngine(), this) : null;
         if (helperHandler == null) {
             this.textSupport = getEngineConfiguration().getTextSupport();
-            ArrayList<String> parts = new ArrayList<String>();
-            for (Iterator<String> iterator = getEngineConfiguration()
-                    .getKeySplitter().split(text); iterator.hasNext();) {
-                parts.add(iterator.next());
-            }
-            this.keyParts = parts.toArray(new String[parts.size()]);
+            this.keyParts = isCompactSegmentsEnabled() ? Segments
+                    .internKeyParts(text, getEngineConfiguration()
+                            .getKeySplitter()) : Segments.splitKey(text,
+                    getEngineConfiguration().getKeySplitter());
             if (getEngineConfiguration().getBooleanPropertyValue(
                     EngineConfigurationKey.RESOLVER_HINTS_ENABLED)) {
                 this.hint = new AtomicReference<Hint>();
@@ -84,6 +83,7 @@ public class ValueSegment extends AbstractSegment implements HelperAwareSegment
             this.keyParts = null;
             this.hint = null;
         }
+        this.builderPool = StringBuilderPool.from(getEngineConfiguration());
     }
 
     public SegmentType getType() {
@@ -94,6 +94,11 @@ public class ValueSegment extends AbstractSegment implements HelperAwareSegment
         return unescape;
     }
 
+    @Override
+    public String getHelperName() {
+        return helperHandler != null ? helperHandler.getHelperName() : null;
+    }
+
     public Appendable execute(Appendable appendable, ExecutionContext context) {
         if (helperHandler != null) {
             return helperHandler.execute(appendable, context);
@@ -167,12 +172,17 @@ public class ValueSegment extends AbstractSegment implements HelperAwareSegment
         } else if (!returnValue.equals(Strings.EMPTY)) {
             if (lambda.isReturnValueInterpolated()) {
                 // Parse and interpolate the return value
-                StringBuilder interpolated = new StringBuilder();
-                Template temp = (Template) getEngine().compileMustache(
-                        Lambdas.constructLambdaOneoffTemplateName(this),
-                        returnValue);
-                temp.getRootSegment().execute(interpolated, context);
-                writeValue(appendable, interpolated.toString());
+                StringBuilder interpolated = builderPool.acquire(returnValue
+                        .length());
+                try {
+                    Template temp = (Template) getEngine().compileMustache(
+                            Lambdas.constructLambdaOneoffTemplateName(this),
+                            returnValue);
+                    temp.getRootSegment().execute(interpolated, context);
+                    writeValue(appendable, interpolated.toString());
+                } finally {
+                    builderPool.release(interpolated);
+                }
             } else {
                 writeValue(appendable, returnValue);
             }
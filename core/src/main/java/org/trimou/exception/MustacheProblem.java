@@ -46,7 +46,10 @@ public enum MustacheProblem implements ProblemCode {
     RENDER_HELPER_INVALID_POP_OPERATION,
     RENDER_GENERIC_ERROR,
     RENDER_ASYNC_PROCESSING_ERROR,
+    RENDER_LIMIT_EXCEEDED,
     // Configuration problems
-    CONFIG_PROPERTY_INVALID_VALUE, ;
+    CONFIG_PROPERTY_INVALID_VALUE,
+    // Monitoring problems
+    MONITORING_JMX_ERROR, ;
 
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.util;
+
+import org.trimou.annotations.Internal;
+
+/**
+ * A cheap moving estimate of the size of a rendered output, used to presize
+ * the buffers. The estimate is the exponentially weighted moving average of
+ * the recent sizes plus twice the moving average of their absolute deviation,
+ * i.e. it roughly follows the 90th percentile of the recent sizes. A size
+ * much larger than the estimate is lowered first, so that a single outlier
+ * only moves the estimate a little. The estimate never exceeds
+ * {@link #MAX_CAPACITY}.
+ *
+ * <p>
+ * Both averages are held in a single volatile field which is only written if
+ * the value actually changes. The updates are not synchronized - a lost update
+ * only makes the estimate a little less accurate.
+ * </p>
+ *
+ * @author Martin Kouba
+ */
+@Internal
+public final class OutputSizeEstimate {
+
+    /**
+     * The default capacity of {@link StringBuilder}
+     */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * The max estimated size, i.e. the max initial capacity of a buffer
+     */
+    public static final int MAX_CAPACITY = 1 << 20;
+
+    /**
+     * The weight of a new size is 1/16
+     */
+    private static final int WEIGHT_SHIFT = 4;
+
+    /**
+     * A size larger than the current estimate multiplied by this factor is
+     * considered an outlier and is lowered first
+     */
+    private static final int OUTLIER_FACTOR = 4;
+
+    private static final long NOT_AVAILABLE = -1;
+
+    /**
+     * The average in the upper 32 bits, the average deviation in the lower 32
+     * bits
+     */
+    private volatile long state = NOT_AVAILABLE;
+
+    /**
+     *
+     * @param size
+     *            The size of the last output
+     */
+    public void update(int size) {
+        if (size > MAX_CAPACITY) {
+            size = MAX_CAPACITY;
+        } else if (size < 0) {
+            size = 0;
+        }
+        long current = state;
+        long next;
+        if (current == NOT_AVAILABLE) {
+            next = pack(size, 0);
+        } else {
+            int average = average(current);
+            int deviation = deviation(current);
+            // Limit the effect of an outlier
+            int limit = OUTLIER_FACTOR
+                    * Math.max(estimate(average, deviation), DEFAULT_CAPACITY);
+            if (size > limit) {
+                size = limit;
+            }
+            int diff = size - average;
+            next = pack(average + move(diff),
+                    deviation + move(Math.abs(diff) - deviation));
+        }
+        if (next != current) {
+            state = next;
+        }
+    }
+
+    /**
+     *
+     * @return the estimated size or <code>0</code> if no output was recorded
+     *         yet
+     */
+    public int get() {
+        long current = state;
+        return current != NOT_AVAILABLE ? estimate(average(current),
+                deviation(current)) : 0;
+    }
+
+    /**
+     *
+     * @return a new builder with the initial capacity based on the estimate
+     */
+    public StringBuilder newBuilder() {
+        int current = get();
+        return new StringBuilder(current > DEFAULT_CAPACITY ? current
+                : DEFAULT_CAPACITY);
+    }
+
+    private static int estimate(int average, int deviation) {
+        return Math.min(MAX_CAPACITY, average + 2 * deviation);
+    }
+
+    private static int move(int diff) {
+        return diff >= 0 ? diff >> WEIGHT_SHIFT : -(-diff >> WEIGHT_SHIFT);
+    }
+
+    private static long pack(int average, int deviation) {
+        return ((long) average << 32) | (deviation & 0xFFFFFFFFL);
+    }
+
+    private static int average(long state) {
+        return (int) (state >>> 32);
+    }
+
+    private static int deviation(long state) {
+        return (int) state;
+    }
+
+}
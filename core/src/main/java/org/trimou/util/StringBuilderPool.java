@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.util;
+
+import java.util.concurrent.ConcurrentMap;
+
+import org.trimou.annotations.Internal;
+import org.trimou.engine.config.Configuration;
+import org.trimou.engine.config.EngineConfigurationKey;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * A per-thread pool of reusable {@link StringBuilder}s used as intermediate
+ * render buffers. A builder must be released on the same thread it was
+ * acquired on and must not be used after release.
+ *
+ * <p>
+ * Only a few builders are retained per thread (nested renderings need more
+ * than one) and a builder whose capacity exceeds the max capacity is never
+ * retained.
+ * </p>
+ *
+ * <p>
+ * There is one pool per engine configuration, i.e. the retained builders are
+ * not shared between engines. The thread-local values only hold JDK types so
+ * that a thread which outlives the engine (e.g. a container worker thread)
+ * does not pin the class loader of the application.
+ * </p>
+ *
+ * @author Martin Kouba
+ * @see org.trimou.engine.config.EngineConfigurationKey#RENDER_BUFFER_MAX_CAPACITY
+ */
+@Internal
+public final class StringBuilderPool {
+
+    static final int MAX_RETAINED_BUILDERS = 4;
+
+    private static final ConcurrentMap<Configuration, StringBuilderPool> POOLS = new MapMaker()
+            .weakKeys().makeMap();
+
+    /**
+     *
+     * @param configuration
+     * @return the pool for the given engine configuration
+     */
+    public static StringBuilderPool from(Configuration configuration) {
+        StringBuilderPool pool = POOLS.get(configuration);
+        if (pool == null) {
+            pool = new StringBuilderPool(configuration.getIntegerPropertyValue(
+                    EngineConfigurationKey.RENDER_BUFFER_MAX_CAPACITY));
+            StringBuilderPool previous = POOLS.putIfAbsent(configuration,
+                    pool);
+            if (previous != null) {
+                pool = previous;
+            }
+        }
+        return pool;
+    }
+
+    private final int maxCapacity;
+
+    private final ThreadLocal<StringBuilder[]> builders;
+
+    /**
+     *
+     * @param maxCapacity
+     *            The max capacity of a retained builder, zero or negative
+     *            value means no pooling
+     */
+    StringBuilderPool(int maxCapacity) {
+        this.maxCapacity = maxCapacity;
+        this.builders = new ThreadLocal<StringBuilder[]>();
+    }
+
+    /**
+     *
+     * @param minCapacity
+     * @return an empty builder, either pooled or a new one
+     */
+    public StringBuilder acquire(int minCapacity) {
+        StringBuilder[] retained = maxCapacity > 0 ? builders.get() : null;
+        if (retained != null) {
+            for (int i = retained.length - 1; i >= 0; i--) {
+                StringBuilder builder = retained[i];
+                if (builder != null) {
+                    retained[i] = null;
+                    builder.ensureCapacity(minCapacity);
+                    return builder;
+                }
+            }
+        }
+        return new StringBuilder(
+                minCapacity > OutputSizeEstimate.DEFAULT_CAPACITY ? minCapacity
+                        : OutputSizeEstimate.DEFAULT_CAPACITY);
+    }
+
+    /**
+     *
+     * @param builder
+     */
+    public void release(StringBuilder builder) {
+        if (builder.capacity() > maxCapacity) {
+            return;
+        }
+        StringBuilder[] retained = builders.get();
+        if (retained == null) {
+            retained = new StringBuilder[MAX_RETAINED_BUILDERS];
+            builders.set(retained);
+        }
+        for (int i = 0; i < retained.length; i++) {
+            if (retained[i] == null) {
+                builder.setLength(0);
+                retained[i] = builder;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove all the builders retained by the current thread.
+     */
+    public void clear() {
+        builders.remove();
+    }
+
+}
@@ -3,7 +3,11 @@ package org.trimou.engine;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.Reader;
 import java.io.StringReader;
@@ -27,10 +31,14 @@ import org.trimou.engine.config.EngineConfigurationKey;
 import org.trimou.engine.locator.AbstractTemplateLocator;
 import org.trimou.engine.locator.MapTemplateLocator;
 import org.trimou.engine.locator.TemplateLocator;
+import org.trimou.engine.parser.Template;
 import org.trimou.exception.MustacheException;
+import org.trimou.handlebars.HelpersBuilder;
 import org.trimou.lambda.Lambda;
 import org.trimou.lambda.SpecCompliantLambda;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -266,6 +274,291 @@ public class MustacheEngineTest extends AbstractEngineTest {
         assertNotEquals(engine.compileMustache("foo", "{{foo}}").getGeneratedId(), engine.compileMustache("foo", "{{foo}}").getGeneratedId());
     }
 
+    @Test
+    public void testTemplateCacheInfo() {
+        MustacheEngine engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(
+                        new MapTemplateLocator(ImmutableMap.of("small",
+                                "{{foo}}", "large",
+                                "{{#each items}}{{name}}: {{value}}\n{{/each}}",
+                                "source", "Hello")))
+                .build();
+        assertTrue(engine.getTemplateCacheInfo().isEmpty());
+
+        long start = System.currentTimeMillis();
+        engine.getMustache("small");
+        engine.getMustache("large");
+        engine.getMustacheSource("source");
+
+        List<CachedTemplateInfo> info = engine.getTemplateCacheInfo();
+        assertEquals(3, info.size());
+        CachedTemplateInfo large = info.get(0);
+        assertEquals("large", large.getTemplateId());
+        assertTrue(large.isCompiled());
+        assertEquals(5, large.getSegmentsSize());
+        assertEquals(44, large.getSourceLength());
+        assertTrue(large.getLastAccessTime() >= start);
+        CachedTemplateInfo small = info.get(1);
+        assertEquals("small", small.getTemplateId());
+        assertEquals(1, small.getSegmentsSize());
+        assertEquals(7, small.getSourceLength());
+        assertTrue(large.getRetainedSizeEstimate() > small
+                .getRetainedSizeEstimate());
+        assertEquals(0, small.getOutputSizeEstimate());
+        engine.getMustache("small").render(ImmutableMap.of("foo", "Hello!"));
+        assertEquals(6, engine.getTemplateCacheInfo().get(1)
+                .getOutputSizeEstimate());
+        CachedTemplateInfo source = info.get(2);
+        assertEquals("source", source.getTemplateId());
+        assertFalse(source.isCompiled());
+        assertEquals(5, source.getSourceLength());
+
+        // The last access time is only updated if stale
+        Template smallTemplate = (Template) engine.getMustache("small");
+        long now = System.currentTimeMillis();
+        smallTemplate.setLastAccessTime(now);
+        engine.getMustache("small");
+        assertEquals(now, smallTemplate.getLastAccessTime());
+        smallTemplate.setLastAccessTime(now
+                - Template.LAST_ACCESS_TIME_GRANULARITY);
+        engine.getMustache("small");
+        assertTrue(smallTemplate.getLastAccessTime() >= now);
+
+        engine.invalidateTemplateCache();
+        assertTrue(engine.getTemplateCacheInfo().isEmpty());
+        assertTrue(MustacheEngineBuilder
+                .newBuilder()
+                .setProperty(EngineConfigurationKey.TEMPLATE_CACHE_ENABLED,
+                        false).build().getTemplateCacheInfo().isEmpty());
+    }
+
+    @Test
+    public void testInvalidateTemplate() {
+        Map<String, String> templates = new HashMap<String, String>();
+        templates.put("header", "Header");
+        templates.put("page", "{{>header}}|{{#flag}}{{include 'footer'}}{{/flag}}");
+        templates.put("footer", "Footer");
+        templates.put("other", "{{embed \"footer\"}}");
+        templates.put("super", "{{$content}}{{/content}}");
+        templates.put("sub", "{{<super}}{{$content}}{{>page}}{{/content}}{{/super}}");
+        templates.put("unrelated", "Foo");
+        templates.put("my footer", "My footer");
+        templates.put("quoted", "{{embed\t\"my footer\"}}|{{include 'footer'}}");
+        MustacheEngine engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(new MapTemplateLocator(templates))
+                .registerHelpers(
+                        HelpersBuilder.empty().addInclude().addEmbed().build())
+                .setProperty(EngineConfigurationKey.LAZY_SECTION_COMPILATION,
+                        true).build();
+
+        assertEquals(ImmutableSet.of("header", "footer"),
+                ((Template) engine.getMustache("page")).getDependencies());
+        assertEquals(ImmutableSet.of("my footer", "footer"),
+                ((Template) engine.getMustache("quoted")).getDependencies());
+        Mustache sub = engine.getMustache("sub");
+        Mustache other = engine.getMustache("other");
+        Mustache unrelated = engine.getMustache("unrelated");
+        assertEquals("Header|Footer",
+                sub.render(ImmutableMap.of("flag", true)));
+
+        templates.put("footer", "FOOTER");
+        engine.invalidateTemplate("footer");
+        // Transitive dependents are invalidated
+        assertNotSame(sub, engine.getMustache("sub"));
+        assertNotSame(other, engine.getMustache("other"));
+        assertSame(unrelated, engine.getMustache("unrelated"));
+        assertEquals("Header|FOOTER", engine.getMustache("sub").render(
+                ImmutableMap.of("flag", true)));
+
+        // The recompiled templates are tracked again
+        sub = engine.getMustache("sub");
+        Mustache quoted = engine.getMustache("quoted");
+        engine.invalidateTemplate("footer");
+        assertNotSame(sub, engine.getMustache("sub"));
+        assertNotSame(quoted, engine.getMustache("quoted"));
+        quoted = engine.getMustache("quoted");
+        engine.invalidateTemplate("my footer");
+        assertNotSame(quoted, engine.getMustache("quoted"));
+    }
+
+    @Test
+    public void testTemplateCacheBackgroundRefresh()
+            throws InterruptedException {
+        Map<String, String> templates = new HashMap<String, String>();
+        templates.put("foo", "{{>bar}}");
+        templates.put("bar", "Bar");
+        templates.put("baz", "Baz");
+        MustacheEngine engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(new MapTemplateLocator(templates))
+                .setProperty(
+                        EngineConfigurationKey.TEMPLATE_CACHE_EXPIRATION_TIMEOUT,
+                        1)
+                .setProperty(
+                        EngineConfigurationKey.TEMPLATE_CACHE_BACKGROUND_REFRESH,
+                        true).build();
+        Mustache foo = engine.getMustache("foo");
+        Mustache baz = engine.getMustache("baz");
+        assertEquals("Bar", foo.render(null));
+
+        templates.put("bar", "BAR");
+        Thread.sleep(1100);
+        // The stale template is used until refreshed
+        assertEquals("Bar", foo.render(null));
+        long timeout = System.currentTimeMillis() + 10000;
+        while (!"BAR".equals(foo.render(null))
+                && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+        }
+        assertEquals("BAR", foo.render(null));
+        // Not changed - not recompiled
+        assertSame(foo, engine.getMustache("foo"));
+        assertSame(baz, engine.getMustache("baz"));
+    }
+
+    @Test
+    public void testShareIdenticalTemplates() {
+        MustacheEngine engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(
+                        new MapTemplateLocator(ImmutableMap.of("default",
+                                "Hello {{this}}!", "tenant",
+                                "Hello {{this}}!", "other", "Hi {{this}}!",
+                                "broken", "{{> missing}}", "alsoBroken",
+                                "{{> missing}}")))
+                .setProperty(EngineConfigurationKey.SHARE_IDENTICAL_TEMPLATES,
+                        true).build();
+        Template tenant = (Template) engine.getMustache("tenant");
+        Template defaultTemplate = (Template) engine.getMustache("default");
+        Template other = (Template) engine.getMustache("other");
+        assertSame(tenant.getRootSegment().getSegments(), defaultTemplate
+                .getRootSegment().getSegments());
+        assertNotSame(tenant.getRootSegment().getSegments(), other
+                .getRootSegment().getSegments());
+        assertSame(defaultTemplate, defaultTemplate.getRootSegment()
+                .getTemplate());
+        assertSame(tenant, defaultTemplate.getOriginTemplate());
+        assertEquals("tenant", tenant.getName());
+        assertEquals("default", defaultTemplate.getName());
+        assertNotEquals(tenant.getGeneratedId(),
+                defaultTemplate.getGeneratedId());
+        assertEquals("Hello me!", defaultTemplate.render("me"));
+        assertEquals("Hi me!", other.render("me"));
+        engine.getMustache("broken");
+        Mustache alsoBroken = engine.getMustache("alsoBroken");
+        long shared = 0;
+        for (CachedTemplateInfo info : engine.getTemplateCacheInfo()) {
+            if (info.getRetainedSizeEstimate() == 0) {
+                shared++;
+            }
+        }
+        assertEquals(2, shared);
+        try {
+            alsoBroken.render(null);
+            fail();
+        } catch (MustacheException e) {
+            // The origin refers to the rendered template
+            assertTrue(e.getMessage().contains("template: alsoBroken"));
+        }
+    }
+
+    @Test
+    public void testOffHeapSourceCache() {
+        String source = "Hello \u011b\u0161\u010d {{this}}!";
+        // Sliced out of the same slab
+        String other = "Other";
+        // Dedicated buffer
+        String large = Strings.repeat("x",
+                OffHeapSource.Arena.MAX_SLICE_SIZE + 1);
+        MustacheEngine engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(
+                        new MapTemplateLocator(ImmutableMap.of("foo", source,
+                                "other", other, "large", large)))
+                .setProperty(EngineConfigurationKey.OFF_HEAP_SOURCE_CACHE,
+                        true).build();
+        assertEquals(source, engine.getMustacheSource("foo"));
+        assertEquals(other, engine.getMustacheSource("other"));
+        assertEquals(large, engine.getMustacheSource("large"));
+        assertEquals(source, engine.getMustacheSource("foo"));
+        List<CachedTemplateInfo> info = engine.getTemplateCacheInfo();
+        assertEquals(3, info.size());
+        for (CachedTemplateInfo templateInfo : info) {
+            String expected = templateInfo.getTemplateId().equals("foo") ? source
+                    : (templateInfo.getTemplateId().equals("other") ? other
+                            : large);
+            assertEquals(expected.length(), templateInfo.getSourceLength());
+            assertEquals(expected.getBytes(Charsets.UTF_8).length,
+                    templateInfo.getOffHeapSize());
+            assertEquals(0, templateInfo.getRetainedSizeEstimate());
+        }
+    }
+
+    @Test
+    public void testTemplateLocatorMissCache() {
+        MustacheEngine engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(
+                        new MapTemplateLocator(2, ImmutableMap.of("foo",
+                                "Foo")))
+                .addTemplateLocator(
+                        new MapTemplateLocator(1, ImmutableMap.of("bar",
+                                "Bar")))
+                .setProperty(
+                        EngineConfigurationKey.TEMPLATE_LOCATOR_MISS_CACHE_TIMEOUT,
+                        60l).build();
+        // The template and the source are cached separately
+        assertEquals("Bar", engine.getMustache("bar").render(null));
+        assertEquals("Bar", engine.getMustacheSource("bar"));
+        assertNull(engine.getMustache("qux"));
+        assertNull(engine.getMustacheSource("qux"));
+        // Invalidation removes the cached misses
+        engine.invalidateTemplate("qux");
+        assertNull(engine.getMustache("qux"));
+        List<TemplateLocatorInfo> info = engine.getTemplateLocatorInfo();
+        assertEquals(2, info.size());
+        assertEquals(2, info.get(0).getPriority());
+        assertEquals(0, info.get(0).getHits());
+        assertEquals(3, info.get(0).getMisses());
+        assertEquals(2, info.get(0).getCachedMisses());
+        assertEquals(2, info.get(1).getHits());
+        assertEquals(2, info.get(1).getMisses());
+        assertEquals(1, info.get(1).getCachedMisses());
+        assertEquals(0.5, info.get(1).getHitRate(), 0.001);
+    }
+
+    @Test
+    public void testTemplateLocatorMissCacheTemplateCacheDisabled() {
+        final Map<String, String> templates = new HashMap<String, String>();
+        MustacheEngine engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(new MapTemplateLocator(templates))
+                .setProperty(EngineConfigurationKey.TEMPLATE_CACHE_ENABLED,
+                        false)
+                .setProperty(
+                        EngineConfigurationKey.TEMPLATE_LOCATOR_MISS_CACHE_TIMEOUT,
+                        60l).build();
+        assertNull(engine.getMustache("foo"));
+        assertNull(engine.getMustache("foo"));
+        assertNull(engine.getMustacheSource("foo"));
+        // The locator is only asked once
+        TemplateLocatorInfo info = engine.getTemplateLocatorInfo().get(0);
+        assertEquals(1, info.getMisses());
+        assertEquals(2, info.getCachedMisses());
+        // A template added later is found after invalidation
+        templates.put("foo", "Foo");
+        assertNull(engine.getMustache("foo"));
+        engine.invalidateTemplate("foo");
+        assertEquals("Foo", engine.getMustache("foo").render(null));
+        templates.remove("foo");
+        assertNull(engine.getMustache("foo"));
+        engine.invalidateTemplateCache();
+        templates.put("foo", "Foo");
+        assertEquals("Foo", engine.getMustache("foo").render(null));
+    }
+
     private static class MyStringReader extends StringReader {
 
         final AtomicBoolean isCloseInvoked;
@@ -51,10 +51,11 @@ public class CustomComputingCacheFactoryTest extends AbstractTest {
         assertEquals(1, reflectionCache.size());
 
         List<CustomComputingCache> templateCaches = factory.caches.get(MustacheEngine.COMPUTING_CACHE_CONSUMER_ID);
-        assertEquals(2, templateCaches.size());
-        for (CustomComputingCache cache : templateCaches) {
-            cache.clear();
-        }
+        assertEquals(1, templateCaches.size());
+        List<CustomComputingCache> sourceCaches = factory.caches.get(MustacheEngine.SOURCE_CACHE_CONSUMER_ID);
+        assertEquals(1, sourceCaches.size());
+        templateCaches.get(0).clear();
+        sourceCaches.get(0).clear();
 
         getReflectionResolver(engine).invalidateMemberCache(null);
         assertEquals(0, reflectionCache.size());
@@ -0,0 +1,140 @@
+package org.trimou.engine.context;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+import org.trimou.Mustache;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.MustacheEngineBuilder;
+import org.trimou.engine.config.EngineConfigurationKey;
+import org.trimou.engine.locator.MapTemplateLocator;
+import org.trimou.exception.MustacheException;
+import org.trimou.exception.MustacheProblem;
+import org.trimou.handlebars.HelpersBuilder;
+import org.trimou.lambda.InputLiteralLambda;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ *
+ * @author Martin Kouba
+ */
+public class RenderingBudgetTest {
+
+    @Test
+    public void testNoLimits() {
+        assertNull(RenderingBudget.from(MustacheEngineBuilder.newBuilder()
+                .build().getConfiguration()));
+    }
+
+    @Test
+    public void testOutputLimit() {
+        Mustache mustache = MustacheEngineBuilder.newBuilder()
+                .setProperty(EngineConfigurationKey.RENDER_OUTPUT_LIMIT, 5)
+                .build().compileMustache("output", "{{#this}}{{.}}{{/this}}");
+        assertEquals("abcde", mustache.render(ImmutableList.of("ab", "cde")));
+        assertLimitExceeded(mustache, ImmutableList.of("ab", "cde", "f"));
+    }
+
+    @Test
+    public void testAsyncOutputLimit() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Mustache mustache = MustacheEngineBuilder.newBuilder()
+                    .setExecutorService(executor)
+                    .registerHelpers(HelpersBuilder.empty().addAsync().build())
+                    .setProperty(EngineConfigurationKey.RENDER_OUTPUT_LIMIT, 5)
+                    .build().compileMustache("async_output",
+                            "{{#async}}{{#this}}{{.}}{{/this}}{{/async}}");
+            assertEquals("abcde",
+                    mustache.render(ImmutableList.of("ab", "cde")));
+            // The async buffer exceeds the limit
+            assertLimitExceeded(mustache, ImmutableList.of("ab", "cde", "f"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testIterationLimit() {
+        MustacheEngine engine = MustacheEngineBuilder.newBuilder()
+                .setProperty(EngineConfigurationKey.RENDER_ITERATION_LIMIT, 5)
+                .build();
+        Mustache section = engine.compileMustache("section",
+                "{{#this}}{{#this}}{{.}}{{/this}}{{/this}}");
+        // 2 outer + 3 inner iterations
+        assertEquals("abc", section.render(ImmutableList.of(ImmutableList.of(
+                "a", "b"), ImmutableList.of("c"))));
+        assertLimitExceeded(section, ImmutableList.of(
+                ImmutableList.of("a", "b"), ImmutableList.of("c", "d")));
+        Mustache each = engine.compileMustache("each",
+                "{{#each this}}{{.}}{{/each}}");
+        assertEquals("abcde",
+                each.render(ImmutableList.of("a", "b", "c", "d", "e")));
+        assertLimitExceeded(each,
+                ImmutableList.of("a", "b", "c", "d", "e", "f"));
+        // Every execution of a block helper content counts
+        Mustache ifs = engine.compileMustache("if",
+                "{{#if this}}{{#with this}}{{#unless false}}{{.}}{{/unless}}{{/with}}{{/if}}");
+        assertEquals("a", ifs.render("a"));
+        assertLimitExceeded(engine.compileMustache("ifs",
+                "{{#each this}}{{#if this}}{{.}}{{/if}}{{/each}}"),
+                ImmutableList.of("a", "b", "c"));
+    }
+
+    @Test
+    public void testDepthLimit() {
+        MustacheEngine engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(
+                        new MapTemplateLocator(ImmutableMap.of("a", "A{{>b}}",
+                                "b", "B{{>c}}", "c", "C")))
+                .setProperty(EngineConfigurationKey.RENDER_DEPTH_LIMIT, 3)
+                .build();
+        assertEquals("ABC", engine.getMustache("a").render(null));
+        assertLimitExceeded(engine.compileMustache("root", "{{>a}}"), null);
+    }
+
+    @Test
+    public void testTimeout() {
+        Mustache mustache = MustacheEngineBuilder.newBuilder()
+                .setProperty(EngineConfigurationKey.RENDER_TIMEOUT, 20)
+                .build()
+                .compileMustache("timeout",
+                        "{{#sleep}}{{/sleep}}{{#this}}{{/this}}");
+        InputLiteralLambda sleep = new InputLiteralLambda() {
+            @Override
+            public String invoke(String text) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return text;
+            }
+
+            @Override
+            public boolean isReturnValueInterpolated() {
+                return false;
+            }
+        };
+        assertLimitExceeded(mustache, ImmutableMap.of("sleep", sleep, "this",
+                ImmutableList.of(1)));
+    }
+
+    private void assertLimitExceeded(Mustache mustache, Object data) {
+        try {
+            mustache.render(data);
+            fail("Limit exceeded and no exception thrown");
+        } catch (MustacheException e) {
+            assertEquals(MustacheProblem.RENDER_LIMIT_EXCEEDED, e.getCode());
+        }
+    }
+
+}
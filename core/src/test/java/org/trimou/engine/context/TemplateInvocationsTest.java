@@ -0,0 +1,39 @@
+package org.trimou.engine.context;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.trimou.AbstractEngineTest;
+import org.trimou.engine.parser.Template;
+
+/**
+ *
+ * @author Martin Kouba
+ */
+public class TemplateInvocationsTest extends AbstractEngineTest {
+
+    @Test
+    public void testInvocations() {
+        Template foo = (Template) engine.compileMustache("foo", "foo");
+        Template bar = (Template) engine.compileMustache("bar", "bar");
+        TemplateInvocations empty = new TemplateInvocations(5);
+        assertEquals(5, empty.getLimit());
+        assertEquals(0, empty.getDepth());
+        assertEquals(0, empty.getCount(foo));
+
+        TemplateInvocations invocations = empty.add(foo).add(bar).add(foo);
+        assertEquals(3, invocations.getDepth());
+        assertEquals(2, invocations.getCount(foo));
+        assertEquals(1, invocations.getCount(bar));
+        assertEquals(5, invocations.getLimit());
+
+        // Copy on write
+        TemplateInvocations sibling = empty.add(foo).add(bar).add(bar);
+        assertEquals(1, sibling.getCount(foo));
+        assertEquals(2, sibling.getCount(bar));
+        assertEquals(2, invocations.getCount(foo));
+        assertEquals(1, invocations.getCount(bar));
+        assertEquals(0, empty.getCount(foo));
+    }
+
+}
@@ -0,0 +1,65 @@
+package org.trimou.engine.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Test;
+import org.trimou.AbstractEngineTest;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.MustacheEngineBuilder;
+import org.trimou.engine.locator.MapTemplateLocator;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ *
+ * @author Martin Kouba
+ */
+public class TemplateCacheMonitorTest extends AbstractEngineTest {
+
+    @Test
+    public void testRegister() throws Exception {
+        MustacheEngine engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(
+                        new MapTemplateLocator(ImmutableMap.of("foo",
+                                "{{foo}}", "bar", "{{#bar}}{{baz}}{{/bar}}")))
+                .build();
+        engine.getMustache("foo");
+        engine.getMustache("bar");
+
+        ObjectName name = TemplateCacheMonitor.register(engine, "test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            assertTrue(server.isRegistered(name));
+            assertEquals(2, server.getAttribute(name, "TemplatesCount"));
+            assertTrue((Long) server.getAttribute(name,
+                    "RetainedSizeEstimate") > 0);
+            CompositeData[] templates = (CompositeData[]) server
+                    .getAttribute(name, "Templates");
+            assertEquals(2, templates.length);
+            assertEquals("bar", templates[0].get("templateId"));
+            CompositeData[] largest = (CompositeData[]) server.invoke(name,
+                    "getLargestTemplates", new Object[] { 1 },
+                    new String[] { int.class.getName() });
+            assertEquals(1, largest.length);
+            CompositeData[] locators = (CompositeData[]) server
+                    .getAttribute(name, "TemplateLocators");
+            assertEquals(1, locators.length);
+            assertEquals(2l, locators[0].get("hits"));
+            server.invoke(name, "invalidateTemplateCache", null, null);
+            assertEquals(0, server.getAttribute(name, "TemplatesCount"));
+        } finally {
+            TemplateCacheMonitor.unregister(name);
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+}
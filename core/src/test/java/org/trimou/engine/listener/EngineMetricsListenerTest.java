@@ -0,0 +1,144 @@
+package org.trimou.engine.listener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.MustacheEngineBuilder;
+import org.trimou.engine.locator.MapTemplateLocator;
+import org.trimou.engine.resolver.MapResolver;
+import org.trimou.engine.resolver.Resolver;
+import org.trimou.engine.segment.Segment;
+import org.trimou.handlebars.HelpersBuilder;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ *
+ * @author Martin Kouba
+ */
+public class EngineMetricsListenerTest {
+
+    @Test
+    public void testNotifications() {
+        MetricsCollector metrics = new MetricsCollector();
+        MustacheEngine engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(
+                        new MapTemplateLocator(ImmutableMap.of("foo",
+                                "{{foo}}!")))
+                .addMustacheListener(metrics).build();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("Hello!",
+                    engine.getMustache("foo").render(
+                            ImmutableMap.of("foo", "Hello")));
+        }
+        StringWriter writer = new StringWriter();
+        engine.getMustache("foo").render(writer,
+                ImmutableMap.of("foo", "Hi"));
+        assertEquals("Hi!", writer.toString());
+        assertEquals("{{foo}}!", engine.getMustacheSource("foo"));
+
+        assertEquals(4, metrics.outputLengths.size());
+        assertEquals(Long.valueOf(6), metrics.outputLengths.get(0));
+        assertEquals(Long.valueOf(3), metrics.outputLengths.get(3));
+        assertEquals(1, metrics.templateMisses.get());
+        assertEquals(3, metrics.templateHits.get());
+        assertEquals(1, metrics.sourceMisses.get());
+        // The first lookup initializes the hint
+        assertEquals(1, metrics.mapResolverHits.get());
+        assertEquals(3, metrics.hintHits.get());
+        assertEquals(0, metrics.hintMisses.get());
+
+        engine.invalidateTemplate("foo");
+        assertEquals(2, metrics.removals.get());
+    }
+
+    @Test
+    public void testAsyncTask() {
+        MetricsCollector metrics = new MetricsCollector();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            MustacheEngine engine = MustacheEngineBuilder.newBuilder()
+                    .setExecutorService(executor)
+                    .registerHelpers(HelpersBuilder.empty().addAsync().build())
+                    .addMustacheListener(metrics).build();
+            assertEquals("Hello world!",
+                    engine.compileMustache("async",
+                            "Hello {{#async}}world{{/async}}!").render(null));
+            assertEquals(1, metrics.asyncTasks.get());
+            assertEquals(Long.valueOf(12), metrics.outputLengths.get(0));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    static class MetricsCollector extends AbstractEngineMetricsListener {
+
+        final List<Long> outputLengths = new CopyOnWriteArrayList<Long>();
+
+        final AtomicInteger templateHits = new AtomicInteger();
+
+        final AtomicInteger templateMisses = new AtomicInteger();
+
+        final AtomicInteger sourceMisses = new AtomicInteger();
+
+        final AtomicInteger removals = new AtomicInteger();
+
+        final AtomicInteger mapResolverHits = new AtomicInteger();
+
+        final AtomicInteger hintHits = new AtomicInteger();
+
+        final AtomicInteger hintMisses = new AtomicInteger();
+
+        final AtomicInteger asyncTasks = new AtomicInteger();
+
+        @Override
+        public void outputRendered(MustacheRenderingEvent event, long length) {
+            outputLengths.add(length);
+        }
+
+        @Override
+        public void cacheAccessed(String cacheId, String key, boolean hit) {
+            if (MustacheEngine.COMPUTING_CACHE_CONSUMER_ID.equals(cacheId)) {
+                (hit ? templateHits : templateMisses).incrementAndGet();
+            } else if (MustacheEngine.SOURCE_CACHE_CONSUMER_ID.equals(cacheId)
+                    && !hit) {
+                sourceMisses.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void cacheEntryRemoved(String cacheId, String key, String cause) {
+            removals.incrementAndGet();
+        }
+
+        @Override
+        public void resolverHit(Resolver resolver) {
+            if (resolver instanceof MapResolver) {
+                mapResolverHits.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void hintUsed(boolean hit) {
+            (hit ? hintHits : hintMisses).incrementAndGet();
+        }
+
+        @Override
+        public void asyncTaskStarted(Segment segment, long queueTime) {
+            assertTrue(queueTime >= 0);
+            asyncTasks.incrementAndGet();
+        }
+
+    }
+
+}
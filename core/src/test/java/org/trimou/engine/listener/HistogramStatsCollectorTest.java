@@ -0,0 +1,157 @@
+package org.trimou.engine.listener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.trimou.AbstractEngineTest;
+import org.trimou.Mustache;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.MustacheEngineBuilder;
+import org.trimou.engine.listener.HistogramStatsCollector.Histogram;
+import org.trimou.engine.listener.HistogramStatsCollector.HistogramStats;
+import org.trimou.lambda.InputLiteralLambda;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ *
+ * @author Martin Kouba
+ */
+public class HistogramStatsCollectorTest extends AbstractEngineTest {
+
+    @Override
+    @Before
+    public void buildEngine() {
+    }
+
+    @Test
+    public void testDataCollecting() {
+        HistogramStatsCollector collector = new HistogramStatsCollector();
+        MustacheEngine engine = MustacheEngineBuilder.newBuilder()
+                .addMustacheListener(collector).build();
+        final Mustache mustache = engine.compileMustache("foo", "{{this}}");
+        int loop = 50;
+        for (int i = 0; i < loop; i++) {
+            mustache.render("bar");
+        }
+        // Nested rendering
+        assertEquals("baz", engine.compileMustache("nested",
+                "{{#this}}baz{{/this}}").render(new InputLiteralLambda() {
+            @Override
+            public boolean isReturnValueInterpolated() {
+                return false;
+            }
+
+            @Override
+            public String invoke(String text) {
+                return mustache.render(text);
+            }
+        }));
+        assertNull(collector.getStats("unknown"));
+        HistogramStats stats = collector.getStats("foo");
+        assertNotNull(stats);
+        assertEquals(loop + 1, stats.getExecutions());
+        assertTrue(stats.getP50() <= stats.getP999());
+        assertTrue(stats.getP999() <= stats.getMaxTime());
+        assertNotNull(collector.getStats("nested"));
+        assertEquals(2, collector.getStats().size());
+        collector.clearData();
+        assertNull(collector.getStats("foo"));
+    }
+
+    @Test
+    public void testPercentiles() {
+        HistogramStatsCollector collector = new HistogramStatsCollector(null,
+                TimeUnit.NANOSECONDS, 2);
+        Histogram histogram = new Histogram(2);
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000l);
+        }
+        HistogramStats stats = collector.new HistogramStats("test", histogram);
+        assertEquals(10000, stats.getExecutions());
+        assertEquals(1000, stats.getMinTime());
+        assertEquals(10000000, stats.getMaxTime());
+        assertEquals(5000500, stats.getMeanTime());
+        assertPrecision(5000000, stats.getP50());
+        assertPrecision(9000000, stats.getP90());
+        assertPrecision(9900000, stats.getP99());
+        assertPrecision(9990000, stats.getP999());
+        assertEquals(10000000, stats.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testFailedRenderingsDiscarded() {
+        HistogramStatsCollector collector = new HistogramStatsCollector();
+        MustacheEngine engine = MustacheEngineBuilder.newBuilder()
+                .addMustacheListener(collector).build();
+        final Mustache ok = engine.compileMustache("ok", "{{this}}");
+        final Mustache failing = engine.compileMustache("failing",
+                "{{#fail}}{{/fail}}");
+        InputLiteralLambda fail = new InputLiteralLambda() {
+            @Override
+            public boolean isReturnValueInterpolated() {
+                return false;
+            }
+
+            @Override
+            public String invoke(String text) {
+                // Nested rendering
+                ok.render("foo");
+                throw new IllegalStateException();
+            }
+        };
+        for (int i = 0; i < 1000; i++) {
+            try {
+                failing.render(ImmutableMap.of("fail", fail));
+            } catch (IllegalStateException expected) {
+            }
+            ok.render("bar");
+        }
+        assertEquals(0, collector.getPendingRenderings());
+        assertNull(collector.getStats("failing"));
+        assertEquals(2000, collector.getStats("ok").getExecutions());
+    }
+
+    @Test
+    public void testLazyPages() {
+        Histogram histogram = new Histogram(4);
+        assertEquals(0, histogram.getAllocatedPages());
+        for (long value = 1000; value < 2000; value++) {
+            histogram.record(value);
+        }
+        // Two power of two ranges recorded by a single thread
+        assertEquals(2, histogram.getAllocatedPages());
+        long executions = 0;
+        for (long count : histogram.getCounts()) {
+            executions += count;
+        }
+        assertEquals(1000, executions);
+        assertEquals(1000, histogram.getMin());
+        assertEquals(1999, histogram.getMax());
+    }
+
+    @Test
+    public void testBuckets() {
+        for (long value : new long[] { 0, 1, 31, 32, 33, 1000, 123456789,
+                Histogram.MAX_VALUE }) {
+            int index = Histogram.bucketIndex(value);
+            assertTrue(index < Histogram.BUCKETS);
+            assertTrue(value <= Histogram.highestValue(index));
+            if (index > 0) {
+                assertTrue(value > Histogram.highestValue(index - 1));
+            }
+        }
+    }
+
+    private void assertPrecision(long expected, long actual) {
+        assertTrue(actual + " not within 3.2% of " + expected,
+                Math.abs(actual - expected) <= expected * 0.032);
+    }
+
+}
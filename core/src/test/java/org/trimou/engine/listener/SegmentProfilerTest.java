@@ -0,0 +1,125 @@
+package org.trimou.engine.listener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.trimou.AbstractEngineTest;
+import org.trimou.Mustache;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.MustacheEngineBuilder;
+import org.trimou.engine.listener.SegmentProfiler.ProfileStats;
+import org.trimou.engine.locator.MapTemplateLocator;
+import org.trimou.lambda.Lambda;
+import org.trimou.lambda.SpecCompliantLambda;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ *
+ * @author Martin Kouba
+ */
+public class SegmentProfilerTest extends AbstractEngineTest {
+
+    @Override
+    @Before
+    public void buildEngine() {
+    }
+
+    @Test
+    public void testProfiler() {
+        SegmentProfiler profiler = new SegmentProfiler();
+        MustacheEngine engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(
+                        new MapTemplateLocator(ImmutableMap.of("page",
+                                "{{#each this}}\n{{> item}}\n{{/each}}",
+                                "item", "<{{this}}>")))
+                .addMustacheListener(profiler).build();
+        for (int i = 0; i < 10; i++) {
+            assertEquals("<a><b><c>",
+                    engine.getMustache("page").render(
+                            ImmutableList.of("a", "b", "c")));
+        }
+
+        List<ProfileStats> origins = profiler.getOriginStats();
+        assertEquals(3, origins.size());
+        // The each helper is the slowest one
+        assertEquals("page:1", origins.get(0).getName());
+        assertEquals(10, origins.get(0).getInvocations());
+        assertTrue(origins.get(0).getTotalTime() > 0);
+        for (ProfileStats stats : origins) {
+            if (stats.getName().equals("page:2")) {
+                assertEquals(30, stats.getInvocations());
+            } else if (stats.getName().equals("item:1")) {
+                assertEquals(30, stats.getInvocations());
+            }
+        }
+
+        List<ProfileStats> helpers = profiler.getHelperStats();
+        assertEquals(1, helpers.size());
+        assertEquals("each", helpers.get(0).getName());
+
+        String stacks = profiler.getCollapsedStacks();
+        assertTrue(stacks,
+                stacks.contains("page;SECTION:each this [page:1];PARTIAL:item [page:2]"));
+        for (String line : stacks.split("\n")) {
+            assertTrue(line, line.matches("page(;[^;]+)* \\d+"));
+        }
+
+        profiler.clearData();
+        assertTrue(profiler.getOriginStats().isEmpty());
+    }
+
+    @Test
+    public void testOneoffLambdaTemplates() {
+        SegmentProfiler profiler = new SegmentProfiler();
+        MustacheEngine engine = MustacheEngineBuilder.newBuilder()
+                .addMustacheListener(profiler).build();
+        Mustache mustache = engine.compileMustache("lambda",
+                "{{#each this}}{{lambda}}{{/each}}");
+        SpecCompliantLambda lambda = new SpecCompliantLambda() {
+            @Override
+            public String invoke(String text) {
+                return "{{length}}";
+            }
+        };
+        for (int i = 0; i < 10; i++) {
+            assertEquals("123", mustache.render(ImmutableList.of(
+                    ImmutableMap.of("lambda", lambda, "length", 1),
+                    ImmutableMap.of("lambda", lambda, "length", 2),
+                    ImmutableMap.of("lambda", lambda, "length", 3))));
+        }
+        // 30 one-off templates are aggregated
+        int oneoffOrigins = 0;
+        for (ProfileStats stats : profiler.getOriginStats()) {
+            if (stats.getName().startsWith(
+                    Lambda.ONEOFF_LAMBDA_TEMPLATE_PREFIX)) {
+                oneoffOrigins++;
+                assertEquals(30, stats.getInvocations());
+            }
+        }
+        assertEquals(1, oneoffOrigins);
+        // At most one stack, the self time might be zero
+        assertTrue(profiler.getCollapsedStacks().split(
+                Lambda.ONEOFF_LAMBDA_TEMPLATE_PREFIX).length <= 2);
+    }
+
+    @Test
+    public void testSampling() {
+        SegmentProfiler profiler = new SegmentProfiler(5);
+        MustacheEngine engine = MustacheEngineBuilder.newBuilder()
+                .addMustacheListener(profiler).build();
+        for (int i = 0; i < 10; i++) {
+            engine.compileMustache("foo", "{{this}}").render("bar");
+        }
+        List<ProfileStats> origins = profiler.getOriginStats();
+        assertEquals(1, origins.size());
+        assertEquals(2, origins.get(0).getInvocations());
+    }
+
+}
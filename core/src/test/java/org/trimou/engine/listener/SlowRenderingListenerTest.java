@@ -0,0 +1,164 @@
+package org.trimou.engine.listener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.trimou.AbstractEngineTest;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.MustacheEngineBuilder;
+import org.trimou.engine.listener.SlowRenderingListener.SlowRendering;
+import org.trimou.engine.listener.SlowRenderingListener.SlowSegment;
+import org.trimou.engine.locator.MapTemplateLocator;
+import org.trimou.exception.MustacheException;
+import org.trimou.handlebars.HelpersBuilder;
+import org.trimou.lambda.InputProcessingLambda;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ *
+ * @author Martin Kouba
+ */
+public class SlowRenderingListenerTest extends AbstractEngineTest {
+
+    @Override
+    @Before
+    public void buildEngine() {
+    }
+
+    @Test
+    public void testSlowRendering() {
+        final List<SlowRendering> detected = new ArrayList<SlowRendering>();
+        MustacheEngine engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(
+                        new MapTemplateLocator(ImmutableMap.of("page",
+                                "{{#each items}}\n{{> item}}\n{{/each}}",
+                                "item", "{{#sleep}}{{this}}{{/sleep}}")))
+                .addMustacheListener(
+                        new SlowRenderingListener(10, TimeUnit.MILLISECONDS, 2) {
+                            @Override
+                            protected void slowRenderingDetected(
+                                    SlowRendering rendering) {
+                                detected.add(rendering);
+                            }
+                        }).build();
+        InputProcessingLambda sleep = new InputProcessingLambda() {
+            @Override
+            public String invoke(String text) {
+                if (text.equals("fail")) {
+                    throw new IllegalStateException();
+                }
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return text;
+            }
+
+            @Override
+            public boolean isReturnValueInterpolated() {
+                return false;
+            }
+        };
+
+        // Fast - the first rendering might be slow on a cold JVM
+        for (int i = 0; i < 2; i++) {
+            detected.clear();
+            assertEquals("", engine.getMustache("page").render(
+                    ImmutableMap.of("items", ImmutableList.of(), "sleep",
+                            sleep)));
+        }
+        assertTrue(detected.isEmpty());
+
+        // Slow
+        assertEquals("ab", engine.getMustache("page").render(
+                ImmutableMap.of("items", ImmutableList.of("a", "b"), "sleep",
+                        sleep)));
+        assertEquals(1, detected.size());
+        SlowRendering rendering = detected.get(0);
+        assertEquals("page", rendering.getTemplateName());
+        assertFalse(rendering.isFailed());
+        assertEquals(2, rendering.getOutputSize());
+        assertEquals(0, rendering.getAsyncWaitTime());
+        assertTrue(rendering.getTime() >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(2, rendering.getSegments().size());
+        SlowSegment slowest = rendering.getSegments().get(0);
+        assertEquals("SECTION:sleep", slowest.getSegment());
+        assertEquals("item:1", slowest.getOrigin());
+        assertEquals(2, slowest.getInvocations());
+        assertTrue(slowest.getSelfTime() >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(Long.valueOf(1),
+                rendering.getHelperInvocations().get("each"));
+        assertTrue(rendering.toString(), rendering.toString().contains(
+                "SECTION:sleep [item:1] invocations: 2"));
+
+        // Failed
+        try {
+            engine.getMustache("page").render(
+                    ImmutableMap.of("items", ImmutableList.of("a", "fail"),
+                            "sleep", sleep));
+            fail();
+        } catch (IllegalStateException expected) {
+        } catch (MustacheException expected) {
+        }
+        assertEquals(2, detected.size());
+        assertTrue(detected.get(1).isFailed());
+        assertEquals(-1, detected.get(1).getOutputSize());
+    }
+
+    @Test
+    public void testAsyncWaitTime() {
+        final List<SlowRendering> detected = new ArrayList<SlowRendering>();
+        MustacheEngine engine = MustacheEngineBuilder
+                .newBuilder()
+                .setExecutorService(Executors.newSingleThreadExecutor())
+                .registerHelpers(HelpersBuilder.empty().addAsync().build())
+                .addMustacheListener(
+                        new SlowRenderingListener(0, TimeUnit.MILLISECONDS) {
+                            @Override
+                            protected void slowRenderingDetected(
+                                    SlowRendering rendering) {
+                                detected.add(rendering);
+                            }
+                        }).build();
+        InputProcessingLambda sleep = new InputProcessingLambda() {
+            @Override
+            public String invoke(String text) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return text;
+            }
+
+            @Override
+            public boolean isReturnValueInterpolated() {
+                return false;
+            }
+        };
+        assertEquals("foo!", engine.compileMustache("async_wait",
+                "{{#async}}{{#sleep}}foo{{/sleep}}{{/async}}!").render(
+                ImmutableMap.of("sleep", sleep)));
+        assertEquals(1, detected.size());
+        SlowRendering rendering = detected.get(0);
+        assertEquals(4, rendering.getOutputSize());
+        assertTrue(rendering.getAsyncWaitTime() >= TimeUnit.MILLISECONDS
+                .toNanos(10));
+        assertEquals(Long.valueOf(1),
+                rendering.getHelperInvocations().get("async"));
+    }
+
+}
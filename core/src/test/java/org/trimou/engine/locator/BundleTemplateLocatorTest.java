@@ -0,0 +1,73 @@
+package org.trimou.engine.locator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.trimou.MustacheExceptionAssert;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.MustacheEngineBuilder;
+import org.trimou.exception.MustacheProblem;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+/**
+ *
+ * @author Martin Kouba
+ */
+public class BundleTemplateLocatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLocator() throws IOException {
+
+        File bundle = folder.newFile("templates.bundle");
+        OutputStream out = new FileOutputStream(bundle);
+        try {
+            BundleTemplateLocator.write(new MapTemplateLocator(ImmutableMap.of(
+                    "foo", "{{> sub/bar}}!", "sub/bar", "Příliš {{{this}}}")),
+                    out);
+        } finally {
+            out.close();
+        }
+
+        TemplateLocator locator = new BundleTemplateLocator(bundle);
+        MustacheEngine engine = MustacheEngineBuilder.newBuilder()
+                .addTemplateLocator(locator).build();
+
+        Set<String> ids = locator.getAllIdentifiers();
+        assertEquals(2, ids.size());
+        assertTrue(ids.contains("foo"));
+        assertTrue(ids.contains("sub/bar"));
+        assertNull(locator.locate("qux"));
+        assertEquals("Příliš žluťoučký!",
+                engine.getMustache("foo").render("žluťoučký"));
+    }
+
+    @Test
+    public void testInvalidBundle() throws IOException {
+        final File bundle = folder.newFile("invalid.bundle");
+        Files.write("foo", bundle, Charsets.UTF_8);
+        MustacheExceptionAssert.expect(
+                MustacheProblem.TEMPLATE_LOCATOR_INVALID_CONFIGURATION).check(
+                new Runnable() {
+                    public void run() {
+                        new BundleTemplateLocator(bundle);
+                    }
+                });
+    }
+
+}
@@ -3,19 +3,36 @@ package org.trimou.engine.locator;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.trimou.engine.MustacheEngineBuilder;
 import org.trimou.engine.config.EngineConfigurationKey;
 
+import com.google.common.base.Charsets;
+
 /**
  *
  * @author Martin Kouba
  */
 public class ClassPathTemplateLocatorTest extends PathTemplateLocatorTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testLocator() throws IOException {
 
@@ -100,4 +117,110 @@ public class ClassPathTemplateLocatorTest extends PathTemplateLocatorTest {
         assertEquals("root", read(locator.locate("/oof")));
     }
 
+    @Test
+    public void testLocatorJar() throws IOException {
+
+        File jar = folder.newFile("templates.jar");
+        writeArchive(new FileOutputStream(jar), "templates/", "",
+                "templates/index.foo", "{{foo}}", "templates/sub/", "",
+                "templates/sub/bar.foo", "bar", "templates/qux.html",
+                "qux", "other/baz.foo", "baz");
+
+        URLClassLoader classLoader = new URLClassLoader(new URL[] { jar
+                .toURI().toURL() }, null);
+        try {
+            TemplateLocator locator = ClassPathTemplateLocator.builder(1)
+                    .setRootPath("templates").setSuffix("foo")
+                    .setClassLoader(classLoader).build();
+            // Just to init the locator
+            MustacheEngineBuilder.newBuilder().addTemplateLocator(locator)
+                    .build();
+
+            Set<String> ids = locator.getAllIdentifiers();
+            assertEquals(2, ids.size());
+            assertTrue(ids.contains("index"));
+            assertTrue(ids.contains("sub/bar"));
+            assertEquals("bar", read(locator.locate("sub/bar")));
+        } finally {
+            classLoader.close();
+        }
+    }
+
+    @Test
+    public void testLocatorJarEncodedRootPath() throws IOException {
+
+        File jar = folder.newFile("encoded.jar");
+        writeArchive(new FileOutputStream(jar), "my templates/", "",
+                "my templates/index.foo", "{{foo}}", "my templates/a+b.foo",
+                "ab");
+
+        URLClassLoader classLoader = new URLClassLoader(new URL[] { jar
+                .toURI().toURL() }, null);
+        try {
+            TemplateLocator locator = ClassPathTemplateLocator.builder(1)
+                    .setRootPath("my templates").setSuffix("foo")
+                    .setClassLoader(classLoader).build();
+            // Just to init the locator
+            MustacheEngineBuilder.newBuilder().addTemplateLocator(locator)
+                    .build();
+
+            Set<String> ids = locator.getAllIdentifiers();
+            assertEquals(2, ids.size());
+            assertTrue(ids.contains("index"));
+            assertTrue(ids.contains("a+b"));
+        } finally {
+            classLoader.close();
+        }
+    }
+
+    @Test
+    public void testLocatorNestedJar() throws IOException {
+
+        ByteArrayOutputStream nested = new ByteArrayOutputStream();
+        writeArchive(nested, "templates/index.foo", "{{foo}}",
+                "templates/sub/bar.foo", "bar");
+        final File jar = folder.newFile("app.jar");
+        writeArchive(new FileOutputStream(jar), "BOOT-INF/lib/templates.jar",
+                nested.toString("ISO-8859-1"));
+
+        // Simulate a class loader able to load nested archives
+        ClassLoader classLoader = new ClassLoader(null) {
+            @Override
+            public Enumeration<URL> getResources(String name)
+                    throws IOException {
+                return Collections.enumeration(Collections.singleton(new URL(
+                        "jar:" + jar.toURI()
+                                + "!/BOOT-INF/lib/templates.jar!/" + name)));
+            }
+        };
+        TemplateLocator locator = ClassPathTemplateLocator.builder(1)
+                .setRootPath("templates").setSuffix("foo")
+                .setClassLoader(classLoader).build();
+        // Just to init the locator
+        MustacheEngineBuilder.newBuilder().addTemplateLocator(locator).build();
+
+        Set<String> ids = locator.getAllIdentifiers();
+        assertEquals(2, ids.size());
+        assertTrue(ids.contains("index"));
+        assertTrue(ids.contains("sub/bar"));
+    }
+
+    private void writeArchive(OutputStream out, String... nameContentPairs)
+            throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(out);
+        try {
+            for (int i = 0; i < nameContentPairs.length; i = i + 2) {
+                zip.putNextEntry(new ZipEntry(nameContentPairs[i]));
+                if (!nameContentPairs[i].endsWith("/")) {
+                    zip.write(nameContentPairs[i + 1].getBytes(nameContentPairs[i]
+                            .endsWith(".jar") ? Charsets.ISO_8859_1
+                            : Charsets.UTF_8));
+                }
+                zip.closeEntry();
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
 }
@@ -1,24 +1,36 @@
 package org.trimou.engine.locator;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Set;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.trimou.ExceptionAssert;
+import org.trimou.Mustache;
 import org.trimou.MustacheExceptionAssert;
+import org.trimou.engine.MustacheEngine;
 import org.trimou.engine.MustacheEngineBuilder;
 import org.trimou.engine.config.EngineConfigurationKey;
 import org.trimou.exception.MustacheProblem;
 
+import com.google.common.base.Charsets;
+
 /**
  *
  * @author Martin Kouba
  */
 public class FileSystemTemplateLocatorTest extends PathTemplateLocatorTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testLocator() throws IOException {
 
@@ -127,4 +139,53 @@ public class FileSystemTemplateLocatorTest extends PathTemplateLocatorTest {
         assertEquals("Hurá ěščřřžžýá!", read(locator.locate("encoding")));
     }
 
+    @Test
+    public void testWatchChanges() throws IOException, InterruptedException {
+
+        File rootDir = folder.newFolder("templates");
+        File sub = new File(rootDir, "sub");
+        sub.mkdir();
+        write(new File(rootDir, "foo.html"), "{{>sub/bar}}");
+        write(new File(sub, "bar.html"), "Bar");
+        write(new File(rootDir, "baz.html"), "Baz");
+
+        FileSystemTemplateLocator locator = new FileSystemTemplateLocator(1,
+                rootDir.getAbsolutePath(), "html");
+        MustacheEngine engine = MustacheEngineBuilder.newBuilder()
+                .addTemplateLocator(locator)
+                .setProperty(FileSystemTemplateLocator.WATCH_CHANGES_KEY, true)
+                .build();
+        try {
+            assertEquals("Bar", engine.getMustache("foo").render(null));
+            Mustache baz = engine.getMustache("baz");
+            assertNull(engine.getMustache("sub/qux"));
+
+            write(new File(sub, "bar.html"), "BAR");
+            write(new File(sub, "qux.html"), "Qux");
+            assertTrue(awaitOutput(engine, "foo", "BAR"));
+            assertTrue(awaitOutput(engine, "sub/qux", "Qux"));
+            // Unchanged templates are not invalidated
+            assertSame(baz, engine.getMustache("baz"));
+        } finally {
+            locator.stopWatching();
+        }
+    }
+
+    private boolean awaitOutput(MustacheEngine engine, String templateId,
+            String expected) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 20000;
+        while (System.currentTimeMillis() < timeout) {
+            Mustache mustache = engine.getMustache(templateId);
+            if (mustache != null && expected.equals(mustache.render(null))) {
+                return true;
+            }
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    private void write(File file, String content) throws IOException {
+        com.google.common.io.Files.write(content, file, Charsets.UTF_8);
+    }
+
 }
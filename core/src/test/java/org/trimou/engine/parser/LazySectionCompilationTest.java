@@ -0,0 +1,86 @@
+package org.trimou.engine.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.trimou.AbstractEngineTest;
+import org.trimou.MustacheExceptionAssert;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.MustacheEngineBuilder;
+import org.trimou.engine.config.EngineConfigurationKey;
+import org.trimou.engine.parser.DefaultParsingHandler.LazySegmentList;
+import org.trimou.engine.segment.ContainerSegment;
+import org.trimou.exception.MustacheProblem;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ *
+ * @author Martin Kouba
+ */
+public class LazySectionCompilationTest extends AbstractEngineTest {
+
+    @Override
+    public void buildEngine() {
+        engine = MustacheEngineBuilder
+                .newBuilder()
+                .setProperty(EngineConfigurationKey.LAZY_SECTION_COMPILATION,
+                        true).build();
+    }
+
+    @Test
+    public void testSectionCompiledWhenNeeded() {
+        Template template = (Template) engine.compileMustache("lazy",
+                "{{#flag}}{{#nested}}{{this}}{{/nested}}{{/flag}}{{^flag}}none{{/flag}}");
+        LazySegmentList section = getLazySegments(template, 0);
+        LazySegmentList invertedSection = getLazySegments(template, 1);
+        assertFalse(section.isCompiled());
+        assertFalse(invertedSection.isCompiled());
+
+        assertEquals("none",
+                template.render(ImmutableMap.<String, Object> of("flag", false)));
+        assertFalse(section.isCompiled());
+        assertTrue(invertedSection.isCompiled());
+
+        assertEquals("ok", template.render(ImmutableMap.<String, Object> of(
+                "flag", true, "nested", "ok")));
+        assertTrue(section.isCompiled());
+    }
+
+    @Test
+    public void testOutputMatchesEagerCompilation() {
+        String source = "{{#items}}\n  {{name}}\n  {{#active}}\n  * active\n  {{/active}}\n{{/items}}\n{{^items}}\nNo items\n{{/items}}";
+        Object data = ImmutableMap.<String, Object> of(
+                "items",
+                new Object[] {
+                        ImmutableMap.<String, Object> of("name", "foo",
+                                "active", true),
+                        ImmutableMap.<String, Object> of("name", "bar",
+                                "active", false) });
+        MustacheEngine eager = MustacheEngineBuilder.newBuilder().build();
+        assertEquals(eager.compileMustache("eager", source).render(data),
+                engine.compileMustache("lazy", source).render(data));
+    }
+
+    @Test
+    public void testHelperValidationDeferred() {
+        final Template template = (Template) engine.compileMustache(
+                "deferred", "{{#flag}}{{#each}}{{/each}}{{/flag}}");
+        assertEquals("", template.render(null));
+        MustacheExceptionAssert.expect(
+                MustacheProblem.COMPILE_HELPER_VALIDATION_FAILURE).check(
+                new Runnable() {
+                    public void run() {
+                        template.render(ImmutableMap.of("flag", true));
+                    }
+                });
+    }
+
+    private LazySegmentList getLazySegments(Template template, int index) {
+        return (LazySegmentList) ((ContainerSegment) template.getRootSegment()
+                .getSegments().get(index)).getSegments();
+    }
+
+}
@@ -0,0 +1,173 @@
+package org.trimou.engine.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.trimou.AbstractTest;
+import org.trimou.MustacheExceptionAssert;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.MustacheEngineBuilder;
+import org.trimou.engine.config.EngineConfigurationKey;
+import org.trimou.engine.locator.MapTemplateLocator;
+import org.trimou.exception.MustacheProblem;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ *
+ * @author Martin Kouba
+ */
+public class TemplateSnapshotTest extends AbstractTest {
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+
+        Map<String, String> templates = new HashMap<String, String>();
+        templates.put("foo", "{{#each this}}{{this}}{{#iter.hasNext}},{{/iter.hasNext}}{{/each}}\n{{>bar}}");
+        templates.put("bar", "{{=<% %>=}}<%#this%>|<%/this%>");
+
+        TemplateSnapshot snapshot = new TemplateSnapshot();
+        MustacheEngine engine = MustacheEngineBuilder.newBuilder()
+                .addTemplateLocator(new MapTemplateLocator(templates))
+                .setTemplateSnapshot(snapshot)
+                .setProperty(EngineConfigurationKey.PRECOMPILE_ALL_TEMPLATES,
+                        true).build();
+        assertEquals(2, snapshot.size());
+        assertTrue(snapshot.contains("foo"));
+        assertTrue(snapshot.contains("bar"));
+        String expected = engine.getMustache("foo").render(
+                new String[] { "a", "b" });
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        snapshot.write(out);
+        TemplateSnapshot loaded = TemplateSnapshot
+                .read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(snapshot.getTemplateIds(), loaded.getTemplateIds());
+
+        engine = MustacheEngineBuilder.newBuilder()
+                .addTemplateLocator(new MapTemplateLocator(templates))
+                .setTemplateSnapshot(loaded).build();
+        assertEquals(expected,
+                engine.getMustache("foo").render(new String[] { "a", "b" }));
+        assertEquals("a,b\n||", expected);
+        // Compiled templates not affected
+        assertFalse(loaded.contains("baz"));
+        engine.compileMustache("baz", "Hello");
+        assertFalse(loaded.contains("baz"));
+    }
+
+    @Test
+    public void testStaleEntryReplaced() throws IOException {
+
+        TemplateSnapshot snapshot = new TemplateSnapshot();
+        MustacheEngine engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(
+                        new MapTemplateLocator(ImmutableMap.of("foo",
+                                "{{this}}")))
+                .setTemplateSnapshot(snapshot).build();
+        assertEquals("1", engine.getMustache("foo").render(1));
+        assertEquals(1, snapshot.size());
+
+        engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(
+                        new MapTemplateLocator(ImmutableMap.of("foo",
+                                "[{{this}}]")))
+                .setTemplateSnapshot(snapshot).build();
+        assertEquals("[1]", engine.getMustache("foo").render(1));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        snapshot.write(out);
+        engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(
+                        new MapTemplateLocator(ImmutableMap.of("foo",
+                                "[{{this}}]")))
+                .setTemplateSnapshot(
+                        TemplateSnapshot.read(new ByteArrayInputStream(out
+                                .toByteArray()))).build();
+        assertEquals("[1]", engine.getMustache("foo").render(1));
+    }
+
+    @Test
+    public void testInvalidTemplateNotRecorded() {
+        final TemplateSnapshot snapshot = new TemplateSnapshot();
+        final MustacheEngine engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(
+                        new MapTemplateLocator(ImmutableMap.of("foo",
+                                "{{#section}}")))
+                .setTemplateSnapshot(snapshot).build();
+        MustacheExceptionAssert.expect(MustacheProblem.COMPILE_INVALID_TEMPLATE)
+                .check(new Runnable() {
+                    public void run() {
+                        engine.getMustache("foo");
+                    }
+                });
+        assertTrue(snapshot.isEmpty());
+    }
+
+    @Test
+    public void testInvalidInput() {
+        try {
+            TemplateSnapshot.read(new ByteArrayInputStream(new byte[] { 1, 2,
+                    3, 4 }));
+        } catch (IOException expected) {
+            return;
+        }
+        throw new AssertionError();
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws IOException {
+        Map<String, String> templates = ImmutableMap.of("foo", "Hello");
+        TemplateSnapshot snapshot = new TemplateSnapshot();
+        MustacheEngineBuilder.newBuilder()
+                .addTemplateLocator(new MapTemplateLocator(templates))
+                .setTemplateSnapshot(snapshot).build().getMustache("foo");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        snapshot.write(out);
+        final byte[] bytes = out.toByteArray();
+
+        // Events: text, length, "Hello", end
+        for (int length : new int[] { Integer.MAX_VALUE, -1 }) {
+            ByteBuffer.wrap(bytes).putInt(bytes.length - 10, length);
+            TemplateSnapshot corrupt = TemplateSnapshot
+                    .read(new ByteArrayInputStream(bytes));
+            assertTrue(corrupt.contains("foo"));
+            MustacheEngine engine = MustacheEngineBuilder.newBuilder()
+                    .addTemplateLocator(new MapTemplateLocator(templates))
+                    .setTemplateSnapshot(corrupt).build();
+            // Falls back to parsing and the entry is replaced
+            assertEquals("Hello", engine.getMustache("foo").render(null));
+            out = new ByteArrayOutputStream();
+            corrupt.write(out);
+            assertEquals(bytes.length, out.size());
+        }
+
+        // The length of the events exceeds the stream
+        ByteBuffer.wrap(bytes).putInt(bytes.length - 15, 1000);
+        MustacheExceptionAssert.expect(MustacheProblem.COMPILE_IO_ERROR)
+                .check(new Runnable() {
+                    public void run() {
+                        try {
+                            TemplateSnapshot.read(new ByteArrayInputStream(
+                                    bytes));
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                });
+    }
+
+}
@@ -0,0 +1,94 @@
+package org.trimou.engine.segment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.trimou.AbstractEngineTest;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.MustacheEngineBuilder;
+import org.trimou.engine.config.EngineConfigurationKey;
+import org.trimou.engine.interpolation.DotKeySplitter;
+import org.trimou.engine.locator.MapTemplateLocator;
+import org.trimou.engine.parser.Template;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ *
+ * @author Martin Kouba
+ */
+public class CompactSegmentsTest extends AbstractEngineTest {
+
+    @Override
+    public void buildEngine() {
+        engine = MustacheEngineBuilder
+                .newBuilder()
+                .setProperty(EngineConfigurationKey.COMPACT_SEGMENTS, true)
+                .addTemplateLocator(
+                        new MapTemplateLocator(ImmutableMap.of("partial",
+                                "{{this}}"))).build();
+    }
+
+    @Test
+    public void testTextInterned() {
+        Template foo = (Template) engine.compileMustache("foo",
+                new String("{{name.length}} Hello!"));
+        Template bar = (Template) engine.compileMustache("bar",
+                new String("{{name.length}} Hello!"));
+        assertEquals("3 Hello!", foo.render(ImmutableMap.of("name", "Foo")));
+        assertEquals("3 Hello!", bar.render(ImmutableMap.of("name", "Foo")));
+        for (int i = 0; i < 2; i++) {
+            assertSame(getSegment(foo, i).getText(), getSegment(bar, i)
+                    .getText());
+        }
+        // Not enabled
+        MustacheEngine notCompact = MustacheEngineBuilder.newBuilder().build();
+        Template baz = (Template) notCompact.compileMustache("baz",
+                new String("{{name.length}} Hello!"));
+        assertNotSame(getSegment(foo, 0).getText(), getSegment(baz, 0)
+                .getText());
+    }
+
+    @Test
+    public void testKeyPartsInterned() {
+        DotKeySplitter splitter = new DotKeySplitter();
+        String[] parts = Segments.internKeyParts(new String("foo.bar"),
+                splitter);
+        assertEquals(2, parts.length);
+        assertSame(parts,
+                Segments.internKeyParts(new String("foo.bar"), splitter));
+        assertNotSame(parts, Segments.internKeyParts(new String("foo.bar"),
+                new DotKeySplitter()));
+        assertSame(parts[0], Segments.intern(new String("foo")));
+    }
+
+    @Test
+    public void testPartialIndentation() {
+        Template template = (Template) engine.compileMustache("indentation",
+                "  {{>partial}}");
+        assertEquals("  1", template.render(1));
+        PartialSegment partial = (PartialSegment) getSegment(template, 0);
+        assertEquals(1, partial.getOrigin().getLine().intValue());
+    }
+
+    @Test
+    public void testTagInfo() {
+        Template template = (Template) engine.compileMustache("info",
+                "{{foo}}");
+        AbstractSegment segment = getSegment(template, 0);
+        assertSame(segment.getTagInfo(), segment.getTagInfo());
+        assertEquals("foo", segment.getTagInfo().getText());
+        assertEquals(1, segment.getTagInfo().getLine());
+        assertNull(template.getRootSegment().getOrigin().getLine());
+        assertNull(template.getRootSegment().getOrigin().getIndex());
+    }
+
+    private AbstractSegment getSegment(Template template, int index) {
+        return (AbstractSegment) template.getRootSegment().getSegments()
+                .get(index);
+    }
+
+}
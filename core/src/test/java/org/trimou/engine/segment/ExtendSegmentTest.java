@@ -72,6 +72,26 @@ public class ExtendSegmentTest extends AbstractEngineTest {
         assertEquals("true", sub.render(null));
     }
 
+    @Test
+    public void testSharedLayout() {
+        MapTemplateLocator locator = new MapTemplateLocator(ImmutableMap.of(
+                "base", "<{{$title}}Base{{/title}}|{{$body}}{{/body}}>",
+                "layout",
+                "{{<base}}{{$body}}[{{$content}}{{/content}}]{{> footer}}{{/body}}{{/base}}",
+                "footer", "{{$footer}}Footer{{/footer}}", "foo",
+                "{{<layout}}{{$title}}Foo{{/title}}{{$content}}foo{{/content}}{{/layout}}",
+                "bar",
+                "{{<layout}}{{$content}}bar{{/content}}{{$footer}}Bar{{/footer}}{{/layout}}"));
+        MustacheEngine engine = MustacheEngineBuilder.newBuilder()
+                .addTemplateLocator(locator).build();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("<Foo|[foo]Footer>", engine.getMustache("foo")
+                    .render(null));
+            assertEquals("<Base|[bar]Bar>", engine.getMustache("bar")
+                    .render(null));
+        }
+    }
+
     @Test
     public void testRecursiveInvocationAllowed() {
         MapTemplateLocator locator = new MapTemplateLocator(
@@ -185,8 +205,10 @@ public class ExtendSegmentTest extends AbstractEngineTest {
         Mustache mustache = engine.getMustache("sub");
         assertEquals("foo", mustache.render("foo"));
         map.put("super", "{{$section2}}Martin{{/section2}}");
-        engine.invalidateTemplateCache();
         assertEquals("foo", mustache.render("foo"));
+        // The cached extended template is no longer valid
+        engine.invalidateTemplateCache();
+        assertEquals("Martin", mustache.render("foo"));
     }
 
     @Test
@@ -12,6 +12,10 @@ import org.trimou.AbstractEngineTest;
 import org.trimou.Mustache;
 import org.trimou.engine.MustacheEngine;
 import org.trimou.engine.MustacheEngineBuilder;
+import org.trimou.engine.cache.ComputingCache;
+import org.trimou.engine.cache.ComputingCache.Function;
+import org.trimou.engine.cache.ComputingCache.Listener;
+import org.trimou.engine.cache.DefaultComputingCacheFactory;
 import org.trimou.engine.config.EngineConfigurationKey;
 import org.trimou.engine.locator.MapTemplateLocator;
 import org.trimou.exception.MustacheException;
@@ -172,8 +176,57 @@ public class PartialSegmentTest extends AbstractEngineTest {
         Mustache mustache = engine.getMustache("alpha");
         assertEquals("foo", mustache.render("foo"));
         map.put("bravo", "NOTHING");
+        assertEquals("foo", mustache.render("foo"));
+        // The cached partial template is no longer valid
         engine.invalidateTemplateCache();
+        assertEquals("NOTHING", mustache.render("foo"));
+    }
+
+    @Test
+    public void testCachedPartialSegmentExpired() throws InterruptedException {
+        Map<String, String> map = new HashMap<>();
+        map.put("alpha", "{{>bravo}}");
+        map.put("bravo", "{{this}}");
+        MapTemplateLocator locator = new MapTemplateLocator(map);
+        MustacheEngine engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(locator)
+                .setProperty(
+                        EngineConfigurationKey.TEMPLATE_CACHE_EXPIRATION_TIMEOUT,
+                        1).build();
+        Mustache mustache = engine.getMustache("alpha");
+        assertEquals("foo", mustache.render("foo"));
+        map.put("bravo", "NOTHING");
         assertEquals("foo", mustache.render("foo"));
+        Thread.sleep(1100);
+        assertEquals("NOTHING", mustache.render("foo"));
+    }
+
+    @Test
+    public void testCachedPartialSegmentEvicted() {
+        Map<String, String> map = new HashMap<>();
+        map.put("alpha", "{{>bravo}}");
+        map.put("bravo", "{{this}}");
+        MapTemplateLocator locator = new MapTemplateLocator(map);
+        MustacheEngine engine = MustacheEngineBuilder.newBuilder()
+                .addTemplateLocator(locator)
+                .setComputingCacheFactory(new DefaultComputingCacheFactory() {
+                    @Override
+                    public <K, V> ComputingCache<K, V> create(
+                            String consumerId, Function<K, V> computingFunction,
+                            Long expirationTimeout, Long maxSize,
+                            Listener<K> listener) {
+                        // Only one entry is retained
+                        return super.create(consumerId, computingFunction,
+                                expirationTimeout, 1l, listener);
+                    }
+                }).build();
+        Mustache mustache = engine.getMustache("alpha");
+        assertEquals("foo", mustache.render("foo"));
+        map.put("bravo", "NOTHING");
+        // Evicts bravo
+        engine.getMustache("alpha");
+        assertEquals("NOTHING", mustache.render("foo"));
     }
 
     @Test
@@ -0,0 +1,48 @@
+package org.trimou.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author Martin Kouba
+ */
+public class OutputSizeEstimateTest {
+
+    @Test
+    public void testEstimate() {
+        OutputSizeEstimate estimate = new OutputSizeEstimate();
+        assertEquals(0, estimate.get());
+        assertEquals(OutputSizeEstimate.DEFAULT_CAPACITY, estimate
+                .newBuilder().capacity());
+        estimate.update(1000);
+        assertEquals(1000, estimate.get());
+        assertEquals(1000, estimate.newBuilder().capacity());
+        // A single outlier only moves the estimate a little
+        estimate.update(100000);
+        assertTrue(estimate.get() > 1000 && estimate.get() < 2000);
+        for (int i = 0; i < 200; i++) {
+            estimate.update(400);
+        }
+        assertTrue(estimate.get() >= 400 && estimate.get() < 500);
+        // Uniformly distributed sizes 1..1000
+        for (int i = 0; i < 5000; i++) {
+            estimate.update((i * 37) % 1000 + 1);
+        }
+        assertTrue(estimate.get() > 800 && estimate.get() < 1300);
+    }
+
+    @Test
+    public void testMaxCapacity() {
+        OutputSizeEstimate estimate = new OutputSizeEstimate();
+        estimate.update(Integer.MAX_VALUE);
+        assertEquals(OutputSizeEstimate.MAX_CAPACITY, estimate.get());
+        for (int i = 0; i < 10; i++) {
+            estimate.update(Integer.MAX_VALUE);
+        }
+        assertEquals(OutputSizeEstimate.MAX_CAPACITY, estimate.get());
+    }
+
+}
@@ -0,0 +1,105 @@
+package org.trimou.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+import org.trimou.Mustache;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.MustacheEngineBuilder;
+import org.trimou.engine.config.EngineConfigurationKey;
+import org.trimou.lambda.InputProcessingLambda;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ *
+ * @author Martin Kouba
+ */
+public class StringBuilderPoolTest {
+
+    @Test
+    public void testPool() {
+        StringBuilderPool pool = new StringBuilderPool(100);
+        StringBuilder builder = pool.acquire(10);
+        builder.append("foo");
+        pool.release(builder);
+        StringBuilder reused = pool.acquire(50);
+        assertSame(builder, reused);
+        assertEquals(0, reused.length());
+        assertTrue(reused.capacity() >= 50);
+        // Nested usage
+        assertNotSame(reused, pool.acquire(10));
+        // Too large
+        reused.ensureCapacity(200);
+        pool.release(reused);
+        assertNotSame(reused, pool.acquire(10));
+        // Disabled
+        StringBuilderPool disabled = new StringBuilderPool(0);
+        StringBuilder notPooled = disabled.acquire(10);
+        disabled.release(notPooled);
+        assertNotSame(notPooled, disabled.acquire(10));
+        // Max retained builders
+        for (int i = 0; i < StringBuilderPool.MAX_RETAINED_BUILDERS + 2; i++) {
+            pool.release(new StringBuilder());
+        }
+        // Clear the retained builders
+        StringBuilder cleared = new StringBuilder();
+        pool.release(cleared);
+        pool.clear();
+        assertNotSame(cleared, pool.acquire(10));
+    }
+
+    @Test
+    public void testPoolPerEngine() {
+        MustacheEngine engine1 = MustacheEngineBuilder.newBuilder().build();
+        MustacheEngine engine2 = MustacheEngineBuilder.newBuilder().build();
+        StringBuilderPool pool = StringBuilderPool
+                .from(engine1.getConfiguration());
+        assertSame(pool, StringBuilderPool.from(engine1.getConfiguration()));
+        assertNotSame(pool, StringBuilderPool.from(engine2.getConfiguration()));
+        StringBuilder builder = pool.acquire(10);
+        pool.release(builder);
+        assertNotSame(builder, StringBuilderPool
+                .from(engine2.getConfiguration()).acquire(10));
+    }
+
+    @Test
+    public void testRenderBufferReuse() {
+        final Mustache mustache = MustacheEngineBuilder.newBuilder()
+                .setProperty(EngineConfigurationKey.RENDER_BUFFER_MAX_CAPACITY,
+                        1024).build()
+                .compileMustache("reuse",
+                        "{{#upper}}Hello {{name}}!{{/upper}}|{{interpolated}}");
+        Map<String, Object> data = ImmutableMap.<String, Object> of("name",
+                "Joe", "upper", new InputProcessingLambda() {
+                    @Override
+                    public String invoke(String text) {
+                        return text.toUpperCase();
+                    }
+
+                    @Override
+                    public boolean isReturnValueInterpolated() {
+                        return false;
+                    }
+                }, "interpolated", new InputProcessingLambda() {
+                    @Override
+                    public String invoke(String text) {
+                        return "{{name}}";
+                    }
+
+                    @Override
+                    public boolean isReturnValueInterpolated() {
+                        return true;
+                    }
+                });
+        for (int i = 0; i < 3; i++) {
+            assertEquals("HELLO JOE!|Joe", mustache.render(data));
+        }
+    }
+
+}
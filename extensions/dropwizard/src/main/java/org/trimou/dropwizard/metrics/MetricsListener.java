@@ -0,0 +1,418 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.dropwizard.metrics;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.trimou.engine.CachedTemplateInfo;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.TemplateLocatorInfo;
+import org.trimou.engine.config.EngineConfigurationKey;
+import org.trimou.engine.context.ExecutionContext;
+import org.trimou.engine.listener.AbstractEngineMetricsListener;
+import org.trimou.engine.listener.MustacheCompilationEvent;
+import org.trimou.engine.listener.MustacheRenderingEvent;
+import org.trimou.engine.listener.SegmentExecutionListener;
+import org.trimou.engine.resolver.Resolver;
+import org.trimou.engine.resource.ReleaseCallback;
+import org.trimou.engine.segment.Segment;
+import org.trimou.util.Checker;
+
+import com.codahale.metrics.CachedGauge;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.MapMaker;
+
+/**
+ * Updates the Dropwizard metrics in the given {@link MetricRegistry}:
+ *
+ * <ul>
+ * <li><code>{prefix}.rendering.{templateName}</code> - timer of the template
+ * rendering</li>
+ * <li><code>{prefix}.output.{templateName}</code> - histogram of the number
+ * of characters rendered</li>
+ * <li><code>{prefix}.output</code> - meter of all the characters rendered</li>
+ * <li><code>{prefix}.compilation.{templateName}</code> - counter of the
+ * template compilations</li>
+ * <li><code>{prefix}.cache.{templates|sources}.hits</code>,
+ * <code>{prefix}.cache.{templates|sources}.misses</code> and
+ * <code>{prefix}.cache.{templates|sources}.removals</code> - counters of the
+ * template and template source cache accesses and removals (evictions and
+ * invalidations)</li>
+ * <li><code>{prefix}.resolver.{resolverClassName}.hits</code> - counter of the
+ * values resolved by a resolver</li>
+ * <li><code>{prefix}.hint.hits</code> and <code>{prefix}.hint.misses</code> -
+ * counters of the resolver hints used by value tags</li>
+ * <li><code>{prefix}.async.queueTime</code> - timer of the time an
+ * asynchronous helper task waits for an executor thread</li>
+ * <li><code>{prefix}.helper.{helperName}</code> - timer of the helper
+ * execution (only if {@link EngineConfigurationKey#HANDLEBARS_SUPPORT_ENABLED}
+ * is set to <code>true</code>), including the nested segments</li>
+ * </ul>
+ *
+ * <p>
+ * Unlike {@link org.trimou.engine.listener.SimpleStatsCollector} the data are
+ * not copied when read - the metrics are updated during rendering and the
+ * reporters can read them directly. The metrics of a template are only looked
+ * up in the registry once. See also
+ * {@link #registerGauges(MetricRegistry, MustacheEngine, String)}.
+ * </p>
+ *
+ * @author Martin Kouba
+ */
+public class MetricsListener extends AbstractEngineMetricsListener implements SegmentExecutionListener {
+
+    public static final String DEFAULT_PREFIX = "trimou";
+
+    /**
+     * The default time for which the values of the gauges are cached (in
+     * seconds)
+     */
+    public static final long DEFAULT_GAUGE_CACHE_TIMEOUT = 10;
+
+    private static final Timer NO_TIMER = new Timer();
+
+    private final MetricRegistry registry;
+
+    private final String prefix;
+
+    private final ConcurrentMap<String, TemplateMetrics> templateMetrics;
+
+    private final ConcurrentMap<String, CacheMetrics> cacheMetrics;
+
+    private final ConcurrentMap<Resolver, Counter> resolverHits;
+
+    private final Meter output;
+
+    private final Counter hintHits;
+
+    private final Counter hintMisses;
+
+    private final Timer asyncQueueTime;
+
+    private final ConcurrentMap<Segment, Timer> helperTimers;
+
+    private final ThreadLocal<Deque<Timer.Context>> helperContexts;
+
+    /**
+     *
+     * @param registry
+     */
+    public MetricsListener(MetricRegistry registry) {
+        this(registry, DEFAULT_PREFIX);
+    }
+
+    /**
+     *
+     * @param registry
+     * @param prefix
+     *            The prefix of all metric names
+     */
+    public MetricsListener(MetricRegistry registry, String prefix) {
+        Checker.checkArgumentsNotNull(registry, prefix);
+        this.registry = registry;
+        this.prefix = prefix;
+        this.templateMetrics = new ConcurrentHashMap<String, TemplateMetrics>();
+        this.cacheMetrics = new ConcurrentHashMap<String, CacheMetrics>();
+        this.resolverHits = new ConcurrentHashMap<Resolver, Counter>();
+        this.output = registry.meter(MetricRegistry.name(prefix, "output"));
+        this.hintHits = registry.counter(MetricRegistry.name(prefix, "hint", "hits"));
+        this.hintMisses = registry.counter(MetricRegistry.name(prefix, "hint", "misses"));
+        this.asyncQueueTime = registry.timer(MetricRegistry.name(prefix, "async", "queueTime"));
+        // Segments of invalidated templates must not be retained
+        this.helperTimers = new MapMaker().weakKeys().makeMap();
+        this.helperContexts = new ThreadLocal<Deque<Timer.Context>>() {
+            @Override
+            protected Deque<Timer.Context> initialValue() {
+                return new ArrayDeque<Timer.Context>();
+            }
+        };
+    }
+
+    @Override
+    public void compilationFinished(MustacheCompilationEvent event) {
+        getTemplateMetrics(event.getMustache().getName()).compilation.inc();
+    }
+
+    @Override
+    public void renderingStarted(MustacheRenderingEvent event) {
+        final Timer.Context context = getTemplateMetrics(event.getMustacheName()).rendering.time();
+        event.registerReleaseCallback(new ReleaseCallback() {
+            @Override
+            public void release() {
+                context.stop();
+            }
+        });
+    }
+
+    @Override
+    public void outputRendered(MustacheRenderingEvent event, long length) {
+        getTemplateMetrics(event.getMustacheName()).output.update(length);
+        output.mark(length);
+    }
+
+    @Override
+    public void cacheAccessed(String cacheId, String key, boolean hit) {
+        CacheMetrics metrics = getCacheMetrics(cacheId);
+        (hit ? metrics.hits : metrics.misses).inc();
+    }
+
+    @Override
+    public void cacheEntryRemoved(String cacheId, String key, String cause) {
+        getCacheMetrics(cacheId).removals.inc();
+    }
+
+    @Override
+    public void resolverHit(Resolver resolver) {
+        Counter counter = resolverHits.get(resolver);
+        if (counter == null) {
+            counter = registry.counter(MetricRegistry.name(prefix, "resolver", resolver.getClass().getName(), "hits"));
+            resolverHits.putIfAbsent(resolver, counter);
+        }
+        counter.inc();
+    }
+
+    @Override
+    public void hintUsed(boolean hit) {
+        (hit ? hintHits : hintMisses).inc();
+    }
+
+    @Override
+    public void asyncTaskStarted(Segment segment, long queueTime) {
+        asyncQueueTime.update(queueTime, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void segmentStarted(Segment segment, ExecutionContext context) {
+        Timer timer = getHelperTimer(segment);
+        if (timer != NO_TIMER) {
+            helperContexts.get().push(timer.time());
+        }
+    }
+
+    @Override
+    public void segmentFinished(Segment segment, ExecutionContext context) {
+        if (getHelperTimer(segment) != NO_TIMER) {
+            Timer.Context timerContext = helperContexts.get().poll();
+            if (timerContext != null) {
+                timerContext.stop();
+            }
+        }
+    }
+
+    private TemplateMetrics getTemplateMetrics(String templateName) {
+        TemplateMetrics metrics = templateMetrics.get(templateName);
+        if (metrics == null) {
+            metrics = new TemplateMetrics(registry, prefix, templateName);
+            TemplateMetrics previous = templateMetrics.putIfAbsent(templateName, metrics);
+            if (previous != null) {
+                metrics = previous;
+            }
+        }
+        return metrics;
+    }
+
+    private CacheMetrics getCacheMetrics(String cacheId) {
+        CacheMetrics metrics = cacheMetrics.get(cacheId);
+        if (metrics == null) {
+            String name;
+            if (MustacheEngine.COMPUTING_CACHE_CONSUMER_ID.equals(cacheId)) {
+                name = "templates";
+            } else if (MustacheEngine.SOURCE_CACHE_CONSUMER_ID.equals(cacheId)) {
+                name = "sources";
+            } else {
+                name = cacheId;
+            }
+            metrics = new CacheMetrics(registry, MetricRegistry.name(prefix, "cache", name));
+            CacheMetrics previous = cacheMetrics.putIfAbsent(cacheId, metrics);
+            if (previous != null) {
+                metrics = previous;
+            }
+        }
+        return metrics;
+    }
+
+    private Timer getHelperTimer(Segment segment) {
+        String helperName = segment.getHelperName();
+        if (helperName == null) {
+            return NO_TIMER;
+        }
+        Timer timer = helperTimers.get(segment);
+        if (timer == null) {
+            timer = registry.timer(MetricRegistry.name(prefix, "helper", helperName));
+            helperTimers.putIfAbsent(segment, timer);
+        }
+        return timer;
+    }
+
+    /**
+     * Register the gauges reflecting the state of the template cache and the
+     * template locators of the given engine:
+     *
+     * <ul>
+     * <li><code>{prefix}.templates.count</code></li>
+     * <li><code>{prefix}.templates.retainedSize</code></li>
+     * <li><code>{prefix}.locator.{index}.hits</code>,
+     * <code>{prefix}.locator.{index}.misses</code> and
+     * <code>{prefix}.locator.{index}.cachedMisses</code></li>
+     * </ul>
+     *
+     * The index is the position of the locator in the list returned by
+     * {@link MustacheEngine#getTemplateLocatorInfo()}, i.e. the locators are
+     * sorted by priority. The values are computed when a gauge is read and then
+     * cached for {@value #DEFAULT_GAUGE_CACHE_TIMEOUT} seconds, i.e. the cache
+     * info is not copied for every gauge and every read.
+     *
+     * @param registry
+     * @param engine
+     * @param prefix
+     * @see #registerGauges(MetricRegistry, MustacheEngine, String, long,
+     *      TimeUnit)
+     */
+    public static void registerGauges(MetricRegistry registry, final MustacheEngine engine, String prefix) {
+        registerGauges(registry, engine, prefix, DEFAULT_GAUGE_CACHE_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     *
+     * @param registry
+     * @param engine
+     * @param prefix
+     * @param cacheTimeout
+     *            The time for which the values of the gauges are cached
+     * @param cacheTimeoutUnit
+     * @see #registerGauges(MetricRegistry, MustacheEngine, String)
+     */
+    public static void registerGauges(MetricRegistry registry, final MustacheEngine engine, String prefix,
+            long cacheTimeout, TimeUnit cacheTimeoutUnit) {
+        Checker.checkArgumentsNotNull(registry, engine, prefix, cacheTimeoutUnit);
+        final CachedGauge<long[]> templates = new CachedGauge<long[]>(cacheTimeout, cacheTimeoutUnit) {
+            @Override
+            protected long[] loadValue() {
+                List<CachedTemplateInfo> info = engine.getTemplateCacheInfo();
+                long size = 0;
+                for (CachedTemplateInfo template : info) {
+                    size += template.getRetainedSizeEstimate();
+                }
+                return new long[] { info.size(), size };
+            }
+        };
+        registry.register(MetricRegistry.name(prefix, "templates", "count"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return (int) templates.getValue()[0];
+            }
+        });
+        registry.register(MetricRegistry.name(prefix, "templates", "retainedSize"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return templates.getValue()[1];
+            }
+        });
+        final CachedGauge<List<TemplateLocatorInfo>> locatorInfo = new CachedGauge<List<TemplateLocatorInfo>>(
+                cacheTimeout, cacheTimeoutUnit) {
+            @Override
+            protected List<TemplateLocatorInfo> loadValue() {
+                return engine.getTemplateLocatorInfo();
+            }
+        };
+        // The set of locators does not change once the engine is built
+        int locators = engine.getTemplateLocatorInfo().size();
+        for (int i = 0; i < locators; i++) {
+            String name = MetricRegistry.name(prefix, "locator", String.valueOf(i));
+            registry.register(MetricRegistry.name(name, "hits"), new LocatorGauge(locatorInfo, i) {
+                @Override
+                long getValue(TemplateLocatorInfo info) {
+                    return info.getHits();
+                }
+            });
+            registry.register(MetricRegistry.name(name, "misses"), new LocatorGauge(locatorInfo, i) {
+                @Override
+                long getValue(TemplateLocatorInfo info) {
+                    return info.getMisses();
+                }
+            });
+            registry.register(MetricRegistry.name(name, "cachedMisses"), new LocatorGauge(locatorInfo, i) {
+                @Override
+                long getValue(TemplateLocatorInfo info) {
+                    return info.getCachedMisses();
+                }
+            });
+        }
+    }
+
+    private static final class TemplateMetrics {
+
+        private final Timer rendering;
+
+        private final Histogram output;
+
+        private final Counter compilation;
+
+        TemplateMetrics(MetricRegistry registry, String prefix, String templateName) {
+            this.rendering = registry.timer(MetricRegistry.name(prefix, "rendering", templateName));
+            this.output = registry.histogram(MetricRegistry.name(prefix, "output", templateName));
+            this.compilation = registry.counter(MetricRegistry.name(prefix, "compilation", templateName));
+        }
+
+    }
+
+    private static final class CacheMetrics {
+
+        private final Counter hits;
+
+        private final Counter misses;
+
+        private final Counter removals;
+
+        CacheMetrics(MetricRegistry registry, String name) {
+            this.hits = registry.counter(MetricRegistry.name(name, "hits"));
+            this.misses = registry.counter(MetricRegistry.name(name, "misses"));
+            this.removals = registry.counter(MetricRegistry.name(name, "removals"));
+        }
+
+    }
+
+    private abstract static class LocatorGauge implements Gauge<Long> {
+
+        private final Gauge<List<TemplateLocatorInfo>> locatorInfo;
+
+        private final int index;
+
+        LocatorGauge(Gauge<List<TemplateLocatorInfo>> locatorInfo, int index) {
+            this.locatorInfo = locatorInfo;
+            this.index = index;
+        }
+
+        @Override
+        public Long getValue() {
+            return getValue(locatorInfo.getValue().get(index));
+        }
+
+        abstract long getValue(TemplateLocatorInfo info);
+
+    }
+
+}
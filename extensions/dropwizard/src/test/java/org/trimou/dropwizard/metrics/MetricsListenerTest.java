@@ -0,0 +1,57 @@
+package org.trimou.dropwizard.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.MustacheEngineBuilder;
+import org.trimou.engine.locator.MapTemplateLocator;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ *
+ * @author Martin Kouba
+ */
+public class MetricsListenerTest {
+
+    @Test
+    public void testMetrics() {
+        MetricRegistry registry = new MetricRegistry();
+        MustacheEngine engine = MustacheEngineBuilder.newBuilder()
+                .addTemplateLocator(new MapTemplateLocator(ImmutableMap.of("page", "{{#each this}}{{this}}{{/each}}")))
+                .addMustacheListener(new MetricsListener(registry)).build();
+        MetricsListener.registerGauges(registry, engine, MetricsListener.DEFAULT_PREFIX);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("ab", engine.getMustache("page").render(ImmutableList.of("a", "b")));
+        }
+        assertEquals(1, registry.getGauges().get("trimou.templates.count").getValue());
+        assertEquals(null, engine.getMustache("missing"));
+
+        assertEquals(3, registry.timer("trimou.rendering.page").getCount());
+        assertEquals(1, registry.counter("trimou.compilation.page").getCount());
+        assertEquals(3, registry.timer("trimou.helper.each").getCount());
+        assertFalse(registry.getTimers().containsKey("trimou.helper.this"));
+        assertTrue((Long) registry.getGauges().get("trimou.templates.retainedSize").getValue() > 0);
+        assertEquals(1l, registry.getGauges().get("trimou.locator.0.hits").getValue());
+        assertEquals(1l, registry.getGauges().get("trimou.locator.0.misses").getValue());
+
+        assertEquals(3, registry.histogram("trimou.output.page").getCount());
+        assertEquals(2, registry.histogram("trimou.output.page").getSnapshot().getMax());
+        assertEquals(6, registry.meter("trimou.output").getCount());
+        assertEquals(2, registry.counter("trimou.cache.templates.hits").getCount());
+        assertEquals(2, registry.counter("trimou.cache.templates.misses").getCount());
+        engine.invalidateTemplateCache();
+        assertEquals(2, registry.counter("trimou.cache.templates.removals").getCount());
+        // {{this}} is resolved via the hint except for the first iteration,
+        // the helper param is always resolved by the resolver
+        assertEquals(5, registry.counter("trimou.hint.hits").getCount());
+        assertEquals(4, registry.counter("trimou.resolver.org.trimou.engine.resolver.ThisResolver.hits").getCount());
+    }
+
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.jdk8.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.cache.ComputingCache;
+import org.trimou.engine.cache.ComputingCache.Function;
+import org.trimou.engine.cache.ComputingCache.Listener;
+import org.trimou.engine.cache.ComputingCacheFactory;
+import org.trimou.engine.config.AbstractConfigurationAware;
+import org.trimou.engine.parser.Template;
+import org.trimou.util.Checker;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * A computing cache factory producing computing cache implementations backed by
+ * <a href="https://github.com/ben-manes/caffeine">Caffeine</a>. Caffeine
+ * makes use of the W-TinyLFU eviction policy, i.e. frequently used entries
+ * (e.g. shared layout templates) are not evicted in favor of entries which are
+ * rarely used (e.g. long-tail tenant templates).
+ *
+ * <p>
+ * It's possible to limit the total weight of the entries per consumer id
+ * and/or per key prefix, see {@link #setQuota(String, long)} and
+ * {@link #setQuota(String, String, long)}. The weight of an entry is
+ * determined by the {@link Weight}. If no quota is set for a consumer, the max
+ * size limit requested by the consumer (if any) is applied.
+ * </p>
+ *
+ * <p>
+ * A quota applies to each cache created for the consumer id separately. The
+ * engine uses a distinct consumer id for each of its caches, i.e.
+ * {@link MustacheEngine#COMPUTING_CACHE_CONSUMER_ID} for compiled templates,
+ * {@link MustacheEngine#SOURCE_CACHE_CONSUMER_ID} for template sources and
+ * {@link MustacheEngine#LOCATOR_MISS_CACHE_CONSUMER_ID} for template locator
+ * misses.
+ * </p>
+ *
+ * <pre>
+ * MustacheEngineBuilder
+ *         .newBuilder()
+ *         .setComputingCacheFactory(
+ *                 new CaffeineComputingCacheFactory()
+ *                         .setQuota(MustacheEngine.COMPUTING_CACHE_CONSUMER_ID,
+ *                                 50 * 1024 * 1024)
+ *                         .setQuota(MustacheEngine.COMPUTING_CACHE_CONSUMER_ID,
+ *                                 &quot;tenants/&quot;, 10 * 1024 * 1024)
+ *                         .setQuota(MustacheEngine.SOURCE_CACHE_CONSUMER_ID,
+ *                                 10 * 1024 * 1024)).build();
+ * </pre>
+ *
+ * <p>
+ * Note that the quotas must be set before the engine is built. Also note that
+ * the caffeine library must be available on the class path.
+ * </p>
+ *
+ * @author Martin Kouba
+ */
+public class CaffeineComputingCacheFactory extends AbstractConfigurationAware
+        implements ComputingCacheFactory {
+
+    private final Weight weight;
+
+    private final boolean softValues;
+
+    private final Map<String, Long> quotas;
+
+    private final Map<String, Map<String, Long>> prefixQuotas;
+
+    public CaffeineComputingCacheFactory() {
+        this(Weight.RETAINED_SIZE, false);
+    }
+
+    /**
+     *
+     * @param weight
+     * @param softValues
+     *            If set to <code>true</code> the values are softly referenced,
+     *            i.e. the cache entries may be garbage-collected in response
+     *            to memory demand
+     */
+    public CaffeineComputingCacheFactory(Weight weight, boolean softValues) {
+        Checker.checkArgumentNotNull(weight);
+        this.weight = weight;
+        this.softValues = softValues;
+        this.quotas = new ConcurrentHashMap<String, Long>();
+        this.prefixQuotas = new ConcurrentHashMap<String, Map<String, Long>>();
+    }
+
+    /**
+     *
+     * @param consumerId
+     * @param maxWeight
+     *            The max total weight of all the entries of a cache created
+     *            for the given consumer; if there are some prefix quotas set
+     *            for the consumer, only the entries not matching any prefix
+     *            are taken into account
+     * @return self
+     */
+    public CaffeineComputingCacheFactory setQuota(String consumerId,
+            long maxWeight) {
+        Checker.checkArgumentNotEmpty(consumerId);
+        Preconditions.checkArgument(maxWeight >= 0,
+                "The max weight must not be negative");
+        quotas.put(consumerId, maxWeight);
+        return this;
+    }
+
+    /**
+     * The entries whose key starts with the given prefix are held in a
+     * separate partition. If there are several matching prefixes, the longest
+     * one is used. Note that only {@link String} keys are taken into account.
+     *
+     * @param consumerId
+     * @param keyPrefix
+     * @param maxWeight
+     *            The max total weight of all the entries whose key starts with
+     *            the given prefix
+     * @return self
+     */
+    public CaffeineComputingCacheFactory setQuota(String consumerId,
+            String keyPrefix, long maxWeight) {
+        Checker.checkArgumentsNotNull(consumerId, keyPrefix);
+        Preconditions.checkArgument(maxWeight >= 0,
+                "The max weight must not be negative");
+        Map<String, Long> consumerQuotas = prefixQuotas.get(consumerId);
+        if (consumerQuotas == null) {
+            consumerQuotas = new ConcurrentHashMap<String, Long>();
+            prefixQuotas.put(consumerId, consumerQuotas);
+        }
+        consumerQuotas.put(keyPrefix, maxWeight);
+        return this;
+    }
+
+    @Override
+    public <K, V> ComputingCache<K, V> create(String consumerId,
+            Function<K, V> computingFunction, Long expirationTimeout,
+            Long maxSize, Listener<K> listener) {
+
+        LoadingCache<K, V> defaultCache = buildCache(computingFunction,
+                expirationTimeout, quotas.get(consumerId), maxSize, listener);
+
+        Map<String, Long> consumerQuotas = prefixQuotas.get(consumerId);
+        if (consumerQuotas == null || consumerQuotas.isEmpty()) {
+            return new LoadingCacheAdapter<K, V>(defaultCache);
+        }
+
+        List<Partition<K, V>> partitions = new ArrayList<Partition<K, V>>();
+        for (Map.Entry<String, Long> entry : consumerQuotas.entrySet()) {
+            partitions.add(new Partition<K, V>(entry.getKey(), buildCache(
+                    computingFunction, expirationTimeout, entry.getValue(),
+                    null, listener)));
+        }
+        // The longest prefix first
+        Collections.sort(partitions, (p1, p2) -> Integer.compare(
+                p2.prefix.length(), p1.prefix.length()));
+        return new PartitionedCacheAdapter<K, V>(defaultCache, partitions);
+    }
+
+    private <K, V> LoadingCache<K, V> buildCache(
+            Function<K, V> computingFunction, Long expirationTimeout,
+            Long maxWeight, Long maxSize, Listener<K> listener) {
+
+        Caffeine<Object, Object> builder = Caffeine.newBuilder();
+        // Perform the maintenance and notify the listener in the caller
+        // thread, similarly to the default implementation
+        builder.executor(Runnable::run);
+
+        if (expirationTimeout != null && expirationTimeout > 0) {
+            builder.expireAfterWrite(expirationTimeout, TimeUnit.MILLISECONDS);
+        }
+        if (maxWeight != null) {
+            builder.maximumWeight(maxWeight).weigher(
+                    (key, value) -> weight.of(value));
+        } else if (maxSize != null) {
+            builder.maximumSize(maxSize);
+        }
+        if (softValues) {
+            builder.softValues();
+        }
+        if (listener instanceof ComputingCache.RemovalListener) {
+            @SuppressWarnings("unchecked")
+            ComputingCache.RemovalListener<K, V> removalListener = (ComputingCache.RemovalListener<K, V>) listener;
+            builder.removalListener((K key, V value,
+                    RemovalCause cause) -> removalListener.entryRemoved(key,
+                            value, cause.toString()));
+        } else if (listener != null) {
+            builder.removalListener((K key, V value, RemovalCause cause) -> listener
+                    .entryInvalidated(key, cause.toString()));
+        }
+        return builder.build(computingFunction::compute);
+    }
+
+    /**
+     * Determines the weight of a cache entry. Note that values wrapped in
+     * {@link Optional} are unwrapped first. The weight of a value which is
+     * neither a {@link Template} nor a {@link CharSequence} (e.g. a set of
+     * template locator misses) is always <code>1</code>.
+     *
+     * <p>
+     * The weight is only computed when an entry is added. Therefore the
+     * segments of lazily compiled sections are estimated as if they were
+     * compiled.
+     * </p>
+     */
+    public static enum Weight {
+
+        /**
+         * The number of segments of a template, the number of characters of a
+         * template source
+         *
+         * @see org.trimou.engine.segment.RootSegment#getSegmentsSizeEstimate()
+         */
+        SEGMENTS,
+        /**
+         * The number of characters of a template source
+         */
+        SOURCE_LENGTH,
+        /**
+         * The estimated number of bytes retained by a template or template
+         * source; a source held off-heap weighs its length, i.e. roughly the
+         * number of bytes held off-heap
+         *
+         * @see org.trimou.engine.segment.RootSegment#getRetainedSizeEstimate()
+         */
+        RETAINED_SIZE, ;
+
+        int of(Object value) {
+            if (value instanceof Optional) {
+                value = ((Optional<?>) value).orNull();
+            }
+            long weight = 1;
+            if (value instanceof Template) {
+                Template template = (Template) value;
+                switch (this) {
+                case SEGMENTS:
+                    weight = template.getRootSegment()
+                            .getSegmentsSizeEstimate();
+                    break;
+                case SOURCE_LENGTH:
+                    weight = template.getSourceLength();
+                    break;
+                case RETAINED_SIZE:
+                    weight = template.getRootSegment()
+                            .getRetainedSizeEstimate();
+                    break;
+                default:
+                    throw new IllegalStateException();
+                }
+            } else if (value instanceof String) {
+                int length = ((String) value).length();
+                // Object overhead + UTF-16 chars
+                weight = RETAINED_SIZE.equals(this) ? 40 + 2l * length
+                        : length;
+            } else if (value instanceof CharSequence) {
+                // E.g. a source held off-heap
+                weight = ((CharSequence) value).length();
+            }
+            return (int) Math.max(1, Math.min(Integer.MAX_VALUE, weight));
+        }
+
+    }
+
+    private static class Partition<K, V> {
+
+        private final String prefix;
+
+        private final LoadingCache<K, V> cache;
+
+        Partition(String prefix, LoadingCache<K, V> cache) {
+            this.prefix = prefix;
+            this.cache = cache;
+        }
+
+    }
+
+    /**
+     *
+     * @author Martin Kouba
+     *
+     * @param <K>
+     * @param <V>
+     */
+    private static class LoadingCacheAdapter<K, V> implements
+            ComputingCache<K, V> {
+
+        private final LoadingCache<K, V> cache;
+
+        LoadingCacheAdapter(LoadingCache<K, V> cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public V get(K key) {
+            return cache.get(key);
+        }
+
+        @Override
+        public V getIfPresent(K key) {
+            return cache.getIfPresent(key);
+        }
+
+        @Override
+        public void clear() {
+            cache.invalidateAll();
+            cache.cleanUp();
+        }
+
+        @Override
+        public long size() {
+            return cache.estimatedSize();
+        }
+
+        @Override
+        public void invalidate(KeyPredicate<K> keyPredicate) {
+            cache.asMap().keySet().removeIf(keyPredicate::apply);
+        }
+
+        @Override
+        public Map<K, V> getAllPresent() {
+            return ImmutableMap.copyOf(cache.asMap());
+        }
+
+    }
+
+    /**
+     *
+     * @author Martin Kouba
+     *
+     * @param <K>
+     * @param <V>
+     */
+    private static class PartitionedCacheAdapter<K, V> implements
+            ComputingCache<K, V> {
+
+        private final LoadingCache<K, V> defaultCache;
+
+        private final List<Partition<K, V>> partitions;
+
+        PartitionedCacheAdapter(LoadingCache<K, V> defaultCache,
+                List<Partition<K, V>> partitions) {
+            this.defaultCache = defaultCache;
+            this.partitions = partitions;
+        }
+
+        @Override
+        public V get(K key) {
+            return getCache(key).get(key);
+        }
+
+        @Override
+        public V getIfPresent(K key) {
+            return getCache(key).getIfPresent(key);
+        }
+
+        @Override
+        public void clear() {
+            for (LoadingCache<K, V> cache : getAllCaches()) {
+                cache.invalidateAll();
+                cache.cleanUp();
+            }
+        }
+
+        @Override
+        public long size() {
+            long size = 0;
+            for (LoadingCache<K, V> cache : getAllCaches()) {
+                size += cache.estimatedSize();
+            }
+            return size;
+        }
+
+        @Override
+        public void invalidate(KeyPredicate<K> keyPredicate) {
+            for (LoadingCache<K, V> cache : getAllCaches()) {
+                cache.asMap().keySet().removeIf(keyPredicate::apply);
+            }
+        }
+
+        @Override
+        public Map<K, V> getAllPresent() {
+            Map<K, V> all = new HashMap<K, V>();
+            for (LoadingCache<K, V> cache : getAllCaches()) {
+                all.putAll(cache.asMap());
+            }
+            return ImmutableMap.copyOf(all);
+        }
+
+        private LoadingCache<K, V> getCache(K key) {
+            if (key instanceof String) {
+                for (Partition<K, V> partition : partitions) {
+                    if (((String) key).startsWith(partition.prefix)) {
+                        return partition.cache;
+                    }
+                }
+            }
+            return defaultCache;
+        }
+
+        private List<LoadingCache<K, V>> getAllCaches() {
+            List<LoadingCache<K, V>> caches = new ArrayList<LoadingCache<K, V>>(
+                    partitions.size() + 1);
+            caches.add(defaultCache);
+            for (Partition<K, V> partition : partitions) {
+                caches.add(partition.cache);
+            }
+            return caches;
+        }
+
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.jdk8.jfr;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.trimou.Mustache;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.context.ExecutionContext;
+import org.trimou.engine.listener.AbstractEngineMetricsListener;
+import org.trimou.engine.listener.MustacheCompilationEvent;
+import org.trimou.engine.listener.MustacheParsingEvent;
+import org.trimou.engine.listener.MustacheRenderingEvent;
+import org.trimou.engine.listener.SegmentExecutionListener;
+import org.trimou.engine.parser.Template;
+import org.trimou.engine.segment.Segment;
+import org.trimou.engine.segment.SegmentType;
+
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+
+/**
+ * Emits Java Flight Recorder events for template parsing, rendering, partial
+ * and helper executions. All the events are disabled by default and must be
+ * enabled in the recording settings, e.g. <code>org.trimou.Rendering#enabled=true</code>.
+ * If an event type is disabled no event object is created.
+ *
+ * <p>
+ * Note that a {@link ParsingEvent} emitted for a template obtained via
+ * {@link org.trimou.engine.MustacheEngine#getMustache(String)} means the
+ * template was not found in the template cache. Similarly, the
+ * {@link PartialEvent#cacheHit} field is <code>false</code> if the partial
+ * template had to be compiled. The {@link RenderingEvent#outputSize} field holds
+ * the number of characters rendered.
+ * </p>
+ *
+ * <p>
+ * Requires a JDK with the <code>jdk.jfr</code> API, i.e. JDK 8u262+ or JDK 11+.
+ * </p>
+ *
+ * @author Martin Kouba
+ */
+public class FlightRecorderListener extends AbstractEngineMetricsListener
+        implements SegmentExecutionListener {
+
+    private static final EventType PARSING = EventType
+            .getEventType(ParsingEvent.class);
+
+    private static final EventType RENDERING = EventType
+            .getEventType(RenderingEvent.class);
+
+    private static final EventType PARTIAL = EventType
+            .getEventType(PartialEvent.class);
+
+    private static final EventType HELPER = EventType
+            .getEventType(HelperEvent.class);
+
+    private final ThreadLocal<Deque<ParsingEvent>> parsingEvents = ThreadLocal
+            .withInitial(ArrayDeque::new);
+
+    private final ThreadLocal<Deque<SegmentFrame>> segmentFrames = ThreadLocal
+            .withInitial(ArrayDeque::new);
+
+    private final ThreadLocal<Deque<RenderingEvent>> renderingEvents = ThreadLocal
+            .withInitial(ArrayDeque::new);
+
+    @Override
+    public void parsingStarted(MustacheParsingEvent event) {
+        if (PARSING.isEnabled()) {
+            ParsingEvent parsing = new ParsingEvent();
+            parsing.templateName = event.getMustacheName();
+            parsing.begin();
+            parsingEvents.get().push(parsing);
+        }
+    }
+
+    @Override
+    public void compilationFinished(MustacheCompilationEvent event) {
+        Deque<ParsingEvent> events = parsingEvents.get();
+        Mustache mustache = event.getMustache();
+        if (events.isEmpty()) {
+            return;
+        }
+        ParsingEvent parsing = events.peek();
+        if (parsing.templateName.equals(mustache.getName())) {
+            events.pop();
+            parsing.end();
+            if (mustache instanceof Template) {
+                parsing.sourceLength = ((Template) mustache).getSourceLength();
+            }
+            parsing.commit();
+        }
+    }
+
+    @Override
+    public void parsingFailed(String templateName) {
+        Deque<ParsingEvent> events = parsingEvents.get();
+        // The event is not committed
+        if (!events.isEmpty()
+                && events.peek().templateName.equals(templateName)) {
+            events.pop();
+        }
+    }
+
+    @Override
+    public void renderingStarted(MustacheRenderingEvent event) {
+        if (RENDERING.isEnabled()) {
+            RenderingEvent rendering = new RenderingEvent();
+            rendering.templateName = event.getMustacheName();
+            rendering.begin();
+            Deque<RenderingEvent> events = renderingEvents.get();
+            events.push(rendering);
+            event.registerReleaseCallback(() -> {
+                events.removeFirstOccurrence(rendering);
+                rendering.commit();
+            });
+        }
+    }
+
+    @Override
+    public void outputRendered(MustacheRenderingEvent event, long length) {
+        RenderingEvent rendering = renderingEvents.get().peek();
+        if (rendering != null
+                && rendering.templateName.equals(event.getMustacheName())) {
+            rendering.outputSize = length;
+        }
+    }
+
+    @Override
+    public void cacheAccessed(String cacheId, String key, boolean hit) {
+        if (hit || !MustacheEngine.COMPUTING_CACHE_CONSUMER_ID
+                .equals(cacheId)) {
+            return;
+        }
+        // The partial template had to be compiled
+        SegmentFrame frame = segmentFrames.get().peek();
+        if (frame != null && frame.event instanceof PartialEvent) {
+            ((PartialEvent) frame.event).cacheHit = false;
+        }
+    }
+
+    @Override
+    public void segmentStarted(Segment segment, ExecutionContext context) {
+        Event event = null;
+        if (SegmentType.PARTIAL.equals(segment.getType())) {
+            if (PARTIAL.isEnabled()) {
+                PartialEvent partial = new PartialEvent();
+                partial.templateName = context.getOrigin(segment)
+                        .getTemplateName();
+                partial.partialName = segment.getText();
+                partial.line = getLine(segment);
+                partial.cacheHit = true;
+                event = partial;
+            }
+        } else if (HELPER.isEnabled()) {
+            String helperName = segment.getHelperName();
+            if (helperName != null) {
+                HelperEvent helper = new HelperEvent();
+                helper.templateName = context.getOrigin(segment)
+                        .getTemplateName();
+                helper.helperName = helperName;
+                helper.line = getLine(segment);
+                event = helper;
+            }
+        }
+        if (event != null) {
+            event.begin();
+            segmentFrames.get().push(new SegmentFrame(segment, event));
+        }
+    }
+
+    @Override
+    public void segmentFinished(Segment segment, ExecutionContext context) {
+        Deque<SegmentFrame> frames = segmentFrames.get();
+        if (!frames.isEmpty() && frames.peek().segment == segment) {
+            frames.pop().event.commit();
+        }
+    }
+
+    int getPendingParsings() {
+        return parsingEvents.get().size();
+    }
+
+    private int getLine(Segment segment) {
+        Integer line = segment.getOrigin().getLine();
+        return line != null ? line : -1;
+    }
+
+    private static final class SegmentFrame {
+
+        private final Segment segment;
+
+        private final Event event;
+
+        SegmentFrame(Segment segment, Event event) {
+            this.segment = segment;
+            this.event = event;
+        }
+
+    }
+
+}
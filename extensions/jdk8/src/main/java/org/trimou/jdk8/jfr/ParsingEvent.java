@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.jdk8.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A template was parsed and compiled, e.g. because it was not found in the template cache.
+ *
+ * @author Martin Kouba
+ * @see FlightRecorderListener
+ */
+@Name("org.trimou.Parsing")
+@Label("Template Parsing")
+@Description("A template was parsed and compiled, e.g. because it was not found in the template cache.")
+@Category("Trimou")
+@Enabled(false)
+@StackTrace(false)
+public class ParsingEvent extends Event {
+
+    @Label("Template Name")
+    String templateName;
+
+    @Label("Source Length")
+    int sourceLength;
+
+}
@@ -0,0 +1,88 @@
+package org.trimou.jdk8.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.config.EngineConfigurationKey;
+import org.trimou.engine.MustacheEngineBuilder;
+import org.trimou.engine.cache.ComputingCacheTest;
+import org.trimou.engine.locator.MapTemplateLocator;
+import org.trimou.engine.parser.Template;
+import org.trimou.jdk8.cache.CaffeineComputingCacheFactory.Weight;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ *
+ * @author Martin Kouba
+ */
+public class CaffeineComputingCacheTest extends ComputingCacheTest {
+
+    @Override
+    public void buildEngine() {
+        engine = MustacheEngineBuilder.newBuilder()
+                .setComputingCacheFactory(new CaffeineComputingCacheFactory())
+                .build();
+    }
+
+    @Test
+    public void testPrefixQuota() {
+        MustacheEngine engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(
+                        new MapTemplateLocator(ImmutableMap.of("layout",
+                                "{{this}}", "tenant/alpha", "Alpha!",
+                                "tenant/bravo", "Bravo!")))
+                .setComputingCacheFactory(
+                        new CaffeineComputingCacheFactory(
+                                Weight.SOURCE_LENGTH, false).setQuota(
+                                MustacheEngine.COMPUTING_CACHE_CONSUMER_ID,
+                                "tenant/", 10)).build();
+        assertNotNull(engine.getMustache("layout"));
+        for (int i = 0; i < 10; i++) {
+            assertEquals("Alpha!", engine.getMustache("tenant/alpha")
+                    .render(null));
+            assertEquals("Bravo!", engine.getMustache("tenant/bravo")
+                    .render(null));
+        }
+        Set<String> cached = engine.getTemplateCacheInfo().stream()
+                .map((info) -> info.getTemplateId())
+                .collect(Collectors.toSet());
+        // Only one tenant template fits the quota, other entries not affected
+        assertEquals(2, cached.size());
+        assertTrue(cached.contains("layout"));
+    }
+
+    @Test
+    public void testWeight() {
+        Template template = (Template) MustacheEngineBuilder.newBuilder()
+                .build().compileMustache("weight", "{{foo}} and {{bar}}");
+        assertEquals(3, Weight.SEGMENTS.of(template));
+        assertEquals(19, Weight.SOURCE_LENGTH.of(Optional.of(template)));
+        assertTrue(Weight.RETAINED_SIZE.of(template) > 1);
+        assertEquals(5, Weight.SOURCE_LENGTH.of("Hello"));
+        assertEquals(1, Weight.RETAINED_SIZE.of(Optional.absent()));
+    }
+
+    @Test
+    public void testWeightOfLazySections() {
+        Template template = (Template) MustacheEngineBuilder
+                .newBuilder()
+                .setProperty(EngineConfigurationKey.LAZY_SECTION_COMPILATION,
+                        true).build()
+                .compileMustache("lazy", "{{#this}}{{foo}} and {{bar}}{{/this}}");
+        int segments = Weight.SEGMENTS.of(template);
+        assertEquals(4, segments);
+        assertTrue(Weight.RETAINED_SIZE.of(template) > 4 * 2 * 7);
+        assertEquals(" and ", template.render(true));
+        assertEquals(segments, Weight.SEGMENTS.of(template));
+    }
+
+}
@@ -0,0 +1,123 @@
+package org.trimou.jdk8.jfr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.MustacheEngineBuilder;
+import org.trimou.engine.locator.MapTemplateLocator;
+import org.trimou.exception.MustacheException;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ *
+ * @author Martin Kouba
+ */
+public class FlightRecorderListenerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEvents() throws IOException {
+        MustacheEngine engine = MustacheEngineBuilder.newBuilder()
+                .addTemplateLocator(new MapTemplateLocator(ImmutableMap.of(
+                        "page", "{{#each this}}{{> item}}{{/each}}", "item",
+                        "<{{this}}>", "other", "{{> otherItem}}", "otherItem",
+                        "x")))
+                .addMustacheListener(new FlightRecorderListener()).build();
+
+        // Events are disabled by default
+        assertEquals("<a>", engine.getMustache("page")
+                .render(ImmutableList.of("a")));
+
+        Path file = folder.newFile("trimou.jfr").toPath();
+        try (Recording recording = new Recording()) {
+            recording.enable(ParsingEvent.class);
+            recording.enable(RenderingEvent.class);
+            recording.enable(PartialEvent.class);
+            recording.enable(HelperEvent.class);
+            recording.start();
+            engine.compileMustache("foo", "{{this}}").render("bar");
+            assertEquals("<a><b>", engine.getMustache("page")
+                    .render(ImmutableList.of("a", "b")));
+            assertEquals("x", engine.getMustache("other").render(null));
+            recording.stop();
+            recording.dump(file);
+        }
+
+        Map<String, List<RecordedEvent>> events = RecordingFile
+                .readAllEvents(file).stream()
+                .filter((e) -> e.getEventType().getName()
+                        .startsWith("org.trimou."))
+                .collect(Collectors.groupingBy(
+                        (e) -> e.getEventType().getName()));
+        List<RecordedEvent> parsing = events.get("org.trimou.Parsing");
+        // foo, other and otherItem
+        assertEquals(3, parsing.size());
+        assertTrue(parsing.stream()
+                .anyMatch((e) -> "foo".equals(e.getString("templateName"))
+                        && e.getInt("sourceLength") == 8));
+        List<RecordedEvent> rendering = events.get("org.trimou.Rendering");
+        assertEquals(3, rendering.size());
+        assertTrue(rendering.stream().anyMatch(
+                (e) -> "page".equals(e.getString("templateName"))
+                        && e.getLong("outputSize") == 6));
+        assertTrue(rendering.stream().anyMatch(
+                (e) -> "foo".equals(e.getString("templateName"))
+                        && e.getLong("outputSize") == 3));
+        List<RecordedEvent> partials = events.get("org.trimou.Partial");
+        assertEquals(3, partials.size());
+        assertEquals(2, partials.stream()
+                .filter((e) -> "item".equals(e.getString("partialName"))
+                        && "page".equals(e.getString("templateName"))
+                        && e.getBoolean("cacheHit"))
+                .count());
+        assertTrue(partials.stream()
+                .anyMatch((e) -> "otherItem".equals(e.getString("partialName"))
+                        && !e.getBoolean("cacheHit")));
+        List<RecordedEvent> helpers = events.get("org.trimou.Helper");
+        assertEquals(1, helpers.size());
+        assertEquals("each", helpers.get(0).getString("helperName"));
+        assertEquals(1, helpers.get(0).getInt("line"));
+    }
+
+    @Test
+    public void testFailedParsingDiscarded() {
+        FlightRecorderListener listener = new FlightRecorderListener();
+        MustacheEngine engine = MustacheEngineBuilder.newBuilder()
+                .addMustacheListener(listener).build();
+        try (Recording recording = new Recording()) {
+            recording.enable(ParsingEvent.class);
+            recording.start();
+            for (int i = 0; i < 100; i++) {
+                try {
+                    engine.compileMustache("invalid", "{{#foo}}");
+                    fail();
+                } catch (MustacheException expected) {
+                }
+            }
+            assertEquals(0, listener.getPendingParsings());
+            engine.compileMustache("foo", "{{this}}");
+            assertEquals(0, listener.getPendingParsings());
+            recording.stop();
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2015 Martin Kouba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.trimou.maven;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.MustacheEngineBuilder;
+import org.trimou.engine.locator.FileSystemTemplateLocator;
+import org.trimou.engine.parser.TemplateSnapshot;
+import org.trimou.exception.MustacheException;
+
+/**
+ * Compiles all the templates found in the templates directory and writes the
+ * {@link TemplateSnapshot} to the output directory so that it's packaged into
+ * the final archive. The build fails if any template is not valid.
+ *
+ * <p>
+ * The snapshot is stored in {@link TemplateSnapshot#DEFAULT_RESOURCE_NAME} by
+ * default, i.e. it's possible to load it at runtime with
+ * {@link TemplateSnapshot#fromClassPath(ClassLoader)} and set it via
+ * {@link MustacheEngineBuilder#setTemplateSnapshot(TemplateSnapshot)}. Note
+ * that the template identifiers must match, i.e. the runtime
+ * {@link org.trimou.engine.locator.ClassPathTemplateLocator} should use the
+ * same root path and suffix. Also the default delimiters must be configured
+ * the same way, otherwise the snapshot entries are considered stale.
+ * </p>
+ *
+ * @author Martin Kouba
+ */
+@Mojo(name = "compile-templates", defaultPhase = LifecyclePhase.PROCESS_RESOURCES, threadSafe = true)
+public class CompileTemplatesMojo extends AbstractMojo {
+
+    /**
+     * The root directory of the templates
+     */
+    @Parameter(defaultValue = "${project.basedir}/src/main/resources/templates", property = "trimou.templatesDirectory")
+    File templatesDirectory;
+
+    /**
+     * The template file suffix, e.g. <code>html</code>
+     */
+    @Parameter(property = "trimou.suffix")
+    String suffix;
+
+    /**
+     * The snapshot file
+     */
+    @Parameter(defaultValue = "${project.build.outputDirectory}/"
+            + TemplateSnapshot.DEFAULT_RESOURCE_NAME, property = "trimou.outputFile")
+    File outputFile;
+
+    /**
+     * The engine configuration properties, e.g. the default delimiters
+     */
+    @Parameter
+    Map<String, String> properties;
+
+    /**
+     * If set to <code>false</code> invalid templates are only logged
+     */
+    @Parameter(defaultValue = "true", property = "trimou.failOnError")
+    boolean failOnError;
+
+    @Parameter(defaultValue = "false", property = "trimou.skip")
+    boolean skip;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+
+        if (skip) {
+            getLog().info("Template compilation skipped");
+            return;
+        }
+        if (!templatesDirectory.isDirectory()) {
+            getLog().info(
+                    "Templates directory does not exist: "
+                            + templatesDirectory);
+            return;
+        }
+
+        TemplateSnapshot snapshot = new TemplateSnapshot();
+        FileSystemTemplateLocator locator = new FileSystemTemplateLocator(1,
+                templatesDirectory.getAbsolutePath(), suffix);
+        MustacheEngineBuilder builder = MustacheEngineBuilder.newBuilder()
+                .addTemplateLocator(locator).setTemplateSnapshot(snapshot);
+        if (properties != null) {
+            for (Entry<String, String> entry : properties.entrySet()) {
+                builder.setProperty(entry.getKey(), entry.getValue());
+            }
+        }
+        MustacheEngine engine = builder.build();
+
+        Set<String> templateIds = locator.getAllIdentifiers();
+        List<String> errors = new ArrayList<String>();
+        for (String templateId : templateIds) {
+            try {
+                engine.getMustache(templateId);
+            } catch (MustacheException e) {
+                errors.add(templateId + ": " + e.getMessage());
+            }
+        }
+
+        if (!errors.isEmpty()) {
+            for (String error : errors) {
+                getLog().error(error);
+            }
+            if (failOnError) {
+                throw new MojoFailureException(errors.size() + " of "
+                        + templateIds.size() + " templates are not valid");
+            }
+        }
+
+        File parent = outputFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new MojoExecutionException("Unable to create directory: "
+                    + parent);
+        }
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                    outputFile));
+            try {
+                snapshot.write(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to write the snapshot: "
+                    + outputFile, e);
+        }
+        getLog().info(
+                "Compiled " + snapshot.size() + " templates to " + outputFile);
+    }
+
+}
@@ -0,0 +1,104 @@
+package org.trimou.maven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.trimou.engine.MustacheEngine;
+import org.trimou.engine.MustacheEngineBuilder;
+import org.trimou.engine.locator.FileSystemTemplateLocator;
+import org.trimou.engine.parser.TemplateSnapshot;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ *
+ * @author Martin Kouba
+ */
+public class CompileTemplatesMojoTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCompileTemplates() throws Exception {
+        File templates = folder.newFolder("templates");
+        write(new File(templates, "foo.html"), "Hello {{this}}!{{>sub/bar}}");
+        File sub = new File(templates, "sub");
+        sub.mkdir();
+        write(new File(sub, "bar.html"), "{{#this}}.{{/this}}");
+
+        CompileTemplatesMojo mojo = newMojo(templates);
+        mojo.execute();
+
+        assertTrue(mojo.outputFile.exists());
+        TemplateSnapshot snapshot = read(mojo.outputFile);
+        assertEquals(2, snapshot.size());
+        assertTrue(snapshot.contains("foo"));
+        assertTrue(snapshot.contains("sub/bar"));
+
+        MustacheEngine engine = MustacheEngineBuilder
+                .newBuilder()
+                .addTemplateLocator(
+                        new FileSystemTemplateLocator(1, templates
+                                .getAbsolutePath(), "html"))
+                .setTemplateSnapshot(snapshot).build();
+        assertEquals("Hello me!.", engine.getMustache("foo").render("me"));
+    }
+
+    @Test
+    public void testInvalidTemplate() throws Exception {
+        File templates = folder.newFolder("templates");
+        write(new File(templates, "foo.html"), "{{#section}}");
+        write(new File(templates, "bar.html"), "OK");
+
+        CompileTemplatesMojo mojo = newMojo(templates);
+        try {
+            mojo.execute();
+            fail();
+        } catch (MojoFailureException expected) {
+        }
+        assertFalse(mojo.outputFile.exists());
+
+        mojo.failOnError = false;
+        mojo.execute();
+        TemplateSnapshot snapshot = read(mojo.outputFile);
+        assertEquals(1, snapshot.size());
+        assertTrue(snapshot.contains("bar"));
+    }
+
+    private CompileTemplatesMojo newMojo(File templates) {
+        CompileTemplatesMojo mojo = new CompileTemplatesMojo();
+        mojo.templatesDirectory = templates;
+        mojo.suffix = "html";
+        mojo.outputFile = new File(folder.getRoot(), "classes/"
+                + TemplateSnapshot.DEFAULT_RESOURCE_NAME);
+        mojo.failOnError = true;
+        return mojo;
+    }
+
+    private void write(File file, String content) throws IOException {
+        Files.write(content, file, Charsets.UTF_8);
+    }
+
+    private TemplateSnapshot read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return TemplateSnapshot.read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+}